@@ -0,0 +1,102 @@
+package com.ahlquist.common.net.dns;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the DNS message encoding and decoding used by DnsResolver.
+ * Run with -prof gc to see the allocation rate.
+ *
+ * @author Douglas Ahlquist
+ * @see DnsPackets
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DnsCodecBenchmark {
+	/** The response packet */
+	@Param({ "MX_WITH_GLUE", "MX_UNCOMPRESSED", "LARGE_ANSWER" })
+	public String packet;
+
+	private byte[] message;
+	private byte[] query = new byte[DnsResolver.UDP_MESSAGE_LENGTH];
+	private DnsMessageView view = new DnsMessageView();
+
+	@Setup
+	public void setup() {
+		message = DnsPackets.get(packet);
+	}
+
+	/**
+	 * Encodes a query (createQueryMessage and encodeName). Doesn't depend on
+	 * the packet.
+	 */
+	@Benchmark
+	public int createQueryMessage() {
+		return DnsResolver.createQueryMessage(DnsPackets.ID, "mx1.mail.example.com", DnsRecord.TYPE_MX, query);
+	}
+
+	/**
+	 * Checks a response without decoding it
+	 */
+	@Benchmark
+	public boolean wrap() {
+		return view.wrap(message, message.length);
+	}
+
+	/**
+	 * Decodes a response and all its records
+	 */
+	@Benchmark
+	public void decodeResponse(Blackhole bh) {
+		DnsResponse response = DnsResolver.decodeResponse(view, DnsPackets.ID, "example.com", DnsRecord.TYPE_MX,
+				message, message.length);
+		for (int i = 0; i < response.getAnswerCount(); i++)
+			bh.consume(response.getAnswer(i));
+		for (int i = 0; i < response.getAdditionalCount(); i++)
+			bh.consume(response.getAdditional(i));
+	}
+
+	/**
+	 * Decodes a response the way an MX lookup uses it: the answers and the A
+	 * records of the mail exchanges, the other records are left in the message
+	 */
+	@Benchmark
+	public void decodeMxWithGlue(Blackhole bh) {
+		DnsResponse response = DnsResolver.decodeResponse(view, DnsPackets.ID, "example.com", DnsRecord.TYPE_MX,
+				message, message.length);
+		for (int i = 0; i < response.getAnswerCount(); i++)
+			bh.consume(response.getAnswer(i));
+		bh.consume(response.getGlue());
+	}
+
+	/**
+	 * Reads the owner names of the answers with DnsByteArray.readName()
+	 */
+	@Benchmark
+	public void readName(Blackhole bh) {
+		view.wrap(message, message.length);
+		DnsByteArray array = new DnsByteArray(message, message.length);
+		int offset = view.getSectionOffset(DnsMessageView.SECTION_ANSWER);
+		for (int i = 0; i < view.getCount(DnsMessageView.SECTION_ANSWER); i++) {
+			array.seek(offset);
+			bh.consume(array.readName());
+			offset = DnsMessageView.skipRecord(message, offset);
+		}
+	}
+}
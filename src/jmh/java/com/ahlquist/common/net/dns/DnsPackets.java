@@ -0,0 +1,82 @@
+package com.ahlquist.common.net.dns;
+
+/**
+ * Response packets for the benchmarks, as a name server would send them.
+ * 
+ * <pre>
+ * MX_WITH_GLUE     example.com MX: 5 MX answers, 5 A records in the
+ *                  additional section, compressed names (214 bytes)
+ * MX_UNCOMPRESSED  the same without name compression (444 bytes)
+ * LARGE_ANSWER     pool.example.com A: 28 A answers, close to the 512 byte
+ *                  UDP limit (482 bytes)
+ * </pre>
+ * 
+ * All have ID 0x1234.
+ *
+ * @author Douglas Ahlquist
+ */
+final class DnsPackets {
+	/** The ID of the packets */
+	static final int ID = 0x1234;
+
+	static final String MX_WITH_GLUE = "123481800001000500000005076578616d706c6503636f6d00000f0001c00c000f000100000e10000d000a036d783104"
+			+ "6d61696cc00cc00c000f000100000e1000080014036d7832c02fc00c000f000100000e100008001e036d7833c02fc00c"
+			+ "000f000100000e1000080028036d7834c02fc00c000f000100000e1000080032036d7835c02fc02b000100010000012c"
+			+ "0004c000020ac044000100010000012c0004c000020bc058000100010000012c0004c000020cc06c000100010000012c"
+			+ "0004c000020dc080000100010000012c0004c000020e";
+
+	static final String MX_UNCOMPRESSED = "123481800001000500000005076578616d706c6503636f6d00000f0001076578616d706c6503636f6d00000f00010000"
+			+ "0e100018000a036d7831046d61696c076578616d706c6503636f6d00076578616d706c6503636f6d00000f000100000e"
+			+ "1000180014036d7832046d61696c076578616d706c6503636f6d00076578616d706c6503636f6d00000f000100000e10"
+			+ "0018001e036d7833046d61696c076578616d706c6503636f6d00076578616d706c6503636f6d00000f000100000e1000"
+			+ "180028036d7834046d61696c076578616d706c6503636f6d00076578616d706c6503636f6d00000f000100000e100018"
+			+ "0032036d7835046d61696c076578616d706c6503636f6d00036d7831046d61696c076578616d706c6503636f6d000001"
+			+ "00010000012c0004c000020a036d7832046d61696c076578616d706c6503636f6d00000100010000012c0004c000020b"
+			+ "036d7833046d61696c076578616d706c6503636f6d00000100010000012c0004c000020c036d7834046d61696c076578"
+			+ "616d706c6503636f6d00000100010000012c0004c000020d036d7835046d61696c076578616d706c6503636f6d000001"
+			+ "00010000012c0004c000020e";
+
+	static final String LARGE_ANSWER = "123481800001001c0000000004706f6f6c076578616d706c6503636f6d0000010001c00c000100010000003c0004c633"
+			+ "6400c00c000100010000003c0004c6336401c00c000100010000003c0004c6336402c00c000100010000003c0004c633"
+			+ "6403c00c000100010000003c0004c6336404c00c000100010000003c0004c6336405c00c000100010000003c0004c633"
+			+ "6406c00c000100010000003c0004c6336407c00c000100010000003c0004c6336408c00c000100010000003c0004c633"
+			+ "6409c00c000100010000003c0004c633640ac00c000100010000003c0004c633640bc00c000100010000003c0004c633"
+			+ "640cc00c000100010000003c0004c633640dc00c000100010000003c0004c633640ec00c000100010000003c0004c633"
+			+ "640fc00c000100010000003c0004c6336410c00c000100010000003c0004c6336411c00c000100010000003c0004c633"
+			+ "6412c00c000100010000003c0004c6336413c00c000100010000003c0004c6336414c00c000100010000003c0004c633"
+			+ "6415c00c000100010000003c0004c6336416c00c000100010000003c0004c6336417c00c000100010000003c0004c633"
+			+ "6418c00c000100010000003c0004c6336419c00c000100010000003c0004c633641ac00c000100010000003c0004c633"
+			+ "641b";
+
+	/**
+	 * Constructor never called!
+	 */
+	private DnsPackets() {
+	}
+
+	/**
+	 * Returns a packet by name
+	 * 
+	 * @param name
+	 *            MX_WITH_GLUE, MX_UNCOMPRESSED or LARGE_ANSWER
+	 */
+	static byte[] get(String name) {
+		if (name.equals("MX_WITH_GLUE"))
+			return toBytes(MX_WITH_GLUE);
+		if (name.equals("MX_UNCOMPRESSED"))
+			return toBytes(MX_UNCOMPRESSED);
+		if (name.equals("LARGE_ANSWER"))
+			return toBytes(LARGE_ANSWER);
+		throw new IllegalArgumentException(name);
+	}
+
+	/**
+	 * Converts a hex string to bytes
+	 */
+	private static byte[] toBytes(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++)
+			bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		return bytes;
+	}
+}
@@ -0,0 +1,114 @@
+package com.ahlquist.common.net.dns;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.ahlquist.common.net.dnsd.Dnsd;
+import com.ahlquist.common.net.dnsd.DnsdZone;
+import com.ahlquist.common.net.dnsd.DnsdZoneHandler;
+
+/**
+ * End to end benchmark: a query is encoded the way DnsResolver does it, sent
+ * over UDP to a Dnsd server in the same process, and the response is decoded.
+ * DnsResolver.lookup() itself gets its name servers from the DNSNameServers
+ * system parameter, so the socket is set up here instead.
+ *
+ * @author Douglas Ahlquist
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DnsRoundTripBenchmark {
+	/** The zone served */
+	private static final String ZONE = "$ORIGIN example.com.\n" + "@ MX 10 mx1.mail\n" + "@ MX 20 mx2.mail\n"
+			+ "mx1.mail A 192.0.2.10\n" + "mx2.mail A 192.0.2.11\n";
+
+	/**
+	 * The server, one per run
+	 */
+	@State(Scope.Benchmark)
+	public static class Server {
+		/** The UDP port of the server */
+		@Param({ "15353" })
+		public int port;
+
+		/** Serve in NIO mode */
+		@Param({ "true", "false" })
+		public boolean nio;
+
+		Dnsd dnsd;
+
+		@Setup(Level.Trial)
+		public void start() throws IOException {
+			dnsd = new Dnsd(port, new DnsdZoneHandler(DnsdZone.load(new StringReader(ZONE), "")), nio);
+			dnsd.setReceiverThreads(4);
+			dnsd.start();
+		}
+
+		@TearDown(Level.Trial)
+		public void stop() {
+			dnsd.stop();
+		}
+	}
+
+	/**
+	 * A client, one per benchmark thread
+	 */
+	@State(Scope.Thread)
+	public static class Client {
+		DatagramSocket socket;
+		byte[] query = new byte[DnsResolver.UDP_MESSAGE_LENGTH];
+		byte[] response = new byte[DnsResolver.MAX_EDNS_PAYLOAD_SIZE];
+		DatagramPacket responsePacket = new DatagramPacket(response, response.length);
+		DnsMessageView view = new DnsMessageView();
+		int id;
+
+		@Setup(Level.Trial)
+		public void open(Server server) throws IOException {
+			socket = new DatagramSocket();
+			socket.setSoTimeout(1000);
+			socket.connect(InetAddress.getLoopbackAddress(), server.port);
+		}
+
+		@TearDown(Level.Trial)
+		public void close() {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Looks up the MX records of example.com
+	 */
+	@Benchmark
+	public void lookupMx(Server server, Client client, Blackhole bh) throws IOException {
+		int id = ++client.id & 0xFFFF;
+		int length = DnsResolver.createQueryMessage(id, "example.com", DnsRecord.TYPE_MX, client.query);
+		client.socket.send(new DatagramPacket(client.query, length));
+		client.socket.receive(client.responsePacket);
+		DnsResponse response = DnsResolver.decodeResponse(client.view, id, "example.com", DnsRecord.TYPE_MX,
+				client.response, client.responsePacket.getLength());
+		for (int i = 0; i < response.getAnswerCount(); i++)
+			bh.consume(response.getAnswer(i));
+	}
+}
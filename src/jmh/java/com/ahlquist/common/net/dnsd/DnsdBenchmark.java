@@ -0,0 +1,119 @@
+
+package com.ahlquist.common.net.dnsd;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the Dnsd request parsing and response packing
+ * (DnsdByteParser, DnsdZone, DnsdByteBuilder with name compression) and of
+ * the DnsdResponseCache. Run with -prof gc to see the allocation rate.
+ *
+ * @author Douglas Ahlquist
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DnsdBenchmark {
+	/** Number of A records for pool.example.com, more than fit in 512 bytes */
+	private static final int POOL_SIZE = 40;
+
+	private DnsdZoneHandler handler;
+	private DnsdResponseCache cache;
+
+	private ByteBuffer mxQuery;
+	private ByteBuffer poolQuery;
+	private DnsdByteParser mxParser;
+	private DnsdByteParser poolParser;
+	private DnsdByteBuilder builder = new DnsdByteBuilder(ByteBuffer.allocateDirect(512));
+
+	@Setup
+	public void setup() throws IOException {
+		StringBuffer zone = new StringBuffer("$ORIGIN example.com.\n");
+		for (int i = 1; i <= 5; i++) {
+			zone.append("@ MX ").append(i * 10).append(" mx").append(i).append(".mail\n");
+			zone.append("mx").append(i).append(".mail A 192.0.2.").append(i).append('\n');
+		}
+		for (int i = 0; i < POOL_SIZE; i++)
+			zone.append("pool A 198.51.100.").append(i).append('\n');
+		handler = new DnsdZoneHandler(DnsdZone.load(new StringReader(zone.toString()), ""));
+
+		mxQuery = query("example.com", DnsdRecord.TYPE_MX);
+		mxParser = new DnsdByteParser(mxQuery, mxQuery.limit());
+		poolQuery = query("pool.example.com", DnsdRecord.TYPE_A);
+		poolParser = new DnsdByteParser(poolQuery, poolQuery.limit());
+
+		cache = new DnsdResponseCache(1024, 3600);
+		mxParser.reset(mxQuery.limit());
+		builder.reset();
+		handler.handle(new DnsdRequest(mxParser)).pack(builder);
+		cache.put(mxParser, builder, cache.getGeneration());
+	}
+
+	/**
+	 * Parses an MX query, looks it up and packs the response
+	 */
+	@Benchmark
+	public int handleMx() {
+		return handle(mxParser, mxQuery);
+	}
+
+	/**
+	 * Parses an A query with more answers than fit, looks it up and packs
+	 * the truncated response
+	 */
+	@Benchmark
+	public int handleLarge() {
+		return handle(poolParser, poolQuery);
+	}
+
+	/**
+	 * Answers an MX query from the response cache
+	 */
+	@Benchmark
+	public boolean cachedMx() {
+		mxParser.reset(mxQuery.limit());
+		builder.reset();
+		return cache.get(mxParser, builder);
+	}
+
+	private int handle(DnsdByteParser parser, ByteBuffer query) {
+		parser.reset(query.limit());
+		builder.reset();
+		handler.handle(new DnsdRequest(parser)).pack(builder);
+		return builder.getCurrentPosition();
+	}
+
+	/**
+	 * Encodes a query
+	 */
+	private static ByteBuffer query(String name, int type) {
+		ByteBuffer buffer = ByteBuffer.allocateDirect(512);
+		buffer.putShort((short) 0x1234).putShort((short) 0x0100).putShort((short) 1).putShort((short) 0)
+				.putShort((short) 0).putShort((short) 0);
+		for (String label : name.split("\\.")) {
+			buffer.put((byte) label.length());
+			for (int i = 0; i < label.length(); i++)
+				buffer.put((byte) label.charAt(i));
+		}
+		buffer.put((byte) 0).putShort((short) type).putShort((short) 1);
+		buffer.flip();
+		return buffer;
+	}
+}
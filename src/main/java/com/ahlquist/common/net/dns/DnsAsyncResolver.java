@@ -0,0 +1,427 @@
+package com.ahlquist.common.net.dns;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import com.ahlquist.common.util.MyObject;
+import com.ahlquist.common.util.MyTime;
+
+/**
+ * This class is a non-blocking, pipelined DNS stub resolver. All in-flight
+ * queries are multiplexed over a single non-blocking UDP DatagramChannel that
+ * is served by one selector thread. Responses are matched up with their
+ * queries by the 16-bit query id. Timeouts and retries are driven by a timer
+ * wheel instead of socket timeouts, so no thread is ever parked waiting for a
+ * name server.
+ *
+ * The retry policy is the same as for DnsResolver.lookup(): the timeout is
+ * doubled for each retry, and the failed name server is marked as failed
+ * before the currently best server is picked for the next attempt. Truncated
+ * responses are retried over TCP by a small pool of worker threads, so the
+ * selector thread never blocks.
+ *
+ * Use DnsResolver.lookupAsync() rather than this class directly.
+ *
+ * @author Douglas Ahlquist
+ * @see com.ahlquist.common.net.dns.DnsResolver
+ */
+final class DnsAsyncResolver extends MyObject implements Runnable {
+	final static Logger logger = Logger.getLogger(DnsAsyncResolver.class);
+
+	/** Maximum number of threads doing TCP queries for truncated responses */
+	private static final int TCP_THREADS = 4;
+	/** Maximum number of threads running the continuations of lookups */
+	private static final int CALLBACK_THREADS = 4;
+	/** Length of one timer wheel tick in milliseconds */
+	private static final long TICK_MILLIS = 50;
+	/** Number of slots in the timer wheel */
+	private static final int TICKS_PER_WHEEL = 512;
+
+	private static DnsAsyncResolver instance = null;
+
+	/** The UDP channel shared by all queries */
+	private DatagramChannel channel;
+	/** Selector for the channel */
+	private Selector selector;
+
+	/** In-flight queries by query id */
+	private ConcurrentHashMap<Integer, PendingQuery> pending = new ConcurrentHashMap<Integer, PendingQuery>();
+	/** Queries submitted by callers, not yet sent by the selector thread */
+	private ConcurrentLinkedQueue<PendingQuery> submitted = new ConcurrentLinkedQueue<PendingQuery>();
+
+	/** Query timeouts. Only used by the selector thread. */
+	private DnsTimerWheel<PendingQuery> timers;
+	/** Receive buffer. Only used by the selector thread. */
+	private ByteBuffer receiveBuffer;
+	/** Used to check responses. Only used by the selector thread. */
+	private DnsMessageView view = new DnsMessageView();
+	/** Expired queries. Only used by the selector thread. */
+	private List<PendingQuery> expired = new ArrayList<PendingQuery>();
+	/** Threads doing TCP queries for truncated responses */
+	private ThreadPoolExecutor tcpExecutor;
+	/** Threads running the continuations of lookups, off the selector thread */
+	private ThreadPoolExecutor callbackExecutor;
+
+	/**
+	 * Opens the channel and starts the selector thread
+	 */
+	private DnsAsyncResolver() throws IOException {
+		channel = DatagramChannel.open();
+		channel.configureBlocking(false);
+		channel.bind(null);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+
+		receiveBuffer = ByteBuffer.allocate(DnsResolver.MAX_EDNS_PAYLOAD_SIZE);
+		timers = new DnsTimerWheel<PendingQuery>(TICKS_PER_WHEEL, TICK_MILLIS, MyTime.getCurrentMillis());
+
+		tcpExecutor = new ThreadPoolExecutor(TCP_THREADS, TCP_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), r -> {
+					Thread tcpThread = new Thread(r, "DnsAsyncResolver-tcp");
+					tcpThread.setDaemon(true);
+					return tcpThread;
+				});
+		tcpExecutor.allowCoreThreadTimeOut(true);
+
+		callbackExecutor = new ThreadPoolExecutor(CALLBACK_THREADS, CALLBACK_THREADS, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), r -> {
+					Thread callbackThread = new Thread(r, "DnsAsyncResolver-callback");
+					callbackThread.setDaemon(true);
+					return callbackThread;
+				});
+		callbackExecutor.allowCoreThreadTimeOut(true);
+
+		Thread thread = new Thread(this, "DnsAsyncResolver");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Singleton. Returns null if the UDP channel could not be opened.
+	 */
+	static DnsAsyncResolver getInstance() {
+		if (instance == null) {
+			synchronized (DnsAsyncResolver.class) {
+				if (instance == null) {
+					try {
+						instance = new DnsAsyncResolver();
+					} catch (IOException e) {
+						// Assume it is temporary, we will try again next time
+						logger.error("DnsAsyncResolver: Could not open UDP channel", e);
+					}
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the executor for the continuations of lookups, so they never run
+	 * on (and block) the selector thread
+	 */
+	Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
+
+	/**
+	 * Submits a query. The returned future is completed by the selector thread
+	 * when a response is received or all retries have failed. It is never
+	 * completed exceptionally; failures are reported with the same RCODE_*
+	 * values as DnsResolver.lookup().
+	 *
+	 * @param qName
+	 *            the domain name to be resolved
+	 * @param qType
+	 *            the type of query to be performed
+	 */
+	CompletableFuture<DnsResponse> query(String qName, int qType) {
+		PendingQuery query = new PendingQuery(qName, qType);
+
+		// Make query/question Message
+		query.length = DnsResolver.createQueryMessage(0, qName, qType, query.message);
+		if (query.length == 0) {
+			logger.debug("Invalid qName: NAME=" + qName + " TYPE=" + qType);
+			query.future.complete(new DnsResponse(DnsResponse.RCODE_SPECIAL_FORMAT_ERROR));
+			return query.future;
+		}
+
+		// Allocate an id that isn't used by any other in-flight query
+		int attempts = 0;
+		do {
+			if (++attempts > 0xFFFF) {
+				logger.debug("No free query id: NAME=" + qName + " TYPE=" + qType);
+				query.future.complete(new DnsResponse(DnsResponse.RCODE_SPECIAL_IO_FAILURE));
+				return query.future;
+			}
+			query.id = DnsResolver.getNextId();
+		} while (pending.putIfAbsent(query.id, query) != null);
+
+		query.message[0] = (byte) (query.id >> 8);
+		query.message[1] = (byte) (query.id & 0xFF);
+
+		logger.debug("Query:    ID=" + query.id + " NAME=" + qName + " TYPE=" + qType + " (async)");
+
+		submitted.add(query);
+		selector.wakeup();
+		return query.future;
+	}
+
+	/**
+	 * The selector thread. Sends submitted queries, receives responses and
+	 * expires timeouts.
+	 */
+	public void run() {
+		while (true) {
+			try {
+				selector.select(TICK_MILLIS);
+
+				long now = MyTime.getCurrentMillis();
+
+				// Send newly submitted queries
+				PendingQuery query;
+				while ((query = submitted.poll()) != null) {
+					try {
+						query.timeout = DnsResolver.getTimeout();
+						query.triesLeft = DnsResolver.getRetries() + 1;
+						query.server = DnsResolver.getNameServer();
+						send(query, now);
+					} catch (RuntimeException e) {
+						// Don't leave the caller waiting forever
+						logger.error("DnsAsyncResolver: Could not send query: ID=" + query.id, e);
+						complete(query, new DnsResponse(DnsResponse.RCODE_SPECIAL_IO_FAILURE));
+					}
+				}
+
+				// Read all available responses
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					keys.next();
+					keys.remove();
+					receiveAll();
+				}
+
+				// Retry or fail timed out queries
+				timers.expire(now, expired);
+				try {
+					for (int i = 0; i < expired.size(); i++) {
+						query = expired.get(i);
+						try {
+							retry(query, now);
+						} catch (RuntimeException e) {
+							// Don't leave the caller waiting forever
+							logger.error("DnsAsyncResolver: Could not retry query: ID=" + query.id, e);
+							complete(query, new DnsResponse(DnsResponse.RCODE_SPECIAL_IO_FAILURE));
+						}
+					}
+				} finally {
+					expired.clear();
+				}
+			} catch (Throwable e) {
+				// Never let the selector thread die
+				logger.error("DnsAsyncResolver: Unexpected error in selector thread", e);
+			}
+		}
+	}
+
+	/**
+	 * Sends a query to its current name server and schedules its timeout
+	 */
+	private void send(PendingQuery query, long now) {
+		query.triesLeft--;
+		if (!query.server.isEdnsSupported())
+			query.length = DnsResolver.removeEdns(query.message, query.length);
+		query.address = new InetSocketAddress(query.server.getAddress(), query.server.getPort());
+		try {
+			query.sentTime = now;
+			channel.send(ByteBuffer.wrap(query.message, 0, query.length), query.address);
+		} catch (IOException e) {
+			// Temporary IO failure, the timeout will retry
+			logger.debug("Failed send: ID=" + query.id + " (SERVER=[" + query.server + "])");
+		}
+		query.timer = timers.schedule(query, query.timeout, now);
+	}
+
+	/**
+	 * Called when a query has timed out. Retries with a doubled timeout, or
+	 * completes the query with an I/O failure if there are no retries left.
+	 */
+	private void retry(PendingQuery query, long now) {
+		logger.debug("Failed query attempt: ID=" + query.id + " (RETRIES LEFT=" + query.triesLeft + ", SERVER=["
+				+ query.server + "])");
+
+		// Fail this server
+		query.server.failed();
+
+		if (query.triesLeft <= 0) {
+			complete(query, new DnsResponse(DnsResponse.RCODE_SPECIAL_IO_FAILURE));
+			return;
+		}
+
+		// Double the timeout for each retry
+		query.timeout *= 2;
+		// Get the currently best server to try
+		query.server = DnsResolver.getNameServer();
+		if (query.server == null) {
+			logger.debug("Failed query: ID=" + query.id + " (NO NAME SERVER)");
+			complete(query, new DnsResponse(DnsResponse.RCODE_SPECIAL_IO_FAILURE));
+			return;
+		}
+		send(query, now);
+	}
+
+	/**
+	 * Sends a query to the same name server again, with a new timeout. The
+	 * previous attempt doesn't count as a try.
+	 */
+	private void resend(PendingQuery query) {
+		query.timer.cancel();
+		query.timer = null;
+		query.triesLeft++;
+		send(query, MyTime.getCurrentMillis());
+	}
+
+	/**
+	 * Reads and dispatches all responses that are waiting in the channel
+	 */
+	private void receiveAll() throws IOException {
+		while (true) {
+			receiveBuffer.clear();
+			SocketAddress from = channel.receive(receiveBuffer);
+			if (from == null)
+				break;
+
+			int responseLength = receiveBuffer.position();
+			byte[] rMessage = receiveBuffer.array();
+			if (responseLength < 4) {
+				logger.debug("Failed query: Response length=" + responseLength + ", FROM=[" + from + "])");
+				continue;
+			}
+
+			int id = ((rMessage[0] & 0xFF) << 8) | (rMessage[1] & 0xFF);
+			PendingQuery query = pending.get(id);
+			// Ignore late/duplicate responses and responses from a server we
+			// didn't send the query to
+			if (query == null || !from.equals(query.address)) {
+				logger.debug("Unexpected response: ID=" + id + ", FROM=[" + from + "])");
+				continue;
+			}
+
+			query.server.addRttSample(MyTime.getCurrentMillis() - query.sentTime);
+
+			int rCode = rMessage[3] & 0xF;
+			if (DnsResolver.hasEdns(query.message) && DnsResolver.isEdnsRejected(rMessage)) {
+				logger.debug("EDNS0 rejected: ID=" + id + " (SERVER=[" + query.server + "]), retrying without it");
+				query.server.ednsRejected();
+				resend(query);
+			} else if ((rCode == DnsResponse.RCODE_NOERROR || rCode == DnsResponse.RCODE_NAME_ERROR)
+					&& DnsResolver.isTruncated(rMessage)) {
+				logger.debug("Truncated response: ID=" + id + " (SERVER=[" + query.server + "]), retrying over TCP");
+				retryTcp(query,
+						DnsResolver.decodeResponse(view, id, query.qName, query.qType, rMessage, responseLength));
+			} else if (rCode == DnsResponse.RCODE_NOERROR || rCode == DnsResponse.RCODE_NAME_ERROR) {
+				logger.debug("Query success: ID=" + id + " (RCODE=" + rCode + ", SERVER=[" + query.server + "])");
+				complete(query,
+						DnsResolver.decodeResponse(view, id, query.qName, query.qType, rMessage, responseLength));
+			} else {
+				logger.debug("Failed query: ID=" + id + " (RCODE=" + rCode + ", SERVER=[" + query.server + "])");
+				query.server.failed();
+				complete(query, new DnsResponse(DnsResponse.RCODE_SPECIAL_IO_FAILURE));
+			}
+		}
+	}
+
+	/**
+	 * Removes a query from the in-flight queries and completes its future
+	 */
+	private void complete(PendingQuery query, DnsResponse response) {
+		remove(query);
+		query.future.complete(response);
+	}
+
+	/**
+	 * Removes a query from the in-flight queries and hands it over to a TCP
+	 * worker thread. If the TCP query fails, the query is completed with the
+	 * truncated UDP response.
+	 *
+	 * @param query
+	 *            the query that got a truncated response
+	 * @param udpResponse
+	 *            the decoded truncated response
+	 */
+	private void retryTcp(final PendingQuery query, final DnsResponse udpResponse) {
+		remove(query);
+		try {
+			tcpExecutor.execute(new Runnable() {
+				public void run() {
+					DnsResponse response = udpResponse;
+					try {
+						DnsResponse tcpResponse = DnsResolver.lookupTcp(query.qName, query.qType);
+						int rCode = tcpResponse.getResponseCode();
+						if (rCode == DnsResponse.RCODE_NOERROR || rCode == DnsResponse.RCODE_NAME_ERROR)
+							response = tcpResponse;
+					} catch (RuntimeException e) {
+						logger.error("DnsAsyncResolver: TCP query failed: NAME=" + query.qName, e);
+					} finally {
+						query.future.complete(response);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			query.future.complete(udpResponse);
+		}
+	}
+
+	/**
+	 * Removes a query from the in-flight queries and cancels its timeout
+	 */
+	private void remove(PendingQuery query) {
+		if (query.timer != null) {
+			query.timer.cancel();
+			query.timer = null;
+		}
+		pending.remove(query.id, query);
+	}
+
+	/**
+	 * An in-flight query
+	 */
+	private static final class PendingQuery {
+		String qName;
+		int qType;
+		int id;
+		byte[] message = new byte[DnsResolver.UDP_MESSAGE_LENGTH];
+		int length;
+		CompletableFuture<DnsResponse> future = new CompletableFuture<DnsResponse>();
+
+		// Only used by the selector thread
+		DnsNameServer server;
+		InetSocketAddress address;
+		int timeout;
+		int triesLeft;
+		long sentTime;
+		DnsTimerWheel.Timeout<PendingQuery> timer;
+
+		PendingQuery(String qName, int qType) {
+			this.qName = qName;
+			this.qType = qType;
+		}
+	}
+}
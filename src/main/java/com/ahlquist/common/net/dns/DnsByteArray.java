@@ -16,8 +16,6 @@ final class DnsByteArray extends MyObject {
 	private int length;
 	private int offset;
 
-	private StringBuffer name;
-
 	/**
 	 * Constructor
 	 */
@@ -40,6 +38,16 @@ final class DnsByteArray extends MyObject {
 		return offset > length;
 	}
 
+	/**
+	 * Moves the current position.
+	 *
+	 * @param offset
+	 *            the new position
+	 */
+	void seek(int offset) {
+		this.offset = offset;
+	}
+
 	/**
 	 * Skips i bytes in the DnsByteArray and advances the current position.
 	 *
@@ -74,55 +82,17 @@ final class DnsByteArray extends MyObject {
 
 	/**
 	 * Reads a domain name (sequence of labels) from the array and does all
-	 * necessary decoding and decompression.
+	 * necessary decoding and decompression. Names are interned by the
+	 * DnsNameTable.
 	 */
 	String readName() {
-		if (name == null)
-			name = new StringBuffer();
-		else
-			name.setLength(0);
-
-		int nextOffset = 0;
-		int labelLen = array[offset++] & 0xFF;
-
-		// For each label... (End of domain name is marked by a zero-length
-		// label.)
-		while (labelLen != 0) {
-			// Is this a pointer (compressed label) ?
-			if ((labelLen & 0xC0) == 0xC0) {
-				int pointer = ((labelLen & 0x3F) << 8) | (array[offset++] & 0xFF);
-				// Save the offset if this is the first time we find a pointer
-				if (nextOffset == 0)
-					nextOffset = offset;
-				// The new offset is the pointer
-				offset = pointer;
-				labelLen = array[offset++] & 0xFF;
-			}
-			// Decode label
-			else {
-				// REVIEWed: This statement is superflous for a well formed
-				// message.
-				// The length is the 6 least significant bits (max label length
-				// is 63).
-				labelLen &= 0x3F;
-
-				// Add the label characters to the StringBuffer
-				while (labelLen > 0) {
-					name.append((char) array[offset++]);
-					labelLen--;
-				}
-
-				labelLen = array[offset++] & 0xFF;
-				// Append dot if this isn't the last label
-				if (labelLen != 0)
-					name.append('.');
-			}
+		String name = DnsNameTable.readName(array, offset);
+		offset = DnsNameTable.skipName(array, offset);
+		if (name == null) {
+			// Compression loop or too long, treat as a read past the end
+			offset = length + 1;
+			throw new ArrayIndexOutOfBoundsException("Bad domain name");
 		}
-
-		// Restore offset in case we got a pointer earlier
-		if (nextOffset != 0)
-			offset = nextOffset;
-
-		return name.toString();
+		return name;
 	}
 }
@@ -0,0 +1,239 @@
+package com.ahlquist.common.net.dns;
+
+import com.ahlquist.common.util.MyObject;
+
+/**
+ * This class checks a DNS message in place and finds its sections, without
+ * creating any objects. The header is read directly from the message bytes.
+ * Once a message is checked, its records can be skipped and their types read
+ * in place with the static methods. The records themselves are decoded by
+ * DnsResponse, which uses the section offsets found here.
+ *
+ * A view can be reused for any number of messages. It is not synchronized.
+ * The message bytes must not change while they are wrapped.
+ *
+ * @author Douglas Ahlquist
+ * @see com.ahlquist.common.net.dns.DnsResponse
+ */
+final class DnsMessageView extends MyObject {
+	/** The answer section */
+	static final int SECTION_ANSWER = 0;
+	/** The authority section */
+	static final int SECTION_AUTHORITY = 1;
+	/** The additional section */
+	static final int SECTION_ADDITIONAL = 2;
+
+	/** Length of the message header */
+	private static final int HEADER_LENGTH = 12;
+	/** Length of the fixed fields of a record (TYPE, CLASS, TTL, RDLENGTH) */
+	private static final int RECORD_FIXED_LENGTH = 10;
+
+	/** The message */
+	private byte[] message;
+	/** The message length */
+	private int length;
+
+	/** Offset of the first record of each section */
+	private int[] sectionOffsets = new int[3];
+	/** Number of records in each section */
+	private int[] sectionCounts = new int[3];
+
+	/**
+	 * Wraps a message. The whole message is checked, so that the records can
+	 * be read without any further checks. Returns false if the message is
+	 * malformed.
+	 *
+	 * @param message
+	 *            the message bytes
+	 * @param length
+	 *            the message length
+	 */
+	boolean wrap(byte[] message, int length) {
+		this.message = message;
+		this.length = length;
+
+		if (length < HEADER_LENGTH || length > message.length)
+			return false;
+
+		// Questions
+		int offset = HEADER_LENGTH;
+		int questions = readTwoByteInt(4);
+		for (int i = 0; i < questions; i++) {
+			offset = checkName(offset);
+			if (offset < 0 || offset + 4 > length)
+				return false;
+			offset += 4;
+		}
+
+		// Resource records
+		for (int s = SECTION_ANSWER; s <= SECTION_ADDITIONAL; s++) {
+			sectionOffsets[s] = offset;
+			sectionCounts[s] = readTwoByteInt(6 + 2 * s);
+			for (int i = 0; i < sectionCounts[s]; i++) {
+				offset = checkRecord(offset);
+				if (offset < 0)
+					return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the message id
+	 */
+	int getId() {
+		return readTwoByteInt(0);
+	}
+
+	/**
+	 * Returns the response code
+	 */
+	int getResponseCode() {
+		return message[3] & 0xF;
+	}
+
+	/**
+	 * If this is an authoritative answer
+	 */
+	boolean isAuthoritative() {
+		return (message[2] & 0x04) != 0;
+	}
+
+	/**
+	 * If the message is truncated
+	 */
+	boolean isTruncated() {
+		return (message[2] & 0x02) != 0;
+	}
+
+	/**
+	 * Returns the offset of the first record of a section
+	 *
+	 * @param section
+	 *            one of the SECTION_* values
+	 */
+	int getSectionOffset(int section) {
+		return sectionOffsets[section];
+	}
+
+	/**
+	 * Returns the number of records in a section
+	 *
+	 * @param section
+	 *            one of the SECTION_* values
+	 */
+	int getCount(int section) {
+		return sectionCounts[section];
+	}
+
+	/**
+	 * Returns the offset just past a record of a checked message
+	 *
+	 * @param message
+	 *            the message
+	 * @param offset
+	 *            the offset of the record
+	 */
+	static int skipRecord(byte[] message, int offset) {
+		int rdataOffset = DnsNameTable.skipName(message, offset) + RECORD_FIXED_LENGTH;
+		return rdataOffset + (((message[rdataOffset - 2] & 0xFF) << 8) | (message[rdataOffset - 1] & 0xFF));
+	}
+
+	/**
+	 * Returns the type of a record of a checked message
+	 *
+	 * @param message
+	 *            the message
+	 * @param offset
+	 *            the offset of the record
+	 */
+	static int getType(byte[] message, int offset) {
+		int typeOffset = DnsNameTable.skipName(message, offset);
+		return ((message[typeOffset] & 0xFF) << 8) | (message[typeOffset + 1] & 0xFF);
+	}
+
+	/**
+	 * Reads a 16-bit (2-byte) integer from the message
+	 */
+	private int readTwoByteInt(int offset) {
+		return ((message[offset] & 0xFF) << 8) | (message[offset + 1] & 0xFF);
+	}
+
+	/**
+	 * Checks a resource record. Returns the offset of the next record, or -1
+	 * if the record is malformed.
+	 */
+	private int checkRecord(int offset) {
+		offset = checkName(offset);
+		if (offset < 0 || offset + RECORD_FIXED_LENGTH > length)
+			return -1;
+		int type = readTwoByteInt(offset);
+		int rdOffset = offset + RECORD_FIXED_LENGTH;
+		int rdEnd = rdOffset + readTwoByteInt(offset + 8);
+		if (rdEnd > length)
+			return -1;
+
+		// Check the record data the way DnsRecord will decode it
+		int end;
+		switch (type) {
+		case DnsRecord.TYPE_MX:
+			end = (rdOffset + 2 > rdEnd) ? -1 : checkName(rdOffset + 2);
+			break;
+		case DnsRecord.TYPE_A:
+			end = rdOffset + 4;
+			break;
+		case DnsRecord.TYPE_CNAME:
+		case DnsRecord.TYPE_PTR:
+			end = checkName(rdOffset);
+			break;
+		case DnsRecord.TYPE_SOA:
+			end = checkName(rdOffset);
+			if (end >= 0)
+				end = checkName(end);
+			if (end >= 0)
+				end += 20;
+			break;
+		default:
+			end = rdEnd;
+			break;
+		}
+		if (end < 0 || end > rdEnd)
+			return -1;
+		return rdEnd;
+	}
+
+	/**
+	 * Checks a domain name. All labels and compression pointers must be
+	 * inside the message, and there can be no compression loops. Returns the
+	 * offset just past the name, or -1 if the name is malformed.
+	 */
+	private int checkName(int offset) {
+		int end = -1;
+		int pointers = 0;
+		int nameLength = 0;
+		while (true) {
+			if (offset >= length)
+				return -1;
+			int labelLen = message[offset++] & 0xFF;
+			if (labelLen == 0)
+				break;
+			if ((labelLen & 0xC0) == 0xC0) {
+				if (offset >= length || ++pointers > DnsNameTable.MAX_POINTERS)
+					return -1;
+				int pointer = ((labelLen & 0x3F) << 8) | (message[offset++] & 0xFF);
+				if (end < 0)
+					end = offset;
+				offset = pointer;
+			} else if ((labelLen & 0xC0) != 0)
+				// Reserved label types (RFC 6891)
+				return -1;
+			else {
+				nameLength += labelLen + 1;
+				if (nameLength > DnsNameTable.MAX_NAME_LENGTH + 1)
+					return -1;
+				offset += labelLen;
+			}
+		}
+		return (end < 0) ? offset : end;
+	}
+}
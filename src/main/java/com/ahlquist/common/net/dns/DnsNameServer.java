@@ -3,11 +3,23 @@ package com.ahlquist.common.net.dns;
 
 import com.ahlquist.common.util.*;
 import java.net.*;
+import java.util.Arrays;
 
 /**
  * This class represents a DNS name server to be used by the resolver for
  * lookups. It is retrieved from a system parameter.
  *
+ * Each name server keeps a smoothed round trip time (SRTT, like BIND) that is
+ * used to pick the fastest healthy server. A failed lookup adds a penalty to
+ * the SRTT. The SRTT decays while the server isn't used, so a server that was
+ * slow or down is eventually tried again. The last few round trip times are
+ * kept to estimate the 95th percentile, which is used to decide when to send
+ * a hedged query to another server.
+ *
+ * A name server that answers a query with an EDNS0 OPT record with FORMERR or
+ * NOTIMP is marked as not supporting EDNS0, and is sent plain queries from then
+ * on (RFC 6891 section 7).
+ *
  * @author Douglas Ahlquist 05/27/2002
  */
 public final class DnsNameServer extends MyObject implements java.io.Serializable {
@@ -22,6 +34,30 @@ public final class DnsNameServer extends MyObject implements java.io.Serializabl
 	/** Total number of failed lookups */
 	private transient int failures = 0;
 
+	/** Weight of a new sample in the smoothed RTT (same as TCP, RFC 6298) */
+	private static final double SRTT_GAIN = 0.125;
+	/** Penalty in milliseconds added to the smoothed RTT for a failed lookup */
+	private static final double FAILURE_PENALTY_MILLIS = 200;
+	/** Maximum smoothed RTT in milliseconds */
+	private static final double MAX_SRTT_MILLIS = 10000;
+	/** Time in milliseconds for the smoothed RTT of an unused server to halve */
+	private static final double SRTT_HALF_LIFE_MILLIS = 60000;
+	/** Number of recent RTT samples kept for the percentile */
+	private static final int RTT_SAMPLES = 32;
+	/** Minimum number of RTT samples needed to estimate the percentile */
+	private static final int MIN_RTT_SAMPLES = 8;
+
+	/** Smoothed RTT in milliseconds, 0 if never used */
+	private transient double srtt = 0;
+	/** Time when the smoothed RTT was last updated */
+	private transient long srttUpdated = 0;
+	/** Recent RTT samples in milliseconds (ring buffer). Created on demand. */
+	private transient long[] rttSamples;
+	/** Number of RTT samples taken */
+	private transient int rttSampleCount = 0;
+	/** If the name server rejected a query with an OPT record */
+	private transient volatile boolean noEdns = false;
+
 	/**
 	 * Creates a DNS name server object from a hostname/IP address and port.
 	 */
@@ -69,12 +105,96 @@ public final class DnsNameServer extends MyObject implements java.io.Serializabl
 		return (getAddress() != null);
 	}
 
+	/**
+	 * If queries to this name server may have an EDNS0 OPT record
+	 */
+	boolean isEdnsSupported() {
+		return !noEdns;
+	}
+
+	/**
+	 * Called when this name server rejected a query with an EDNS0 OPT record
+	 */
+	void ednsRejected() {
+		noEdns = true;
+	}
+
 	/**
 	 * Called if the DNS lookup failed. Used to keep track of total number of
 	 * failed lookups.
 	 */
 	public synchronized void failed() {
 		failures++;
+		long now = MyTime.getCurrentMillis();
+		srtt = Math.min(getDecayedSrtt(now) * 2 + FAILURE_PENALTY_MILLIS, MAX_SRTT_MILLIS);
+		srttUpdated = now;
+	}
+
+	/**
+	 * Called when a response has been received from this name server.
+	 *
+	 * @param rttMillis
+	 *            the round trip time of the query in milliseconds
+	 */
+	synchronized void addRttSample(long rttMillis) {
+		long now = MyTime.getCurrentMillis();
+		double decayed = getDecayedSrtt(now);
+		if (decayed == 0)
+			srtt = rttMillis;
+		else
+			srtt = Math.min(decayed + SRTT_GAIN * (rttMillis - decayed), MAX_SRTT_MILLIS);
+		srttUpdated = now;
+
+		if (rttSamples == null)
+			rttSamples = new long[RTT_SAMPLES];
+		rttSamples[rttSampleCount++ % RTT_SAMPLES] = rttMillis;
+		if (rttSampleCount == 2 * RTT_SAMPLES)
+			// Keep the count from overflowing, it only matters that it is
+			// at least RTT_SAMPLES
+			rttSampleCount = RTT_SAMPLES;
+	}
+
+	/**
+	 * Returns the score used to select a name server, lower is better. This
+	 * is the smoothed RTT (including failure penalties), decayed by how long
+	 * the server has been unused.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	synchronized double getScore(long now) {
+		return getDecayedSrtt(now);
+	}
+
+	/**
+	 * Returns the smoothed round trip time in milliseconds, including the
+	 * penalties for failed lookups. 0 if the server hasn't been used.
+	 */
+	public synchronized long getSmoothedRtt() {
+		return Math.round(getDecayedSrtt(MyTime.getCurrentMillis()));
+	}
+
+	/**
+	 * Returns the 95th percentile of the recent round trip times in
+	 * milliseconds, or -1 if there aren't enough samples yet.
+	 */
+	public synchronized long getRttPercentile95() {
+		int count = Math.min(rttSampleCount, RTT_SAMPLES);
+		if (count < MIN_RTT_SAMPLES)
+			return -1;
+		long[] sorted = new long[count];
+		System.arraycopy(rttSamples, 0, sorted, 0, count);
+		Arrays.sort(sorted);
+		return sorted[(count * 95 + 99) / 100 - 1];
+	}
+
+	/**
+	 * Returns the smoothed RTT, decayed by the time since it was last updated
+	 */
+	private double getDecayedSrtt(long now) {
+		if (srtt == 0 || now <= srttUpdated)
+			return srtt;
+		return srtt * Math.pow(0.5, (now - srttUpdated) / SRTT_HALF_LIFE_MILLIS);
 	}
 
 	/**
@@ -89,6 +209,6 @@ public final class DnsNameServer extends MyObject implements java.io.Serializabl
 	 */
 	public String toString() {
 		return getName() + ":" + getPort() + " IP=" + (getAddress() == null ? "null" : getAddress().getHostAddress())
-				+ " failures=" + getFailures();
+				+ " failures=" + getFailures() + " srtt=" + getSmoothedRtt() + " rtt95=" + getRttPercentile95();
 	}
 }
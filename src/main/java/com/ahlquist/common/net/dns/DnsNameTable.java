@@ -0,0 +1,166 @@
+package com.ahlquist.common.net.dns;
+
+/**
+ * This class decodes domain names from DNS messages into interned Strings. The
+ * same few names (the queried domain, its mail exchanges, its name servers)
+ * show up over and over again, so decoded names are kept in a fixed size hash
+ * table. A name that is found in the table is returned without creating any
+ * objects.
+ *
+ * The table is direct mapped: a new name simply replaces whatever name was in
+ * its slot. Slots are read and written without locking, which is safe since
+ * Strings are immutable and reference writes are atomic. At worst a name is
+ * decoded twice.
+ *
+ * @author Douglas Ahlquist
+ * @see com.ahlquist.common.net.dns.DnsByteArray
+ * @see com.ahlquist.common.net.dns.DnsMessageView
+ */
+final class DnsNameTable {
+	/** Number of slots in the table (a power of 2) */
+	private static final int TABLE_SIZE = 4096;
+	/** Maximum number of compression pointers followed in one name */
+	static final int MAX_POINTERS = 64;
+	/** Maximum length of a decoded name (RFC 1035) */
+	static final int MAX_NAME_LENGTH = 255;
+
+	/** The interned names */
+	private static final String[] table = new String[TABLE_SIZE];
+
+	/**
+	 * Constructor never called!
+	 */
+	private DnsNameTable() {
+	}
+
+	/**
+	 * Returns the offset just past a domain name in a message, without
+	 * following compression pointers.
+	 *
+	 * @param message
+	 *            the message
+	 * @param offset
+	 *            the offset of the name
+	 */
+	static int skipName(byte[] message, int offset) {
+		int labelLen = message[offset++] & 0xFF;
+		while (labelLen != 0) {
+			if ((labelLen & 0xC0) == 0xC0)
+				// A pointer ends the name
+				return offset + 1;
+			offset += labelLen & 0x3F;
+			labelLen = message[offset++] & 0xFF;
+		}
+		return offset;
+	}
+
+	/**
+	 * Returns a domain name from a message, decompressed. Returns null if the
+	 * name has a compression loop or is too long.
+	 *
+	 * @param message
+	 *            the message
+	 * @param offset
+	 *            the offset of the name
+	 */
+	static String readName(byte[] message, int offset) {
+		// First pass: hash and length of the decoded name
+		int hash = 0;
+		int nameLength = 0;
+		int pointers = 0;
+		int i = offset;
+		int labelLen = message[i++] & 0xFF;
+		while (labelLen != 0) {
+			if ((labelLen & 0xC0) == 0xC0) {
+				if (++pointers > MAX_POINTERS)
+					return null;
+				i = ((labelLen & 0x3F) << 8) | (message[i] & 0xFF);
+			} else {
+				labelLen &= 0x3F;
+				if (nameLength > 0) {
+					hash = 31 * hash + '.';
+					nameLength++;
+				}
+				nameLength += labelLen;
+				if (nameLength > MAX_NAME_LENGTH)
+					return null;
+				while (labelLen-- > 0)
+					hash = 31 * hash + (char) message[i++];
+			}
+			labelLen = message[i++] & 0xFF;
+		}
+
+		// Is it in the table already?
+		int slot = (hash ^ (hash >>> 16)) & (TABLE_SIZE - 1);
+		String name = table[slot];
+		if (name != null && name.length() == nameLength && name.hashCode() == hash
+				&& equals(message, offset, name, false))
+			return name;
+
+		// Second pass: decode the name
+		char[] chars = new char[nameLength];
+		int c = 0;
+		i = offset;
+		labelLen = message[i++] & 0xFF;
+		while (labelLen != 0) {
+			if ((labelLen & 0xC0) == 0xC0)
+				i = ((labelLen & 0x3F) << 8) | (message[i] & 0xFF);
+			else {
+				labelLen &= 0x3F;
+				if (c > 0)
+					chars[c++] = '.';
+				while (labelLen-- > 0)
+					chars[c++] = (char) message[i++];
+			}
+			labelLen = message[i++] & 0xFF;
+		}
+
+		name = new String(chars);
+		table[slot] = name;
+		return name;
+	}
+
+	/**
+	 * Compares a domain name in a message to a String, without decoding the
+	 * name.
+	 *
+	 * @param message
+	 *            the message
+	 * @param offset
+	 *            the offset of the name
+	 * @param name
+	 *            the name to compare to (no trailing dot)
+	 * @param ignoreCase
+	 *            true to compare case insensitively (as DNS does)
+	 */
+	static boolean equals(byte[] message, int offset, String name, boolean ignoreCase) {
+		int c = 0;
+		int pointers = 0;
+		int i = offset;
+		int labelLen = message[i++] & 0xFF;
+		while (labelLen != 0) {
+			if ((labelLen & 0xC0) == 0xC0) {
+				if (++pointers > MAX_POINTERS)
+					return false;
+				i = ((labelLen & 0x3F) << 8) | (message[i] & 0xFF);
+			} else {
+				labelLen &= 0x3F;
+				if (c > 0) {
+					if (c >= name.length() || name.charAt(c) != '.')
+						return false;
+					c++;
+				}
+				if (c + labelLen > name.length())
+					return false;
+				while (labelLen-- > 0) {
+					char a = (char) message[i++];
+					char b = name.charAt(c++);
+					if (a != b && (!ignoreCase || Character.toLowerCase(a) != Character.toLowerCase(b)))
+						return false;
+				}
+			}
+			labelLen = message[i++] & 0xFF;
+		}
+		return c == name.length();
+	}
+}
@@ -8,11 +8,13 @@ import com.ahlquist.common.util.MyObject;
  *
  * @author Douglas Ahlquist 12/15/2002
  */
-public abstract class DnsRecord extends MyObject {
+public abstract class DnsRecord extends MyObject implements Cloneable {
 	/** A host address */
 	public static final int TYPE_A = 1;
 	/** Identifies the canonical name of an alias */
 	public static final int TYPE_CNAME = 5;
+	/** Marks the start of a zone of authority */
+	public static final int TYPE_SOA = 6;
 	/** Domain name pointer */
 	public static final int TYPE_PTR = 12;
 	/** Identifies a mail exchange for the domain */
@@ -65,6 +67,24 @@ public abstract class DnsRecord extends MyObject {
 		return ttl;
 	}
 
+	/**
+	 * Returns a copy of this record with a different TTL. Used by the record
+	 * cache to hand out records with their remaining time to live.
+	 *
+	 * @param ttl
+	 *            the TTL value in seconds for the copy
+	 */
+	DnsRecord copyWithTTL(int ttl) {
+		try {
+			DnsRecord record = (DnsRecord) clone();
+			record.ttl = ttl;
+			return record;
+		} catch (CloneNotSupportedException e) {
+			// Never happens, we implement Cloneable
+			throw new InternalError(e.toString());
+		}
+	}
+
 	/**
 	 * DnsRecord class factory. Returns a DnsRecord subclass.
 	 */
@@ -87,6 +107,9 @@ public abstract class DnsRecord extends MyObject {
 		case TYPE_PTR:
 			record = new DnsPtrRecord(name, type, ba);
 			break;
+		case TYPE_SOA:
+			record = new DnsSoaRecord(name, type, ba);
+			break;
 		default:
 			record = new DnsUnknownRecord(name, type, ba);
 			break;
@@ -0,0 +1,333 @@
+package com.ahlquist.common.net.dns;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.ahlquist.common.util.MyObject;
+import com.ahlquist.common.util.MyTime;
+
+/**
+ * This class is a cache for DNS resource records. It sits in front of the name
+ * servers and is used by DnsResolver for every lookup. Records are cached by
+ * (name, type) and each record keeps its own TTL; records are handed out with
+ * their remaining TTL. The A records of the mail exchanges of an MX answer,
+ * found in the additional section, are kept as glue with that answer and
+ * returned with it. They are never used to answer A queries, since the server
+ * of a domain has no authority for the addresses of hosts in other domains.
+ *
+ * Negative answers are cached per RFC 2308. NXDOMAIN (RCODE_NAME_ERROR) is
+ * cached for the name (all types), NODATA (no error, but no answers) is cached
+ * for the (name, type). The negative TTL is the smaller of the SOA record TTL
+ * and the SOA MINIMUM field. Negative answers without an SOA record are not
+ * cached.
+ *
+ * Lookups don't take any lock. When the cache is full, a small sample of
+ * entries is checked and the one that expires first is evicted. The samples
+ * are taken in turn around the whole table, like the hand of a clock.
+ *
+ * @author Douglas Ahlquist
+ * @see com.ahlquist.common.net.dns.DnsResolver
+ */
+final class DnsRecordCache extends MyObject {
+	final static Logger logger = Logger.getLogger(DnsRecordCache.class);
+
+	/** Default maximum number of cached (name, type) entries */
+	private static final int DEFAULT_MAX_SIZE = 10000;
+	/** Maximum TTL in seconds for positive answers (same as BIND default) */
+	private static final int MAX_TTL = 7 * 24 * 3600;
+	/** Maximum TTL in seconds for negative answers (same as BIND default) */
+	private static final int MAX_NEGATIVE_TTL = 3 * 3600;
+	/** Number of entries to look at when making room in a full cache */
+	private static final int EVICTION_SAMPLE_SIZE = 8;
+	/** Key type used for NXDOMAIN entries, which apply to all types */
+	private static final int TYPE_NAME_ERROR = 0;
+
+	private static final DnsRecord[] NO_RECORDS = new DnsRecord[0];
+
+	private static DnsRecordCache instance = null;
+
+	private ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
+	/** Maximum number of entries. 0 disables the cache. */
+	private volatile int maxSize = DEFAULT_MAX_SIZE;
+	/** Where the last eviction sample ended, see makeRoom() */
+	private Iterator<Map.Entry<String, Entry>> evictionHand;
+
+	/** Cache hits (positive answers) */
+	private AtomicLong hits = new AtomicLong();
+	/** Cache hits (negative answers) */
+	private AtomicLong negativeHits = new AtomicLong();
+	/** Cache misses */
+	private AtomicLong misses = new AtomicLong();
+
+	private DnsRecordCache() {
+	}
+
+	/**
+	 * Singleton
+	 */
+	static DnsRecordCache getInstance() {
+		if (instance == null) {
+			synchronized (DnsRecordCache.class) {
+				if (instance == null)
+					instance = new DnsRecordCache();
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Sets the maximum number of cached entries. 0 disables the cache.
+	 */
+	void setMaxSize(int maxSize) {
+		this.maxSize = maxSize;
+		if (maxSize == 0)
+			cache.clear();
+	}
+
+	/**
+	 * Returns the number of cached entries (some of them may have expired)
+	 */
+	int size() {
+		return cache.size();
+	}
+
+	/** Returns the number of positive cache hits */
+	long getHits() {
+		return hits.get();
+	}
+
+	/** Returns the number of negative cache hits */
+	long getNegativeHits() {
+		return negativeHits.get();
+	}
+
+	/** Returns the number of cache misses */
+	long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Returns a cached response for a query, or null if nothing (alive) is
+	 * cached. The records in the response carry their remaining TTL.
+	 *
+	 * @param name
+	 *            the domain name
+	 * @param type
+	 *            the type of query
+	 */
+	DnsResponse get(String name, int type) {
+		if (maxSize == 0)
+			return null;
+
+		long now = MyTime.getCurrentMillis();
+
+		// A cached NXDOMAIN answers all types for the name
+		Entry entry = getEntry(makeKey(name, TYPE_NAME_ERROR), now);
+		if (entry == null)
+			entry = getEntry(makeKey(name, type), now);
+
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+
+		if (entry.answers.length == 0) {
+			negativeHits.incrementAndGet();
+			return new DnsResponse(entry.rCode, NO_RECORDS, entry.getRecords(entry.authorities, now), NO_RECORDS);
+		}
+
+		hits.incrementAndGet();
+		DnsRecord[] answers = entry.getRecords(entry.answers, now);
+		return new DnsResponse(entry.rCode, answers, NO_RECORDS, entry.getRecords(entry.glue, now));
+	}
+
+	/**
+	 * Caches the records of a response. Only NOERROR and NAME_ERROR responses
+	 * are cached, and only if they are complete (not truncated).
+	 *
+	 * @param name
+	 *            the domain name that was queried
+	 * @param type
+	 *            the type of query that was performed
+	 * @param response
+	 *            the response from the name server
+	 */
+	void put(String name, int type, DnsResponse response) {
+		if (maxSize == 0 || response.isTruncated())
+			return;
+
+		long now = MyTime.getCurrentMillis();
+		int rCode = response.getResponseCode();
+
+		if (rCode == DnsResponse.RCODE_NOERROR && response.getAnswerCount() > 0) {
+			DnsRecord[] answers = new DnsRecord[response.getAnswerCount()];
+			for (int i = 0; i < answers.length; i++)
+				answers[i] = response.getAnswer(i);
+			DnsRecord[] glue = (type == DnsRecord.TYPE_MX) ? response.getGlue() : NO_RECORDS;
+			putEntry(makeKey(name, type), new Entry(rCode, answers, NO_RECORDS, glue, now, MAX_TTL));
+		} else if (rCode == DnsResponse.RCODE_NOERROR || rCode == DnsResponse.RCODE_NAME_ERROR) {
+			// Negative answer, we need the SOA record to know how long to
+			// cache it (RFC 2308)
+			DnsRecord[] soas = response.findRecords(DnsMessageView.SECTION_AUTHORITY, DnsRecord.TYPE_SOA, null);
+			if (soas.length == 0)
+				return;
+
+			DnsSoaRecord soa = (DnsSoaRecord) soas[0];
+			int negativeTTL = Math.min(soa.getTTL(), soa.getMinimum());
+			DnsRecord[] authorities = new DnsRecord[] { soa.copyWithTTL(negativeTTL) };
+			int keyType = (rCode == DnsResponse.RCODE_NAME_ERROR) ? TYPE_NAME_ERROR : type;
+			putEntry(makeKey(name, keyType),
+					new Entry(rCode, NO_RECORDS, authorities, NO_RECORDS, now, MAX_NEGATIVE_TTL));
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache
+	 */
+	void clear() {
+		cache.clear();
+	}
+
+	/**
+	 * Returns a live entry, or null. Expired entries are removed.
+	 */
+	private Entry getEntry(String key, long now) {
+		Entry entry = cache.get(key);
+		if (entry != null && entry.expires <= now) {
+			cache.remove(key, entry);
+			entry = null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Adds an entry, making room for it first if the cache is full
+	 */
+	private void putEntry(String key, Entry entry) {
+		if (entry.expires <= MyTime.getCurrentMillis())
+			// TTL=0, not to be cached
+			return;
+
+		if (cache.size() >= maxSize)
+			makeRoom();
+		cache.put(key, entry);
+	}
+
+	/**
+	 * Evicts one entry. Looks at a sample of entries, and removes the first
+	 * expired one found, or the one that will expire first. The sample starts
+	 * where the last one ended and wraps around at the end of the table.
+	 */
+	private synchronized void makeRoom() {
+		long now = MyTime.getCurrentMillis();
+		Map.Entry<String, Entry> victim = null;
+		for (int i = 0; i < EVICTION_SAMPLE_SIZE; i++) {
+			if (evictionHand == null || !evictionHand.hasNext()) {
+				evictionHand = cache.entrySet().iterator();
+				if (!evictionHand.hasNext())
+					break;
+			}
+			Map.Entry<String, Entry> candidate = evictionHand.next();
+			if (victim == null || candidate.getValue().expires < victim.getValue().expires)
+				victim = candidate;
+			if (victim.getValue().expires <= now)
+				break;
+		}
+		if (victim != null) {
+			logger.debug("DnsRecordCache - evicting: " + victim.getKey());
+			cache.remove(victim.getKey(), victim.getValue());
+		}
+	}
+
+	/**
+	 * Makes a cache key from a name and a type. Names are case insensitive.
+	 */
+	private static String makeKey(String name, int type) {
+		return name.toLowerCase() + '/' + type;
+	}
+
+	/**
+	 * A cached (name, type) entry. Immutable.
+	 */
+	private static final class Entry {
+		/** Response code */
+		final int rCode;
+		/** Answer records (empty for negative answers) */
+		final DnsRecord[] answers;
+		/** Authority records (the SOA record for negative answers) */
+		final DnsRecord[] authorities;
+		/** A records of the mail exchanges of MX answers */
+		final DnsRecord[] glue;
+		/**
+		 * Time when each record expires, answers first, then authorities, then
+		 * glue
+		 */
+		final long[] recordExpires;
+		/**
+		 * Time when the entry expires (the earliest answer or authority
+		 * expiry). Glue that expires before is dropped from the entry.
+		 */
+		final long expires;
+
+		Entry(int rCode, DnsRecord[] answers, DnsRecord[] authorities, DnsRecord[] glue, long now, int maxTTL) {
+			this.rCode = rCode;
+			this.answers = answers;
+			this.authorities = authorities;
+			this.glue = glue;
+			int records = answers.length + authorities.length;
+			recordExpires = new long[records + glue.length];
+			long earliest = Long.MAX_VALUE;
+			for (int i = 0; i < recordExpires.length; i++) {
+				DnsRecord record;
+				if (i < answers.length)
+					record = answers[i];
+				else if (i < records)
+					record = authorities[i - answers.length];
+				else
+					record = glue[i - records];
+				// TTL is an unsigned 32-bit value, treat "negative" values as
+				// the maximum
+				long ttl = record.getTTL() < 0 ? maxTTL : Math.min(record.getTTL(), maxTTL);
+				recordExpires[i] = now + ttl * 1000;
+				if (i < records && recordExpires[i] < earliest)
+					earliest = recordExpires[i];
+			}
+			expires = earliest;
+		}
+
+		/**
+		 * Returns copies of the live records with their remaining TTL
+		 *
+		 * @param records
+		 *            either answers, authorities or glue of this entry
+		 */
+		DnsRecord[] getRecords(DnsRecord[] records, long now) {
+			int offset;
+			if (records == answers)
+				offset = 0;
+			else if (records == authorities)
+				offset = answers.length;
+			else
+				offset = answers.length + authorities.length;
+			DnsRecord[] copies = new DnsRecord[records.length];
+			int count = 0;
+			for (int i = 0; i < records.length; i++) {
+				if (recordExpires[offset + i] <= now)
+					continue;
+				int ttl = (int) ((recordExpires[offset + i] - now + 999) / 1000);
+				copies[count++] = records[i].copyWithTTL(ttl);
+			}
+			if (count < copies.length) {
+				DnsRecord[] live = new DnsRecord[count];
+				System.arraycopy(copies, 0, live, 0, count);
+				copies = live;
+			}
+			return copies;
+		}
+	}
+}
@@ -6,6 +6,8 @@ import org.apache.log4j.Logger;
 
 import java.net.*;
 import java.io.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is a DNS stub resolver. It extracts DNS information from name
@@ -51,6 +53,30 @@ public final class DnsResolver extends MyObject {
 	/** message/query id */
 	private static int queryId = 0;
 
+	/** Maximum size of a UDP message without EDNS0 (RFC 1035) */
+	static final int UDP_MESSAGE_LENGTH = 512;
+	/** Maximum UDP payload size that can be advertised with EDNS0 */
+	static final int MAX_EDNS_PAYLOAD_SIZE = 4096;
+	/** Default advertised UDP payload size (avoids IP fragmentation) */
+	private static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+	/** Maximum size of a TCP message (two byte length prefix) */
+	private static final int MAX_TCP_MESSAGE_LENGTH = 0xFFFF;
+
+	/** Length of the EDNS0 OPT record at the end of a query */
+	private static final int OPT_RECORD_LENGTH = 11;
+	/** Advertised UDP payload size, 0 if EDNS0 is not used */
+	private static volatile int ednsPayloadSize = DEFAULT_EDNS_PAYLOAD_SIZE;
+
+	/** Minimum delay in milliseconds before a hedged query is sent */
+	private static final int MIN_HEDGE_DELAY_MILLIS = 10;
+
+	/** If hedged queries are sent to a second name server */
+	private static volatile boolean isHedging = false;
+	/** Number of hedged queries sent */
+	private static AtomicLong hedgedQueries = new AtomicLong();
+	/** Number of hedged queries that were answered first */
+	private static AtomicLong hedgedQueryWins = new AtomicLong();
+
 	/** UDP socket */
 	private DatagramSocket udpSocket;
 	/** Query message */
@@ -58,6 +84,16 @@ public final class DnsResolver extends MyObject {
 	/** Response message */
 	private byte[] responseMessage;
 
+	/** Used to check responses */
+	private DnsMessageView view = new DnsMessageView();
+
+	/** TCP socket, kept open for reuse. Opened on demand. */
+	private Socket tcpSocket;
+	/** The name server the TCP socket is connected to */
+	private InetSocketAddress tcpAddress;
+	/** TCP response message. Allocated on demand. */
+	private byte[] tcpMessage;
+
 	/**
 	 * Creates an object pool for object reuse. This is a performance
 	 * optimization to save on object creation. If this method isn't called, the
@@ -72,6 +108,66 @@ public final class DnsResolver extends MyObject {
 		poolSize = 0;
 	}
 
+	/**
+	 * Sets the maximum number of (name, type) entries in the DNS record cache.
+	 * All lookups are answered from the cache when possible. A size of 0
+	 * disables the cache.
+	 *
+	 * @param size
+	 *            the maximum number of cached entries
+	 */
+	public static void setCacheSize(int size) {
+		DnsRecordCache.getInstance().setMaxSize(size);
+	}
+
+	/**
+	 * Sets the UDP payload size advertised to the name servers with an EDNS0
+	 * OPT record (RFC 6891). Larger answers, such as big MX sets, then fit in
+	 * one UDP message. Answers that still don't fit come back truncated and
+	 * are retried over TCP. The default is 1232 bytes. A size of 0 turns EDNS0
+	 * off (512 byte UDP messages). A name server that rejects EDNS0 queries with
+	 * FORMERR or NOTIMP is asked again without it, and is sent plain queries
+	 * from then on. TCP queries never carry EDNS0.
+	 *
+	 * @param size
+	 *            the payload size in bytes (512 - 4096), or 0
+	 */
+	public static void setEdnsPayloadSize(int size) {
+		if (size != 0)
+			size = Math.max(UDP_MESSAGE_LENGTH, Math.min(size, MAX_EDNS_PAYLOAD_SIZE));
+		ednsPayloadSize = size;
+	}
+
+	/**
+	 * Enables hedged queries. When a name server hasn't answered a UDP query
+	 * within its usual (95th percentile) round trip time, the same query is
+	 * also sent to the next best name server, and the first answer is used.
+	 * This cuts the tail latency when one name server is degraded, at the cost
+	 * of a few extra queries. Hedging is disabled by default, and requires
+	 * more than one name server.
+	 *
+	 * @param enabled
+	 *            true to send hedged queries
+	 */
+	public static void setHedgedQueries(boolean enabled) {
+		isHedging = enabled;
+	}
+
+	/**
+	 * Returns the number of hedged queries sent
+	 */
+	public static long getHedgedQueries() {
+		return hedgedQueries.get();
+	}
+
+	/**
+	 * Returns the number of hedged queries that were answered before the
+	 * original query
+	 */
+	public static long getHedgedQueryWins() {
+		return hedgedQueryWins.get();
+	}
+
 	/**
 	 * Gets an instance of a DnsResolver. If we have a cached object in the pool
 	 * we will return it, otherwise we will create a new object.
@@ -104,18 +200,34 @@ public final class DnsResolver extends MyObject {
 	 *
 	 */
 	private DnsResolver() {
-		qMessage = new byte[512];
-		responseMessage = new byte[512];
+		qMessage = new byte[UDP_MESSAGE_LENGTH];
+		responseMessage = new byte[MAX_EDNS_PAYLOAD_SIZE];
 	}
 
 	/**
-	 * Closes socket if open
+	 * Closes sockets if open
 	 */
 	private void close() {
 		if (udpSocket != null) {
 			udpSocket.close();
 			udpSocket = null;
 		}
+		closeTcp();
+	}
+
+	/**
+	 * Closes the TCP socket if open
+	 */
+	private void closeTcp() {
+		if (tcpSocket != null) {
+			try {
+				tcpSocket.close();
+			} catch (IOException e) {
+				// Nothing we can do
+			}
+			tcpSocket = null;
+			tcpAddress = null;
+		}
 	}
 
 	/**
@@ -131,11 +243,36 @@ public final class DnsResolver extends MyObject {
 	 * @see com.ahlquist.common.net.dns.DnsRecord
 	 */
 	public static DnsResponse lookup(String qName, int qType) {
+		return lookup(qName, qType, true);
+	}
+
+	/**
+	 * Queries a DNS name server and returns a DNS message/response, optionally
+	 * bypassing the record cache. The response replaces what is cached either
+	 * way. The returned DnsResponse will never be null.
+	 *
+	 * @param qName
+	 *            the domain name to be resolved
+	 * @param qType
+	 *            the type of query to be performed
+	 * @param useCache
+	 *            false to always query the name server, so the records have
+	 *            their full TTL
+	 */
+	static DnsResponse lookup(String qName, int qType, boolean useCache) {
 		if (isFirstTime)
 			initialize();
 
+		// Try the record cache first
+		DnsResponse response = useCache ? DnsRecordCache.getInstance().get(qName, qType) : null;
+		if (response != null) {
+			logger.debug("Cached:   NAME=" + qName + " TYPE=" + qType + " " + response);
+			return response;
+		}
+
 		DnsResolver resolver = getInstance();
-		DnsResponse response = resolver.query(qName, qType);
+		response = resolver.query(qName, qType);
+		DnsRecordCache.getInstance().put(qName, qType, response);
 		// Close resolver if lookup fails, otherwise cache it
 		if (response.getResponseCode() != DnsResponse.RCODE_NOERROR) {
 			resolver.close();
@@ -147,12 +284,89 @@ public final class DnsResolver extends MyObject {
 		return response;
 	}
 
+	/**
+	 * Queries a DNS name server over TCP. Used by the asynchronous resolver
+	 * when a UDP response is truncated. The returned DnsResponse will never be
+	 * null. The response is not cached.
+	 *
+	 * @param qName
+	 *            the domain name to be resolved
+	 * @param qType
+	 *            the type of query to be performed
+	 */
+	static DnsResponse lookupTcp(String qName, int qType) {
+		DnsResolver resolver = getInstance();
+		DnsResponse response = resolver.queryTcp(qName, qType);
+		// Close resolver if lookup fails, otherwise cache it
+		int rCode = response.getResponseCode();
+		if (rCode != DnsResponse.RCODE_NOERROR && rCode != DnsResponse.RCODE_NAME_ERROR)
+			resolver.close();
+		else
+			releaseInstance(resolver);
+		return response;
+	}
+
+	/**
+	 * Queries a DNS name server asynchronously. The returned future is
+	 * completed with a DnsResponse (never null, and never exceptionally) when
+	 * the lookup is done. The calling thread is not blocked; all asynchronous
+	 * queries share one non-blocking UDP channel.
+	 * <p>
+	 * The future is completed on one of a few callback threads, never on the
+	 * thread serving the channel, so continuations can't stall other lookups.
+	 * Still, continuations that block for long hold up the callback threads;
+	 * use the *Async methods with an executor of your own for those. A cached
+	 * response is returned as an already completed future, whose continuations
+	 * run in the calling thread.
+	 *
+	 * <pre>
+	 * DnsResolver.lookupAsync("ahlquist.com", DnsRecord.TYPE_MX).thenAccept(response -&gt; {
+	 * 	if (response.getResponseCode() == DnsResponse.RCODE_NOERROR)
+	 * 		...
+	 * });
+	 * </pre>
+	 *
+	 * @param qName
+	 *            the domain name to be resolved
+	 * @param qType
+	 *            the type of query to be performed. See DnsRecord for possible
+	 *            types.
+	 * @see com.ahlquist.common.net.dns.DnsResponse
+	 * @see com.ahlquist.common.net.dns.DnsRecord
+	 */
+	public static CompletableFuture<DnsResponse> lookupAsync(String qName, int qType) {
+		if (isFirstTime)
+			initialize();
+
+		// Try the record cache first
+		DnsResponse cached = DnsRecordCache.getInstance().get(qName, qType);
+		if (cached != null) {
+			logger.debug("Cached:   NAME=" + qName + " TYPE=" + qType + " " + cached);
+			return CompletableFuture.completedFuture(cached);
+		}
+
+		DnsAsyncResolver resolver = DnsAsyncResolver.getInstance();
+		if (resolver == null) {
+			getErrorMonitor().failed();
+			return CompletableFuture.completedFuture(new DnsResponse(DnsResponse.RCODE_SPECIAL_IO_FAILURE));
+		}
+
+		return resolver.query(qName, qType).thenApplyAsync(response -> {
+			DnsRecordCache.getInstance().put(qName, qType, response);
+			if (response.getResponseCode() != DnsResponse.RCODE_NOERROR)
+				getErrorMonitor().failed();
+			else
+				getErrorMonitor().succeeded();
+			return response;
+		}, resolver.getCallbackExecutor());
+	}
+
 	// Begin implementation methods
 
 	/**
 	 * gets the next query/message id
 	 */
-	private static synchronized int getNextId() {
+	static synchronized int getNextId() {
 		queryId = (queryId + 1) & 0xFFFF;
 		return queryId;
 	}
@@ -186,35 +400,101 @@ public final class DnsResolver extends MyObject {
 			return new DnsResponse(DnsResponse.RCODE_SPECIAL_IO_FAILURE);
 		}
 
-		// Decode response packet
-		DnsByteArray ba = new DnsByteArray(responseMessage, responseLength);
-
-		// Build the DNS response from the byte array
-		DnsResponse response;
-		try {
-			response = new DnsResponse(ba);
-		} catch (ArrayIndexOutOfBoundsException e) {
-			// Check if we read past the end of the response message
-			if (!ba.isPastEnd()) {
-				// Bad code somewere else, rethrow!
-				throw e;
-			}
-			response = null;
+		// Check the TC bit before decoding, a truncated message may end in the
+		// middle of a record
+		if (isTruncated(responseMessage)) {
+			logger.debug("Truncated response: ID=" + id + " NAME=" + qName + " TYPE=" + qType + ", retrying over TCP");
+			DnsResponse response = queryTcp(qName, qType);
+			int rCode = response.getResponseCode();
+			if (rCode == DnsResponse.RCODE_NOERROR || rCode == DnsResponse.RCODE_NAME_ERROR)
+				return response;
+			// TCP failed, make do with what we got over UDP
+		}
+
+		return decodeResponse(view, id, qName, qType, responseMessage, responseLength);
+	}
+
+	/**
+	 * Queries a DNS name server over TCP and returns a DNS message/response
+	 *
+	 * @param qName
+	 *            the domain name to be resolved
+	 * @param qType
+	 *            the type of query to be performed
+	 * @see com.ahlquist.common.net.dns.DnsResponse
+	 */
+	private DnsResponse queryTcp(String qName, int qType) {
+		// Make query/question Message
+		int id = getNextId();
+		// The payload size only matters for UDP
+		int qLength = removeEdns(qMessage, createQueryMessage(id, qName, qType, qMessage));
+		if (qLength == 0) {
+			// We got a malformed packet
+			logger.debug("Invalid qName: ID=" + id + " NAME=" + qName + " TYPE=" + qType);
+			return new DnsResponse(DnsResponse.RCODE_SPECIAL_FORMAT_ERROR);
 		}
 
-		// Check if we read past the end of the response message
-		if (ba.isPastEnd()) {
+		logger.debug("Query:    ID=" + id + " NAME=" + qName + " TYPE=" + qType + " (TCP)");
+
+		if (tcpMessage == null)
+			tcpMessage = new byte[MAX_TCP_MESSAGE_LENGTH];
+
+		// Send query and get response using TCP
+		int responseLength = sendReceiveTcp(qMessage, qLength, tcpMessage);
+		if (responseLength <= 0) {
+			logger.debug("Failed query: ID=" + id + " NAME=" + qName + " TYPE=" + qType + " (TCP)");
+			return new DnsResponse(DnsResponse.RCODE_SPECIAL_IO_FAILURE);
+		}
+
+		return decodeResponse(view, id, qName, qType, tcpMessage, responseLength);
+	}
+
+	/**
+	 * If the TC (truncated) bit is set in the header of a message
+	 *
+	 * @param message
+	 *            the response message (at least 4 bytes)
+	 */
+	static boolean isTruncated(byte[] message) {
+		return (message[2] & 0x02) != 0;
+	}
+
+	/**
+	 * Decodes a response packet and checks that it is well formed and matches
+	 * the query id. Returns a DnsResponse, or an error DnsResponse if the
+	 * packet is malformed or has the wrong id. Only the header is decoded
+	 * here, the records are decoded by the DnsResponse when they are asked
+	 * for.
+	 *
+	 * @param view
+	 *            a message view to check the packet with
+	 * @param id
+	 *            the query/message id
+	 * @param qName
+	 *            the domain name that was queried (for logging)
+	 * @param qType
+	 *            the type of query that was performed (for logging)
+	 * @param rMessage
+	 *            the response message
+	 * @param rLength
+	 *            the response message length
+	 */
+	static DnsResponse decodeResponse(DnsMessageView view, int id, String qName, int qType, byte[] rMessage,
+			int rLength) {
+		// Check the whole response packet without decoding it
+		if (!view.wrap(rMessage, rLength)) {
 			// We got a malformed packet
 			logger.debug("Malformed response: ID=" + id + " NAME=" + qName + " TYPE=" + qType);
 			return new DnsResponse(DnsResponse.RCODE_SPECIAL_FORMAT_ERROR);
 		}
 
 		// Check if the response packet id is the same as the query packet id
-		if (id != response.getID()) {
-			logger.debug("Wrong response (for ID=" + id + "): " + response.toString());
+		if (id != view.getId()) {
+			logger.debug("Wrong response (for ID=" + id + "): ID=" + view.getId());
 			return new DnsResponse(DnsResponse.RCODE_SPECIAL_WRONG_ID);
 		}
 
+		DnsResponse response = new DnsResponse(view, rMessage, rLength);
 		logger.debug("Response: " + response.toString());
 
 		return response;
@@ -237,6 +517,7 @@ public final class DnsResolver extends MyObject {
 		// Query packet
 		DnsNameServer server = getNameServer();
 		DatagramPacket queryPacket = new DatagramPacket(qMessage, qLength, server.getAddress(), server.getPort());
+		int id = ((qMessage[0] & 0xFF) << 8) | (qMessage[1] & 0xFF);
 
 		// Response packet
 		DatagramPacket responsePacket = new DatagramPacket(rMessage, rLength);
@@ -263,17 +544,60 @@ public final class DnsResolver extends MyObject {
 		for (int i = 0; i < tries; i++) {
 			// Send query packet and receive response packet
 			try {
-				udpSocket.setSoTimeout(tryTimeout);
+				if (!server.isEdnsSupported()) {
+					qLength = removeEdns(qMessage, qLength);
+					queryPacket.setLength(qLength);
+				}
+				// Wait the usual round trip time of the server before hedging
+				int hedgeDelay = getHedgeDelay(server, tryTimeout);
+				long sentTime = MyTime.getCurrentMillis();
 				udpSocket.send(queryPacket);
-				udpSocket.receive(responsePacket);
+				DnsNameServer hedgeServer = null;
+				long hedgeTime = 0;
+				try {
+					receiveUdp(responsePacket, rLength, id, server, null,
+							sentTime + (hedgeDelay > 0 ? hedgeDelay : tryTimeout));
+				} catch (SocketTimeoutException e) {
+					if (hedgeDelay <= 0)
+						throw e;
+					// Slower than usual, ask the next best server as well
+					hedgeServer = selectNameServer(server);
+					if (hedgeServer != null) {
+						logger.debug("Hedged query: ID=" + id + " (SERVER=[" + hedgeServer + "])");
+						hedgeTime = MyTime.getCurrentMillis();
+						udpSocket.send(new DatagramPacket(qMessage, qLength, hedgeServer.getAddress(),
+								hedgeServer.getPort()));
+						hedgedQueries.incrementAndGet();
+					}
+					receiveUdp(responsePacket, rLength, id, server, hedgeServer, sentTime + tryTimeout);
+				}
+
+				long now = MyTime.getCurrentMillis();
+				// The original server took at least this long
+				server.addRttSample(now - sentTime);
+				if (hedgeServer != null && isFrom(responsePacket, hedgeServer)) {
+					// The hedged query won
+					hedgedQueryWins.incrementAndGet();
+					server = hedgeServer;
+					server.addRttSample(now - hedgeTime);
+					// Ask it again if it rejects EDNS0
+					queryPacket.setAddress(server.getAddress());
+					queryPacket.setPort(server.getPort());
+				}
+				if (hasEdns(qMessage) && responsePacket.getLength() >= 4 && isEdnsRejected(rMessage)) {
+					// Ask again without the OPT record, this isn't a failed try
+					logger.debug("EDNS0 rejected: ID=" + id + " (SERVER=[" + server + "]), retrying without it");
+					server.ednsRejected();
+					i--;
+					continue;
+				}
 				success = true;
 				break;
 			} catch (IOException e) {
 				// Temporary IO failure, try again
 			}
 
-			logger.debug("Failed query attempt: ID=" + (((qMessage[0] & 0xFF) << 8) | (qMessage[1] & 0xFF))
-					+ " (RETRIES=" + i + ", SERVER=[" + server + "])");
+			logger.debug("Failed query attempt: ID=" + id + " (RETRIES=" + i + ", SERVER=[" + server + "])");
 
 			// Double the timeout for each retry
 			tryTimeout *= 2;
@@ -292,13 +616,11 @@ public final class DnsResolver extends MyObject {
 			if (responseLength >= 4) {
 				int rCode = responsePacket.getData()[3] & 0xF;
 				if (rCode == DnsResponse.RCODE_NOERROR || rCode == DnsResponse.RCODE_NAME_ERROR) {
-					logger.debug("Query success: ID=" + (((qMessage[0] & 0xFF) << 8) | (qMessage[1] & 0xFF))
-							+ " (RCODE=" + rCode + ", SERVER=[" + server + "])");
+					logger.debug("Query success: ID=" + id + " (RCODE=" + rCode + ", SERVER=[" + server + "])");
 					// Success, return packet length
 					return responseLength;
 				} else {
-					logger.debug("Failed query: ID=" + (((qMessage[0] & 0xFF) << 8) | (qMessage[1] & 0xFF)) + " (RCODE="
-							+ rCode + ", SERVER=[" + server + "])");
+					logger.debug("Failed query: ID=" + id + " (RCODE=" + rCode + ", SERVER=[" + server + "])");
 				}
 			}
 			// REVIEWed: Fail server also when responseLength < 4
@@ -310,9 +632,172 @@ public final class DnsResolver extends MyObject {
 		return 0;
 	}
 
+	/**
+	 * Receives the response to a UDP query. Packets with another id, such as
+	 * late responses to earlier queries or to the hedged query of an earlier
+	 * lookup, and packets from other addresses are discarded, since the
+	 * socket is shared by all the queries of this resolver.
+	 *
+	 * @param responsePacket
+	 *            the response packet (out)
+	 * @param rLength
+	 *            the response message length (in)
+	 * @param id
+	 *            the query/message id
+	 * @param server
+	 *            the name server the query was sent to
+	 * @param hedgeServer
+	 *            the name server a hedged query was sent to, or null
+	 * @param deadline
+	 *            the time to give up at
+	 * @exception SocketTimeoutException
+	 *                if no response came before the deadline
+	 */
+	private void receiveUdp(DatagramPacket responsePacket, int rLength, int id, DnsNameServer server,
+			DnsNameServer hedgeServer, long deadline) throws IOException {
+		byte[] rMessage = responsePacket.getData();
+		while (true) {
+			long timeout = deadline - MyTime.getCurrentMillis();
+			if (timeout <= 0)
+				throw new SocketTimeoutException("Timed out waiting for ID=" + id);
+			udpSocket.setSoTimeout((int) timeout);
+			responsePacket.setLength(rLength);
+			udpSocket.receive(responsePacket);
+
+			if (responsePacket.getLength() >= 2 && (((rMessage[0] & 0xFF) << 8) | (rMessage[1] & 0xFF)) == id
+					&& (isFrom(responsePacket, server) || (hedgeServer != null && isFrom(responsePacket, hedgeServer))))
+				return;
+			logger.debug("Discarded stray response (for ID=" + id + "): ID="
+					+ (responsePacket.getLength() >= 2 ? (((rMessage[0] & 0xFF) << 8) | (rMessage[1] & 0xFF)) : -1)
+					+ " FROM=" + responsePacket.getSocketAddress());
+		}
+	}
+
+	/**
+	 * If a packet came from a name server
+	 */
+	private static boolean isFrom(DatagramPacket packet, DnsNameServer server) {
+		return server.getAddress().equals(packet.getAddress()) && server.getPort() == packet.getPort();
+	}
+
+	/**
+	 * Sends a query over TCP and waits for a response. Returns the length of
+	 * the received response, or 0 if the query failed. The connection is kept
+	 * open and reused for the next TCP query to the same name server. If a
+	 * reused connection turns out to be closed by the name server, one new
+	 * connection is tried.
+	 *
+	 * @param qMessage
+	 *            the query message (in)
+	 * @param qLength
+	 *            the query message length (in)
+	 * @param rMessage
+	 *            the response message, at least 65535 bytes (out)
+	 */
+	private int sendReceiveTcp(byte[] qMessage, int qLength, byte[] rMessage) {
+		DnsNameServer server = getNameServer();
+		InetSocketAddress address = new InetSocketAddress(server.getAddress(), server.getPort());
+		int id = ((qMessage[0] & 0xFF) << 8) | (qMessage[1] & 0xFF);
+
+		// Don't reuse a connection to some other server
+		if (tcpSocket != null && !address.equals(tcpAddress))
+			closeTcp();
+
+		int responseLength = 0;
+		for (int tries = 0; tries < 2; tries++) {
+			boolean isReused = (tcpSocket != null);
+			try {
+				if (tcpSocket == null) {
+					tcpSocket = new Socket();
+					tcpAddress = address;
+					tcpSocket.setTcpNoDelay(true);
+					tcpSocket.connect(address, getTimeout());
+				}
+				tcpSocket.setSoTimeout(getTimeout());
+
+				// Both the query and the response are prefixed with a two byte
+				// length (RFC 1035 4.2.2)
+				OutputStream out = tcpSocket.getOutputStream();
+				byte[] lengthPrefix = { (byte) (qLength >> 8), (byte) (qLength & 0xFF) };
+				out.write(lengthPrefix);
+				out.write(qMessage, 0, qLength);
+				out.flush();
+
+				long sentTime = MyTime.getCurrentMillis();
+				DataInputStream in = new DataInputStream(tcpSocket.getInputStream());
+				responseLength = in.readUnsignedShort();
+				in.readFully(rMessage, 0, responseLength);
+				if (isReused)
+					// Only count the RTT when there was no connection setup
+					server.addRttSample(MyTime.getCurrentMillis() - sentTime);
+				break;
+			} catch (IOException e) {
+				closeTcp();
+				responseLength = 0;
+				logger.debug("Failed query attempt: ID=" + id + " (TCP, REUSED=" + isReused + ", SERVER=[" + server
+						+ "])");
+				if (!isReused)
+					break;
+				// The server closed the idle connection, try a new one
+			}
+		}
+
+		if (responseLength >= 4) {
+			int rCode = rMessage[3] & 0xF;
+			if (rCode == DnsResponse.RCODE_NOERROR || rCode == DnsResponse.RCODE_NAME_ERROR) {
+				logger.debug("Query success: ID=" + id + " (RCODE=" + rCode + ", TCP, SERVER=[" + server + "])");
+				return responseLength;
+			}
+			logger.debug("Failed query: ID=" + id + " (RCODE=" + rCode + ", TCP, SERVER=[" + server + "])");
+		} else if (responseLength > 0)
+			logger.debug("Failed query: Response length=" + responseLength + ", TCP, SERVER=[" + server + "])");
+		server.failed();
+		return 0;
+	}
+
+	/**
+	 * If a query message has an EDNS0 OPT record
+	 *
+	 * @param qMessage
+	 *            the query message
+	 */
+	static boolean hasEdns(byte[] qMessage) {
+		// ARCOUNT, the OPT record is the only additional record of a query
+		return qMessage[11] != 0;
+	}
+
+	/**
+	 * Removes the EDNS0 OPT record from a query message, if it has one. Returns
+	 * the new length of the message.
+	 *
+	 * @param qMessage
+	 *            the query message (in/out)
+	 * @param qLength
+	 *            the query message length, 0 for an invalid message
+	 */
+	static int removeEdns(byte[] qMessage, int qLength) {
+		if (qLength == 0 || !hasEdns(qMessage))
+			return qLength;
+		qMessage[11] = 0;
+		return qLength - OPT_RECORD_LENGTH;
+	}
+
+	/**
+	 * If a response says the name server doesn't understand EDNS0, i.e. it has
+	 * RCODE FORMERR or NOTIMP (RFC 6891 section 7)
+	 *
+	 * @param rMessage
+	 *            the response message (at least 4 bytes)
+	 */
+	static boolean isEdnsRejected(byte[] rMessage) {
+		int rCode = rMessage[3] & 0xF;
+		return rCode == DnsResponse.RCODE_FORMAT_ERROR || rCode == DnsResponse.RCODE_NOT_IMPLEMENTED;
+	}
+
 	/**
 	 * Creates a dns query message packet. Returns the length of the created
-	 * message.
+	 * message. An EDNS0 OPT record is added to the additional section unless
+	 * EDNS0 has been turned off.
 	 *
 	 * @param qId
 	 *            the message query id to be used (in)
@@ -323,7 +808,7 @@ public final class DnsResolver extends MyObject {
 	 * @param qMessage
 	 *            the resulting encoded message byte array (out)
 	 */
-	private int createQueryMessage(int qId, String qName, int qType, byte[] qMessage) {
+	static int createQueryMessage(int qId, String qName, int qType, byte[] qMessage) {
 		int qIndex = 0;
 
 		// Header section
@@ -361,6 +846,30 @@ public final class DnsResolver extends MyObject {
 		qMessage[qIndex++] = 0;
 		qMessage[qIndex++] = 1; // Always Internet
 
+		// Additional section
+		int payloadSize = ednsPayloadSize;
+		if (payloadSize > 0) {
+			// ARCOUNT
+			qMessage[11] = 1;
+			// EDNS0 OPT pseudo-record (RFC 6891)
+			// NAME (root)
+			qMessage[qIndex++] = 0;
+			// TYPE (OPT=41)
+			qMessage[qIndex++] = 0;
+			qMessage[qIndex++] = 41;
+			// CLASS = requestor's UDP payload size
+			qMessage[qIndex++] = (byte) (payloadSize >> 8);
+			qMessage[qIndex++] = (byte) (payloadSize & 0xFF);
+			// TTL = extended RCODE + VERSION + flags, all 0
+			qMessage[qIndex++] = 0;
+			qMessage[qIndex++] = 0;
+			qMessage[qIndex++] = 0;
+			qMessage[qIndex++] = 0;
+			// RDLENGTH (no options)
+			qMessage[qIndex++] = 0;
+			qMessage[qIndex++] = 0;
+		}
+
 		return qIndex; // qIndex == the length of the message
 	}
 
@@ -376,7 +885,7 @@ public final class DnsResolver extends MyObject {
 	 * @param name
 	 *            the domain name to encode (in)
 	 */
-	private int encodeName(byte[] message, int offset, String name) {
+	private static int encodeName(byte[] message, int offset, String name) {
 		int dotIndex;
 		int endIndex;
 		int fromIndex = 0;
@@ -418,10 +927,11 @@ public final class DnsResolver extends MyObject {
 	}
 
 	/**
-	 * Gets the DNS name server to be used for lookups.
+	 * Gets the DNS name server to be used for lookups. This is the valid name
+	 * server with the lowest score (smoothed RTT).
 	 */
-	private DnsNameServer getNameServer() {
-		DnsNameServer server = DNSNameServers.getInstance().getServer();
+	static DnsNameServer getNameServer() {
+		DnsNameServer server = selectNameServer(null);
 		// REVIEW: What if sys param has been changed under us, and is an
 		// invalid hostname?
 		// if (server == null || !server.isValid()) ...
@@ -438,6 +948,51 @@ public final class DnsResolver extends MyObject {
 		return server;
 	}
 
+	/**
+	 * Returns the valid name server with the lowest score (smoothed RTT), or
+	 * null if there is none.
+	 *
+	 * @param exclude
+	 *            a name server not to select (can be null)
+	 */
+	private static DnsNameServer selectNameServer(DnsNameServer exclude) {
+		VArray nameServers = DNSNameServers.getInstance().getDNSNameServers();
+		long now = MyTime.getCurrentMillis();
+		DnsNameServer best = null;
+		double bestScore = 0;
+		for (int i = 0; i < nameServers.size(); i++) {
+			DnsNameServer server = (DnsNameServer) nameServers.elementAt(i);
+			if (server == exclude || !server.isValid())
+				continue;
+			double score = server.getScore(now);
+			if (best == null || score < bestScore) {
+				best = server;
+				bestScore = score;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * Returns how long to wait for a name server before sending a hedged
+	 * query, or 0 if no hedged query should be sent.
+	 *
+	 * @param server
+	 *            the name server the query is sent to
+	 * @param tryTimeout
+	 *            the timeout for this attempt in milliseconds
+	 */
+	private static int getHedgeDelay(DnsNameServer server, int tryTimeout) {
+		if (!isHedging)
+			return 0;
+		long rtt95 = server.getRttPercentile95();
+		if (rtt95 < 0)
+			// Don't know what is usual for this server yet
+			return 0;
+		long delay = Math.max(rtt95, MIN_HEDGE_DELAY_MILLIS);
+		return (delay < tryTimeout) ? (int) delay : 0;
+	}
+
 	/**
 	 * Gets called the first time we use the resolver. Validates the DNS name
 	 * server(s) system parameter.
@@ -470,7 +1025,7 @@ public final class DnsResolver extends MyObject {
 	/**
 	 * Get the DNS lookup timout value in milliseconds.
 	 */
-	private int getTimeout() {
+	static int getTimeout() {
 		// Timeout for DNS lookups
 		return DNSTimeOutSeconds.getInstance().getInt() * 1000;
 	}
@@ -479,7 +1034,7 @@ public final class DnsResolver extends MyObject {
 	 * Gets the number of times to retry a DNS lookup that fails with a
 	 * temporary error. (The timeout value is doubled for each retry).
 	 */
-	private int getRetries() {
+	static int getRetries() {
 		// How many times to retry a DNS UDP query before giving up
 		return DNSRetries.getInstance().getInt();
 	}
@@ -488,7 +1043,7 @@ public final class DnsResolver extends MyObject {
 	 * Error monitor, notify administrator after DNS.MaxNameServerFailures
 	 * sequencial failures
 	 */
-	private static ErrorMonitor getErrorMonitor() {
+	static ErrorMonitor getErrorMonitor() {
 		if (errorMonitorInstance == null) {
 			synchronized (DnsResolver.class) {
 				if (errorMonitorInstance == null) {
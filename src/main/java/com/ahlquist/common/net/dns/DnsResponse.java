@@ -7,6 +7,13 @@ import com.ahlquist.common.util.MyObject;
  * This class is an abstraction of a DNS response message. It is used to get
  * information from a response for a DNS query.
  *
+ * The records of a response message are decoded lazily, one section at a
+ * time, the first time a record of the section is asked for. The questions
+ * are never decoded. findRecords() decodes only the records of a section with
+ * a given type and owner name, the others are checked in the message without
+ * creating any objects. The response keeps a copy of the message until all
+ * sections are decoded.
+ *
  * @author Douglas Ahlquist 12/15/2002
  */
 public final class DnsResponse extends MyObject {
@@ -57,6 +64,8 @@ public final class DnsResponse extends MyObject {
 	 */
 	public static final int RCODE_SPECIAL_FORMAT_ERROR = 103;
 
+	private static final DnsRecord[] NO_RECORDS = new DnsRecord[0];
+
 	// Header
 	/** id to match up queries and answers */
 	private int id;
@@ -75,21 +84,53 @@ public final class DnsResponse extends MyObject {
 	/** Number of resource records in the additional section */
 	private int arCount = 0;
 
-	/** Answer records */
-	private DnsRecord[] answers;
-	/** Authority records */
-	private DnsRecord[] authorities;
-	/** Additional records */
-	private DnsRecord[] additionals;
+	/** Answer records. Decoded on demand. */
+	private volatile DnsRecord[] answers;
+	/** Authority records. Decoded on demand. */
+	private volatile DnsRecord[] authorities;
+	/** Additional records. Decoded on demand. */
+	private volatile DnsRecord[] additionals;
+	/** A records of the mail exchanges, see getGlue() */
+	private volatile DnsRecord[] glue;
+
+	/**
+	 * The response message (a copy), null if not decoded from a message or
+	 * once all sections are decoded
+	 */
+	private byte[] message;
+	/** Offset of the first record of the answer section */
+	private int answerOffset;
+	/** Offset of the first record of the authority section */
+	private int authorityOffset;
+	/** Offset of the first record of the additional section */
+	private int additionalOffset;
 
 	/**
-	 * Constructor. Decodes the complete response message.
+	 * Constructor. Decodes the header of a response message. The records are
+	 * decoded when they are asked for.
 	 *
-	 * @param ba
-	 *            the packet of bytes to decode
+	 * @param view
+	 *            the message, wrapped and checked
+	 * @param rMessage
+	 *            the message bytes (copied)
+	 * @param rLength
+	 *            the message length
 	 */
-	DnsResponse(DnsByteArray ba) {
-		decode(ba);
+	DnsResponse(DnsMessageView view, byte[] rMessage, int rLength) {
+		id = view.getId();
+		aa = view.isAuthoritative();
+		tc = view.isTruncated();
+		rCode = view.getResponseCode();
+		anCount = view.getCount(DnsMessageView.SECTION_ANSWER);
+		nsCount = view.getCount(DnsMessageView.SECTION_AUTHORITY);
+		arCount = view.getCount(DnsMessageView.SECTION_ADDITIONAL);
+
+		answerOffset = view.getSectionOffset(DnsMessageView.SECTION_ANSWER);
+		authorityOffset = view.getSectionOffset(DnsMessageView.SECTION_AUTHORITY);
+		additionalOffset = view.getSectionOffset(DnsMessageView.SECTION_ADDITIONAL);
+
+		message = new byte[rLength];
+		System.arraycopy(rMessage, 0, message, 0, rLength);
 	}
 
 	/**
@@ -102,6 +143,29 @@ public final class DnsResponse extends MyObject {
 		rCode = result;
 	}
 
+	/**
+	 * Constructor. Creates a response message from a set of records. Used by
+	 * the record cache to answer a query without going to the name server.
+	 *
+	 * @param result
+	 *            the response code
+	 * @param answers
+	 *            the answer records
+	 * @param authorities
+	 *            the authority records
+	 * @param additionals
+	 *            the additional records
+	 */
+	DnsResponse(int result, DnsRecord[] answers, DnsRecord[] authorities, DnsRecord[] additionals) {
+		rCode = result;
+		this.answers = answers;
+		this.authorities = authorities;
+		this.additionals = additionals;
+		anCount = answers.length;
+		nsCount = authorities.length;
+		arCount = additionals.length;
+	}
+
 	/**
 	 * The message id of the response. It is not exposed as public, it is only
 	 * used by the resolver.
@@ -162,7 +226,10 @@ public final class DnsResponse extends MyObject {
 	 *            the index of the record to return.
 	 */
 	public DnsRecord getAnswer(int i) {
-		return answers[i];
+		DnsRecord[] records = answers;
+		if (records == null)
+			records = decodeSection(DnsMessageView.SECTION_ANSWER);
+		return records[i];
 	}
 
 	/**
@@ -172,7 +239,10 @@ public final class DnsResponse extends MyObject {
 	 *            the index of the record to return.
 	 */
 	public DnsRecord getAuthority(int i) {
-		return authorities[i];
+		DnsRecord[] records = authorities;
+		if (records == null)
+			records = decodeSection(DnsMessageView.SECTION_AUTHORITY);
+		return records[i];
 	}
 
 	/**
@@ -182,55 +252,196 @@ public final class DnsResponse extends MyObject {
 	 *            the index of the record to return.
 	 */
 	public DnsRecord getAdditional(int i) {
-		return additionals[i];
+		DnsRecord[] records = additionals;
+		if (records == null)
+			records = decodeSection(DnsMessageView.SECTION_ADDITIONAL);
+		return records[i];
+	}
+
+	/**
+	 * Returns the A records of the additional section whose owner is the mail
+	 * exchange of one of the MX answers, all of them for each exchange. The
+	 * other additional records are not decoded. The records found are kept, so
+	 * the record cache and MailHostResolver get the same ones.
+	 */
+	DnsRecord[] getGlue() {
+		DnsRecord[] records = glue;
+		if (records == null)
+			glue = records = findGlue();
+		return records;
+	}
+
+	/**
+	 * Finds the A records of the mail exchanges, see getGlue()
+	 */
+	private DnsRecord[] findGlue() {
+		String[] exchanges = new String[anCount];
+		int count = 0;
+		for (int i = 0; i < anCount; i++) {
+			if (getAnswer(i).getType() == DnsRecord.TYPE_MX)
+				exchanges[count++] = ((DnsMxRecord) getAnswer(i)).getMailExchange();
+		}
+		if (count == 0)
+			return NO_RECORDS;
+		if (count < exchanges.length) {
+			String[] exact = new String[count];
+			System.arraycopy(exchanges, 0, exact, 0, count);
+			exchanges = exact;
+		}
+		return findRecords(DnsMessageView.SECTION_ADDITIONAL, DnsRecord.TYPE_A, exchanges);
 	}
 
 	/**
-	 * Decodes the response message bytes.
+	 * Returns the records of a section with a type and one of a set of owner
+	 * names. If the section hasn't been decoded, the types and owner names are
+	 * compared in the message and only the records found are decoded.
+	 *
+	 * @param section
+	 *            one of the DnsMessageView.SECTION_* values
+	 * @param type
+	 *            the record type
+	 * @param names
+	 *            the owner names (case insensitive), null for any name
+	 * @return the records found, in the order of the message
 	 */
-	private void decode(DnsByteArray ba) {
-		// Decode header section
-		id = ba.readTwoByteInt();
-		byte b = ba.readByte();
-		aa = (b & 4) == 4;
-		tc = (b & 2) == 2;
-		rCode = ba.readByte() & 0xF;
-		qdCount = ba.readTwoByteInt();
-		anCount = ba.readTwoByteInt();
-		nsCount = ba.readTwoByteInt();
-		arCount = ba.readTwoByteInt();
+	synchronized DnsRecord[] findRecords(int section, int type, String[] names) {
+		DnsRecord[] decoded = getDecoded(section);
+		int count = getCount(section);
+		DnsRecord[] found = null;
+		int n = 0;
+		if (decoded != null || message == null) {
+			for (int i = 0; i < count; i++) {
+				if (decoded[i].getType() != type || !hasName(names, decoded[i].getName()))
+					continue;
+				if (found == null)
+					found = new DnsRecord[count - i];
+				found[n++] = decoded[i];
+			}
+		} else {
+			DnsByteArray ba = null;
+			int offset = getOffset(section);
+			for (int i = 0; i < count; i++) {
+				if (DnsMessageView.getType(message, offset) == type && hasName(names, offset)) {
+					if (found == null) {
+						found = new DnsRecord[count - i];
+						ba = new DnsByteArray(message, message.length);
+					}
+					// The message has been checked, so this can't fail
+					ba.seek(offset);
+					found[n++] = DnsRecord.createRecord(ba);
+				}
+				offset = DnsMessageView.skipRecord(message, offset);
+			}
+		}
+
+		if (n == 0)
+			return NO_RECORDS;
+		if (n < found.length) {
+			DnsRecord[] exact = new DnsRecord[n];
+			System.arraycopy(found, 0, exact, 0, n);
+			found = exact;
+		}
+		return found;
+	}
 
-		// Questions
-		decodeQuestions(ba, qdCount);
+	/**
+	 * Returns true if names is null or has a name (case insensitive)
+	 */
+	private static boolean hasName(String[] names, String name) {
+		if (names == null)
+			return true;
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equalsIgnoreCase(name))
+				return true;
+		}
+		return false;
+	}
 
-		// Decode resources
-		answers = decodeRecords(ba, anCount);
-		authorities = decodeRecords(ba, nsCount);
-		additionals = decodeRecords(ba, arCount);
+	/**
+	 * Returns true if names is null or has the owner name of the record at an
+	 * offset of the message, compared without decoding it
+	 */
+	private boolean hasName(String[] names, int offset) {
+		if (names == null)
+			return true;
+		for (int i = 0; i < names.length; i++) {
+			if (DnsNameTable.equals(message, offset, names[i], true))
+				return true;
+		}
+		return false;
 	}
 
 	/**
-	 * Decodes a set of resource records
+	 * Decodes the records of a section, unless another thread just did. The
+	 * message is dropped once all sections with records are decoded.
+	 *
+	 * @param section
+	 *            one of the DnsMessageView.SECTION_* values
 	 */
-	private DnsRecord[] decodeRecords(DnsByteArray ba, int numRecords) {
-		DnsRecord[] records = new DnsRecord[numRecords];
+	private synchronized DnsRecord[] decodeSection(int section) {
+		DnsRecord[] records = getDecoded(section);
+		if (records != null)
+			return records;
 
-		for (int i = 0; i < numRecords; i++) {
-			records[i] = DnsRecord.createRecord(ba);
+		int offset = getOffset(section);
+		int count = getCount(section);
+		records = new DnsRecord[count];
+		if (message != null) {
+			// The message has been checked, so this can't fail
+			DnsByteArray ba = new DnsByteArray(message, message.length);
+			for (int i = 0; i < count; i++) {
+				ba.seek(offset);
+				records[i] = DnsRecord.createRecord(ba);
+				offset = DnsMessageView.skipRecord(message, offset);
+			}
 		}
+
+		if (section == DnsMessageView.SECTION_ANSWER)
+			answers = records;
+		else if (section == DnsMessageView.SECTION_AUTHORITY)
+			authorities = records;
+		else
+			additionals = records;
+		if ((answers != null || anCount == 0) && (authorities != null || nsCount == 0)
+				&& (additionals != null || arCount == 0))
+			message = null;
 		return records;
 	}
 
 	/**
-	 * Decodes a set of question entries. We don't save these, we just toss them
-	 * for now.
+	 * Returns the decoded records of a section, null if not decoded yet
 	 */
-	private void decodeQuestions(DnsByteArray ba, int num) {
-		for (int i = 0; i < num; i++) {
-			String qName = ba.readName();
-			int qType = ba.readTwoByteInt();
-			int qClass = ba.readTwoByteInt();
-		}
+	private DnsRecord[] getDecoded(int section) {
+		if (section == DnsMessageView.SECTION_ANSWER)
+			return answers;
+		else if (section == DnsMessageView.SECTION_AUTHORITY)
+			return authorities;
+		else
+			return additionals;
+	}
+
+	/**
+	 * Returns the number of records of a section
+	 */
+	private int getCount(int section) {
+		if (section == DnsMessageView.SECTION_ANSWER)
+			return anCount;
+		else if (section == DnsMessageView.SECTION_AUTHORITY)
+			return nsCount;
+		else
+			return arCount;
+	}
+
+	/**
+	 * Returns the offset of the first record of a section in the message
+	 */
+	private int getOffset(int section) {
+		if (section == DnsMessageView.SECTION_ANSWER)
+			return answerOffset;
+		else if (section == DnsMessageView.SECTION_AUTHORITY)
+			return authorityOffset;
+		else
+			return additionalOffset;
 	}
 
 	/**
@@ -0,0 +1,98 @@
+package com.ahlquist.common.net.dns;
+
+/**
+ * This class is an SOA resource record (RR). An SOA record marks the start of
+ * a zone of authority. It is returned in the authority section of negative
+ * responses, where its MINIMUM field is used as the negative caching TTL (see
+ * RFC 2308).
+ *
+ * @author Douglas Ahlquist
+ */
+public final class DnsSoaRecord extends DnsRecord {
+	/** name server that was the original source of data for the zone */
+	private String mName;
+	/** mailbox of the person responsible for the zone */
+	private String rName;
+	/** version number of the zone */
+	private int serial;
+	/** refresh interval in seconds */
+	private int refresh;
+	/** retry interval in seconds */
+	private int retry;
+	/** expire limit in seconds */
+	private int expire;
+	/** negative caching TTL in seconds */
+	private int minimum;
+
+	/**
+	 * Constructor called by DnsRecord factory method.
+	 */
+	DnsSoaRecord(String name, int type, DnsByteArray ba) {
+		super(name, type, ba);
+
+		mName = ba.readName();
+		rName = ba.readName();
+		serial = ba.readFourByteInt();
+		refresh = ba.readFourByteInt();
+		retry = ba.readFourByteInt();
+		expire = ba.readFourByteInt();
+		minimum = ba.readFourByteInt();
+	}
+
+	/**
+	 * Returns the name of the primary name server for the zone
+	 */
+	public String getPrimaryNameServer() {
+		return mName;
+	}
+
+	/**
+	 * Returns the mailbox of the person responsible for the zone
+	 */
+	public String getResponsibleMailbox() {
+		return rName;
+	}
+
+	/**
+	 * Returns the version number of the zone
+	 */
+	public int getSerial() {
+		return serial;
+	}
+
+	/**
+	 * Returns the refresh interval in seconds
+	 */
+	public int getRefresh() {
+		return refresh;
+	}
+
+	/**
+	 * Returns the retry interval in seconds
+	 */
+	public int getRetry() {
+		return retry;
+	}
+
+	/**
+	 * Returns the expire limit in seconds
+	 */
+	public int getExpire() {
+		return expire;
+	}
+
+	/**
+	 * Returns the negative caching TTL in seconds
+	 */
+	public int getMinimum() {
+		return minimum;
+	}
+
+	/**
+	 * Returns a String object representing this RR.
+	 */
+	public String toString() {
+		return super.toString() + " MNAME=" + mName + " RNAME=" + rName + " SERIAL=" + serial + " MINIMUM="
+				+ minimum;
+	}
+}
@@ -0,0 +1,170 @@
+package com.ahlquist.common.net.dns;
+
+import java.util.List;
+
+import com.ahlquist.common.util.MyObject;
+
+/**
+ * This class is a hashed timer wheel. It keeps track of a large number of
+ * timeouts with O(1) scheduling and cancellation. Time is divided into ticks
+ * and every timeout is hashed into a slot by its deadline tick. A slot may hold
+ * timeouts for several turns of the wheel; only those whose deadline has
+ * passed are expired.
+ *
+ * This class is not synchronized. It is meant to be driven by a single thread
+ * (the DnsAsyncResolver selector thread).
+ *
+ * @author Douglas Ahlquist
+ * @see com.ahlquist.common.net.dns.DnsAsyncResolver
+ */
+final class DnsTimerWheel<T> extends MyObject {
+	/** The slots (each slot is the head of a doubly linked list) */
+	private Timeout<T>[] wheel;
+	/** Bit mask used to find a slot from a tick (wheel size is a power of 2) */
+	private int mask;
+	/** Length of one tick in milliseconds */
+	private long tickMillis;
+	/** Time when the wheel was started */
+	private long startTime;
+	/** The last tick that has been processed */
+	private long currentTick = 0;
+	/** Number of timeouts that are scheduled */
+	private int size = 0;
+
+	/**
+	 * Creates a timer wheel.
+	 *
+	 * @param ticksPerWheel
+	 *            the number of slots in the wheel (rounded up to a power of 2)
+	 * @param tickMillis
+	 *            the length of one tick in milliseconds
+	 * @param now
+	 *            the current time in milliseconds
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	DnsTimerWheel(int ticksPerWheel, long tickMillis, long now) {
+		int slots = 1;
+		while (slots < ticksPerWheel)
+			slots <<= 1;
+		wheel = new Timeout[slots];
+		mask = slots - 1;
+		this.tickMillis = tickMillis;
+		startTime = now;
+	}
+
+	/**
+	 * Returns the length of one tick in milliseconds
+	 */
+	long getTickMillis() {
+		return tickMillis;
+	}
+
+	/**
+	 * Returns the number of scheduled (not expired or cancelled) timeouts
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Schedules a timeout. The item will be returned by expire() once the
+	 * delay has elapsed (rounded up to the next tick).
+	 *
+	 * @param item
+	 *            the item to return when the timeout expires
+	 * @param delayMillis
+	 *            the delay in milliseconds
+	 * @param now
+	 *            the current time in milliseconds
+	 * @return a handle that can be used to cancel the timeout
+	 */
+	Timeout<T> schedule(T item, long delayMillis, long now) {
+		long deadlineTick = (now + delayMillis - startTime + tickMillis - 1) / tickMillis;
+		// Never schedule into a tick that has already been processed
+		if (deadlineTick <= currentTick)
+			deadlineTick = currentTick + 1;
+
+		Timeout<T> timeout = new Timeout<T>(this, item, deadlineTick);
+		int slot = (int) (deadlineTick & mask);
+		timeout.next = wheel[slot];
+		if (wheel[slot] != null)
+			wheel[slot].prev = timeout;
+		wheel[slot] = timeout;
+		size++;
+		return timeout;
+	}
+
+	/**
+	 * Advances the wheel up to the current time and collects all items whose
+	 * timeout has expired.
+	 *
+	 * @param now
+	 *            the current time in milliseconds
+	 * @param expired
+	 *            the list to add expired items to (out)
+	 */
+	void expire(long now, List<T> expired) {
+		long targetTick = (now - startTime) / tickMillis;
+		while (currentTick < targetTick) {
+			currentTick++;
+			// Don't spin around the wheel more than one turn if we have
+			// nothing scheduled
+			if (size == 0) {
+				currentTick = targetTick;
+				break;
+			}
+			Timeout<T> timeout = wheel[(int) (currentTick & mask)];
+			while (timeout != null) {
+				Timeout<T> next = timeout.next;
+				if (timeout.deadlineTick <= currentTick) {
+					unlink(timeout);
+					expired.add(timeout.item);
+				}
+				timeout = next;
+			}
+		}
+	}
+
+	/**
+	 * Removes a timeout from its slot
+	 */
+	private void unlink(Timeout<T> timeout) {
+		int slot = (int) (timeout.deadlineTick & mask);
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			wheel[slot] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.wheel = null;
+		size--;
+	}
+
+	/**
+	 * A scheduled timeout. Also a node in the slot list.
+	 */
+	static final class Timeout<T> {
+		private DnsTimerWheel<T> wheel;
+		private T item;
+		private long deadlineTick;
+		private Timeout<T> prev;
+		private Timeout<T> next;
+
+		private Timeout(DnsTimerWheel<T> wheel, T item, long deadlineTick) {
+			this.wheel = wheel;
+			this.item = item;
+			this.deadlineTick = deadlineTick;
+		}
+
+		/**
+		 * Cancels this timeout. Does nothing if it already expired or was
+		 * cancelled. Must be called from the thread driving the wheel.
+		 */
+		void cancel() {
+			if (wheel != null)
+				wheel.unlink(this);
+		}
+	}
+}
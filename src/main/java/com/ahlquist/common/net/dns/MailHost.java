@@ -50,6 +50,24 @@ public final class MailHost extends MyObject {
 			setIpTTL(ipTTL);
 	}
 
+	/**
+	 * Create a MailHost restored from a snapshot.
+	 *
+	 * @param name
+	 *            the host name
+	 * @param preference
+	 *            the preference value for this host
+	 * @param ipAddress
+	 *            the IP address if known (can be null)
+	 * @param ipExpires
+	 *            the time when the IP address expires
+	 */
+	static MailHost restore(String name, int preference, String ipAddress, long ipExpires) {
+		MailHost host = new MailHost(name, preference, ipAddress, 0);
+		host.ipExpires = ipExpires;
+		return host;
+	}
+
 	/**
 	 * Returns the name of the mail host. (Cannot be null.)
 	 */
@@ -116,6 +134,22 @@ public final class MailHost extends MyObject {
 		return preference;
 	}
 
+	/**
+	 * Returns the IP address as a dotted string without looking it up, or null
+	 * if it isn't known. Package access only.
+	 */
+	String getIpAddress() {
+		return ipAddress;
+	}
+
+	/**
+	 * Returns the time when the IP address (A record) expires. Package access
+	 * only.
+	 */
+	long getIpExpires() {
+		return ipExpires;
+	}
+
 	/**
 	 * Set the time when the IP address (A record) expires
 	 */
@@ -35,6 +35,19 @@ public final class MailHostList extends MyObject {
 	/** Time when the host list TTL expires */
 	private long expires;
 
+	/** The TTL the host list was created with, in milliseconds */
+	private long ttlMillis;
+
+	/**
+	 * Time when the data in this list expired/expires at the name server. Same
+	 * as expires, except for stale copies where it is the time the original
+	 * list expired.
+	 */
+	private long dataExpires;
+
+	/** If this is a stale copy of an expired list */
+	private boolean stale = false;
+
 	/**
 	 * How many hosts that have the lowest preference value. Used when selecting
 	 * a host randomly.
@@ -52,7 +65,9 @@ public final class MailHostList extends MyObject {
 	MailHostList(int result) {
 		hostList = new VArray(0);
 		this.result = result;
-		expires = MyTime.getCurrentMillis() + ERROR_TTL * 1000;
+		ttlMillis = ERROR_TTL * 1000;
+		expires = MyTime.getCurrentMillis() + ttlMillis;
+		dataExpires = expires;
 		logger.debug("MailHostList created: " + toString());
 	}
 
@@ -69,24 +84,61 @@ public final class MailHostList extends MyObject {
 	MailHostList(VArray list, int ttl) {
 		hostList = list;
 		result = RESULT_SUCCESS;
-		expires = MyTime.getCurrentMillis() + ttl * 1000;
-
-		// Find the number of hosts with lowest preference (list is already
-		// sorted)
-		// We need this to randomize the first host (over all hosts with the
-		// lowest preference.
-		int lowestPreference = ((MailHost) hostList.elementAt(0)).getPreference();
-		int i = 1;
-		while (i < hostList.size()) {
-			if (((MailHost) hostList.elementAt(i)).getPreference() > lowestPreference)
-				break;
-			i++;
-		}
-		numberOfHostsWithLowestPreference = i;
+		ttlMillis = ttl * 1000L;
+		expires = MyTime.getCurrentMillis() + ttlMillis;
+		dataExpires = expires;
+		numberOfHostsWithLowestPreference = countHostsWithLowestPreference();
 
 		logger.debug("MailHostList created: " + toString());
 	}
 
+	/**
+	 * Constructor, successful lookup restored from a snapshot.
+	 *
+	 * @param list
+	 *            the list of MailHosts sorted by preference
+	 * @param expires
+	 *            the time when the list expires
+	 * @param ttlMillis
+	 *            the TTL in milliseconds the list was created with
+	 *
+	 *            Package access only.
+	 */
+	MailHostList(VArray list, long expires, long ttlMillis) {
+		hostList = list;
+		result = RESULT_SUCCESS;
+		this.ttlMillis = ttlMillis;
+		this.expires = expires;
+		dataExpires = expires;
+		numberOfHostsWithLowestPreference = countHostsWithLowestPreference();
+
+		logger.debug("MailHostList restored: " + toString());
+	}
+
+	/**
+	 * Constructor, stale copy of an expired list. Used to serve an expired list
+	 * when a new lookup fails (see RFC 8767). The copy gets a new, short TTL,
+	 * but remembers when the original data expired.
+	 *
+	 * @param expired
+	 *            the expired list
+	 * @param staleTTL
+	 *            the time-to-live value in seconds for the copy
+	 *
+	 *            Package access only.
+	 */
+	MailHostList(MailHostList expired, int staleTTL) {
+		hostList = expired.hostList;
+		result = expired.result;
+		numberOfHostsWithLowestPreference = expired.numberOfHostsWithLowestPreference;
+		ttlMillis = staleTTL * 1000L;
+		expires = MyTime.getCurrentMillis() + ttlMillis;
+		dataExpires = expired.dataExpires;
+		stale = true;
+
+		logger.debug("MailHostList created (stale): " + toString());
+	}
+
 	/**
 	 * Returns the result code for the operation that generated this object.
 	 * Users of this class should check this value before calling other methods.
@@ -103,6 +155,85 @@ public final class MailHostList extends MyObject {
 		return MyTime.getCurrentMillis() >= expires;
 	}
 
+	/**
+	 * If this host list can still be served stale, i.e. if its data expired
+	 * less than a grace period ago. Only successful lookups are served stale.
+	 * Package access only.
+	 *
+	 * @param graceMillis
+	 *            the grace period in milliseconds
+	 */
+	boolean isStaleServable(long graceMillis) {
+		return result == RESULT_SUCCESS && MyTime.getCurrentMillis() < dataExpires + graceMillis;
+	}
+
+	/**
+	 * If this is a stale copy of an expired list. Package access only.
+	 */
+	boolean isStale() {
+		return stale;
+	}
+
+	/**
+	 * If this host list should be refreshed ahead of expiry, i.e. if it was a
+	 * successful lookup and no more than a fraction of its TTL is left. Package
+	 * access only.
+	 *
+	 * @param fraction
+	 *            the fraction (0.0 - 1.0) of the original TTL
+	 */
+	boolean isRefreshDue(double fraction) {
+		return result == RESULT_SUCCESS && expires - MyTime.getCurrentMillis() <= ttlMillis * fraction;
+	}
+
+	/**
+	 * Returns the time when this host list expires. Package access only.
+	 */
+	long getExpires() {
+		return expires;
+	}
+
+	/**
+	 * Returns the TTL in milliseconds this host list was created with. Package
+	 * access only.
+	 */
+	long getTTLMillis() {
+		return ttlMillis;
+	}
+
+	/**
+	 * Returns the number of mail hosts in the list.
+	 */
+	public int size() {
+		return hostList.size();
+	}
+
+	/**
+	 * Returns a mail host.
+	 *
+	 * @param i
+	 *            the index of the mail host (in preference order)
+	 */
+	public MailHost getMailHost(int i) {
+		return (MailHost) hostList.elementAt(i);
+	}
+
+	/**
+	 * Finds the number of hosts with lowest preference (list is already
+	 * sorted). We need this to randomize the first host (over all hosts with
+	 * the lowest preference).
+	 */
+	private int countHostsWithLowestPreference() {
+		int lowestPreference = ((MailHost) hostList.elementAt(0)).getPreference();
+		int i = 1;
+		while (i < hostList.size()) {
+			if (((MailHost) hostList.elementAt(i)).getPreference() > lowestPreference)
+				break;
+			i++;
+		}
+		return i;
+	}
+
 	/**
 	 * The TTL (time to live) value of the host list in seconds.
 	 */
@@ -137,6 +268,6 @@ public final class MailHostList extends MyObject {
 	 * Returns a String object representing this mail host.
 	 */
 	public String toString() {
-		return "RESULT=" + result + " TTL=" + getTTL() + " HOSTLIST=" + hostList;
+		return "RESULT=" + result + " TTL=" + getTTL() + (stale ? " STALE" : "") + " HOSTLIST=" + hostList;
 	}
 }
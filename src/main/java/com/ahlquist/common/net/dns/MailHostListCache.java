@@ -3,6 +3,18 @@ package com.ahlquist.common.net.dns;
 
 import com.ahlquist.common.util.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
 import org.apache.log4j.Logger;
 
 import com.ahlquist.common.counter.*;
@@ -11,8 +23,25 @@ import com.ahlquist.server.lib.*;
 
 /**
  * This class is a cache for MailHostLists. (It is a refined DNS cache.) It is a
- * hash table with a maximum size (HashCache) that allows us to retrieve a
- * MailHostList object based on the domain name.
+ * hash table with a maximum size (ConcurrentHashCache) that allows us to
+ * retrieve a MailHostList object based on the domain name. Lookups don't take
+ * any lock, so many threads can use the cache at the same time.
+ *
+ * The cache can refresh hot entries ahead of expiry. When refresh-ahead is
+ * enabled and a hit finds a MailHostList that has no more than a given
+ * fraction of its TTL left, a new lookup for the domain is done in the
+ * background (on a small, bounded thread pool) while the current list keeps
+ * being served. The refreshed list replaces the old one when the lookup
+ * succeeds.
+ *
+ * The cache can also serve stale data (see RFC 8767). When serve-stale is
+ * enabled, expired lists are kept for a grace period. If a new lookup for the
+ * domain fails with a temporary error, the expired list is served again with a
+ * short TTL instead of the error.
+ *
+ * The cache can be saved to a snapshot file periodically, and is loaded from
+ * it when snapshots are enabled, so that a restarted server doesn't have to
+ * look up every domain again (see MailHostListSnapshot).
  *
  * @author Douglas Ahlquist 01/29/2003
  */
@@ -21,7 +50,7 @@ final class MailHostListCache extends MyObject {
 	
 	final static Logger logger = Logger.getLogger(MailHostListCache.class);
 	
-	private HashCache cache;
+	private ConcurrentHashCache<String, MailHostList> cache;
 
 	private static MailHostListCache instance = null;
 
@@ -31,11 +60,50 @@ final class MailHostListCache extends MyObject {
 	/** Cache hits */
 	private Counter pcCacheMisses = new Counter(CounterDefinition.DNS_HOSTLIST_CACHE_MISSES);
 
+	/** Maximum number of threads doing background refreshes */
+	private static final int REFRESH_THREADS = 4;
+	/** Maximum number of refreshes waiting for a thread */
+	private static final int REFRESH_QUEUE_SIZE = 1000;
+
+	/**
+	 * Refresh a hit when no more than this fraction of the TTL is left. 0
+	 * disables refresh-ahead.
+	 */
+	private volatile double refreshAheadFraction = 0;
+
+	/** Runs the background refreshes. Created on demand. */
+	private ThreadPoolExecutor refreshExecutor;
+
+	/** Domains with a refresh scheduled or in progress */
+	private Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+	/** TTL in seconds for stale answers (as recommended by RFC 8767) */
+	private static final int STALE_TTL = 30;
+
 	/**
-	 * Creates a HashCache
+	 * How long in milliseconds expired lists are kept to be served stale. 0
+	 * disables serve-stale.
+	 */
+	private volatile long staleGraceMillis = 0;
+
+	/** Stale answers served */
+	private AtomicLong staleAnswersServed = new AtomicLong();
+
+	/** Refreshes issued */
+	private AtomicLong refreshesIssued = new AtomicLong();
+	/** Refreshes that failed (the old entry is kept until it expires) */
+	private AtomicLong refreshesFailed = new AtomicLong();
+
+	/** The snapshot file, null if snapshots are disabled */
+	private volatile File snapshotFile;
+	/** Saves the snapshots. Created when snapshots are enabled. */
+	private ScheduledThreadPoolExecutor snapshotExecutor;
+
+	/**
+	 * Creates a ConcurrentHashCache
 	 */
 	private MailHostListCache() {
-		cache = new HashCache(HostListCacheSize.getInstance().getValueNoCache());
+		cache = new ConcurrentHashCache<String, MailHostList>(HostListCacheSize.getInstance().getValueNoCache());
 	}
 
 	/**
@@ -53,34 +121,246 @@ final class MailHostListCache extends MyObject {
 
 	/**
 	 * Returns the MailHostList for a domain name. If the MailHostList has
-	 * expired, it is removed from the cache and null is returned.
+	 * expired, it is removed from the cache and null is returned. (If
+	 * serve-stale is enabled, it is left in the cache until its grace period is
+	 * over.)
 	 *
 	 * @param domainName
 	 *            the domain name
 	 *
 	 * @return the MailHostList object or null
 	 */
-	synchronized MailHostList get(String domainName) {
-		MailHostList hostList = (MailHostList) cache.get(domainName);
+	MailHostList get(String domainName) {
+		MailHostList hostList = cache.get(domainName);
 
 		// Check if TTL has expired
 		if (hostList != null && hostList.hasExpired()) {
-			Debug.DNSV.println(domainName + ": MailHostListCache -  HostList TTL has expired: " + hostList
-					+ ", removing from cache.");
-			// If so, remove from cache
-			cache.remove(domainName);
+			long grace = staleGraceMillis;
+			if (grace > 0 && hostList.isStaleServable(grace)) {
+				// Keep it, in case the new lookup fails
+				logger.debug(domainName + ": MailHostListCache -  HostList TTL has expired: " + hostList
+						+ ", keeping it to serve stale.");
+			} else {
+				Debug.DNSV.println(domainName + ": MailHostListCache -  HostList TTL has expired: " + hostList
+						+ ", removing from cache.");
+				// If so, remove from cache (unless another thread just replaced it)
+				cache.remove(domainName, hostList);
+			}
 			hostList = null;
 		}
 
 		// Keep statistics on cache hits
 		if (hostList == null)
 			pcCacheMisses.incrementValue();
-		else
+		else {
 			pcCacheHits.incrementValue();
 
+			// Refresh hot entries before they expire
+			if (refreshAheadFraction > 0 && hostList.isRefreshDue(refreshAheadFraction))
+				scheduleRefresh(domainName);
+		}
+
 		return hostList;
 	}
 
+	/**
+	 * Enables refresh-ahead. A hit on a MailHostList with no more than this
+	 * fraction of its TTL left schedules a background lookup.
+	 *
+	 * @param fraction
+	 *            the fraction (0.0 - 1.0) of the TTL, 0 disables refresh-ahead
+	 */
+	void setRefreshAheadFraction(double fraction) {
+		refreshAheadFraction = fraction;
+	}
+
+	/**
+	 * Returns a stale copy of an expired MailHostList for a domain, or null if
+	 * serve-stale is disabled or there is no expired list within its grace
+	 * period. The copy gets a short TTL and replaces the expired list in the
+	 * cache, so that we don't retry the failing lookup for every message.
+	 *
+	 * @param domainName
+	 *            the domain name
+	 */
+	MailHostList getStale(String domainName) {
+		long grace = staleGraceMillis;
+		if (grace == 0)
+			return null;
+
+		MailHostList hostList = cache.get(domainName);
+		if (hostList == null || !hostList.hasExpired() || !hostList.isStaleServable(grace))
+			return null;
+
+		MailHostList staleList = new MailHostList(hostList, STALE_TTL);
+		cache.put(domainName, staleList);
+		staleAnswersServed.incrementAndGet();
+		logger.debug(domainName + ": MailHostListCache -  Serving stale HostList: " + staleList);
+		return staleList;
+	}
+
+	/**
+	 * Enables serve-stale. Expired lists are kept for this long, and served if
+	 * a new lookup fails with a temporary error.
+	 *
+	 * @param graceSeconds
+	 *            how long to keep expired lists, 0 disables serve-stale
+	 */
+	void setStaleGracePeriod(int graceSeconds) {
+		staleGraceMillis = graceSeconds * 1000L;
+	}
+
+	/**
+	 * Enables snapshots. Loads the unexpired lists from the snapshot file (if
+	 * it exists), then saves the cache to the file periodically and when the
+	 * JVM shuts down. Returns the number of lists loaded.
+	 *
+	 * @param file
+	 *            the snapshot file
+	 * @param intervalSeconds
+	 *            how often to save the cache
+	 */
+	synchronized int enableSnapshots(File file, int intervalSeconds) {
+		if (snapshotFile != null)
+			return 0;
+		snapshotFile = file;
+
+		int loaded = 0;
+		if (file.exists()) {
+			try {
+				loaded = MailHostListSnapshot.load(file, this);
+				logger.info("MailHostListCache - Loaded " + loaded + " host lists from " + file);
+			} catch (IOException e) {
+				logger.error("MailHostListCache - Could not load snapshot: " + file, e);
+			}
+		}
+
+		snapshotExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+			Thread thread = new Thread(r, "MailHostListCache-snapshot");
+			thread.setDaemon(true);
+			return thread;
+		});
+		snapshotExecutor.scheduleWithFixedDelay(() -> saveSnapshot(), intervalSeconds, intervalSeconds,
+				TimeUnit.SECONDS);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> saveSnapshot(), "MailHostListCache-shutdown"));
+		return loaded;
+	}
+
+	/**
+	 * Saves the cache to the snapshot file now. Does nothing if snapshots are
+	 * disabled. Returns the number of lists saved.
+	 */
+	int saveSnapshot() {
+		File file = snapshotFile;
+		if (file == null)
+			return 0;
+		try {
+			// Only one save at a time
+			synchronized (file) {
+				int saved = MailHostListSnapshot.save(file, this);
+				logger.debug("MailHostListCache - Saved " + saved + " host lists to " + file);
+				return saved;
+			}
+		} catch (IOException | RuntimeException e) {
+			logger.error("MailHostListCache - Could not save snapshot: " + file, e);
+			return 0;
+		}
+	}
+
+	/**
+	 * Adds a MailHostList restored from a snapshot, unless the domain is
+	 * already in the cache. Returns true if it was added.
+	 *
+	 * @param domainName
+	 *            the domain name
+	 * @param hostList
+	 *            the restored list
+	 */
+	boolean restore(String domainName, MailHostList hostList) {
+		if (cache.containsKey(domainName))
+			return false;
+		cache.put(domainName, hostList);
+		return true;
+	}
+
+	/**
+	 * Performs an action for each cached MailHostList (including expired ones)
+	 */
+	void forEach(BiConsumer<String, MailHostList> action) {
+		cache.forEach(action);
+	}
+
+	/** Returns the number of stale answers served */
+	long getStaleAnswersServed() {
+		return staleAnswersServed.get();
+	}
+
+	/** Returns the number of background refreshes issued */
+	long getRefreshesIssued() {
+		return refreshesIssued.get();
+	}
+
+	/** Returns the number of background refreshes that failed */
+	long getRefreshesFailed() {
+		return refreshesFailed.get();
+	}
+
+	/**
+	 * Schedules a background lookup for a domain, unless one is already
+	 * scheduled. If the refresh queue is full, the refresh is skipped.
+	 *
+	 * @param domainName
+	 *            the domain name
+	 */
+	private void scheduleRefresh(final String domainName) {
+		if (!refreshing.add(domainName))
+			// Already on its way
+			return;
+
+		try {
+			getRefreshExecutor().execute(new Runnable() {
+				public void run() {
+					try {
+						MailHostList hostList = MailHostResolver.refreshMailHosts(domainName);
+						if (hostList.getResult() != MailHostList.RESULT_SUCCESS) {
+							logger.debug(domainName + ": MailHostListCache - Refresh failed: " + hostList);
+							refreshesFailed.incrementAndGet();
+						}
+					} catch (RuntimeException e) {
+						logger.error(domainName + ": MailHostListCache - Refresh failed", e);
+						refreshesFailed.incrementAndGet();
+					} finally {
+						refreshing.remove(domainName);
+					}
+				}
+			});
+			refreshesIssued.incrementAndGet();
+			logger.debug(domainName + ": MailHostListCache - Refresh scheduled");
+		} catch (RejectedExecutionException e) {
+			// Too many refreshes queued, the entry will be looked up when it
+			// expires instead
+			refreshing.remove(domainName);
+			logger.debug(domainName + ": MailHostListCache - Refresh queue full");
+		}
+	}
+
+	/**
+	 * Returns the refresh thread pool. Threads are daemons and go away when
+	 * idle.
+	 */
+	private synchronized ThreadPoolExecutor getRefreshExecutor() {
+		if (refreshExecutor == null) {
+			refreshExecutor = new ThreadPoolExecutor(REFRESH_THREADS, REFRESH_THREADS, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE), r -> {
+						Thread thread = new Thread(r, "MailHostListCache-refresh");
+						thread.setDaemon(true);
+						return thread;
+					});
+			refreshExecutor.allowCoreThreadTimeOut(true);
+		}
+		return refreshExecutor;
+	}
+
 	/**
 	 * Put a MailHostList in the cache. If the cache is full, the oldest
 	 * MailHostList will be pushed out and returned. Also, if a HostList for
@@ -94,14 +374,14 @@ final class MailHostListCache extends MyObject {
 	 *
 	 * @return the old MailHostList that was pushed out or null
 	 */
-	synchronized MailHostList put(String domainName, MailHostList hostList) {
+	MailHostList put(String domainName, MailHostList hostList) {
 		// Check if TTL has expired
 		if (hostList.hasExpired()) {
 			Debug.DNSV.println(domainName + ": MailHostListCache -  HostList TTL has expired: " + hostList);
 			return null;
 		}
 
-		MailHostList agedHostList = (MailHostList) cache.put(domainName, hostList);
+		MailHostList agedHostList = cache.put(domainName, hostList);
 		if (agedHostList != null) {
 			Debug.DNSV.println(domainName + ": MailHostListCache -  HostList has been pushed out: " + agedHostList
 					+ " for: " + hostList);
@@ -0,0 +1,245 @@
+package com.ahlquist.common.net.dns;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Logger;
+
+import com.ahlquist.common.util.MyTime;
+import com.ahlquist.common.util.VArray;
+
+/**
+ * This class saves the MailHostListCache to a file and loads it back, so that
+ * a restarted server starts with a warm cache instead of looking up every
+ * domain again.
+ *
+ * Only successful, unexpired lists are saved. Expiry times are absolute, and
+ * lists (and IP addresses) that have expired by the time the file is loaded are
+ * skipped. The file is written to a temporary file that is then renamed, so a
+ * crash while writing never leaves a half written snapshot. The file is memory
+ * mapped when it is loaded.
+ *
+ * <pre>
+ * File format (big endian):
+ *   int     magic ("MHLS")
+ *   int     version
+ *   int     number of lists
+ *   lists:
+ *     string  domain name
+ *     long    expires (milliseconds since the epoch)
+ *     long    original TTL in milliseconds
+ *     short   number of hosts
+ *     hosts:
+ *       string  host name
+ *       short   preference
+ *       string  IP address (empty if not known)
+ *       long    IP address expires
+ *   long    CRC32 of everything above
+ *
+ *   string = unsigned short length + UTF-8 bytes
+ * </pre>
+ *
+ * @author Douglas Ahlquist
+ * @see com.ahlquist.common.net.dns.MailHostListCache
+ */
+final class MailHostListSnapshot {
+	final static Logger logger = Logger.getLogger(MailHostListSnapshot.class);
+
+	/** File magic, "MHLS" */
+	private static final int MAGIC = 0x4D484C53;
+	/** File format version */
+	private static final int VERSION = 1;
+
+	/**
+	 * Constructor never called!
+	 */
+	private MailHostListSnapshot() {
+	}
+
+	/**
+	 * Writes the successful, unexpired lists of a cache to a file. Returns the
+	 * number of lists written.
+	 *
+	 * @param file
+	 *            the snapshot file
+	 * @param cache
+	 *            the cache to save
+	 */
+	static int save(File file, MailHostListCache cache) throws IOException {
+		// Collect the entries first, we need the count up front
+		final long now = MyTime.getCurrentMillis();
+		final ArrayList<String> domainNames = new ArrayList<String>();
+		final ArrayList<MailHostList> hostLists = new ArrayList<MailHostList>();
+		cache.forEach((domainName, hostList) -> {
+			if (hostList.getResult() == MailHostList.RESULT_SUCCESS && !hostList.isStale()
+					&& hostList.getExpires() > now) {
+				domainNames.add(domainName);
+				hostLists.add(hostList);
+			}
+		});
+
+		File tmpFile = new File(file.getPath() + ".tmp");
+		CRC32 crc = new CRC32();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+		try {
+			DataOutputStream crcOut = new DataOutputStream(new CrcOutputStream(out, crc));
+			crcOut.writeInt(MAGIC);
+			crcOut.writeInt(VERSION);
+			crcOut.writeInt(hostLists.size());
+			for (int i = 0; i < hostLists.size(); i++) {
+				MailHostList hostList = hostLists.get(i);
+				writeString(crcOut, domainNames.get(i));
+				crcOut.writeLong(hostList.getExpires());
+				crcOut.writeLong(hostList.getTTLMillis());
+				crcOut.writeShort(hostList.size());
+				for (int j = 0; j < hostList.size(); j++) {
+					MailHost host = hostList.getMailHost(j);
+					writeString(crcOut, host.getName());
+					crcOut.writeShort(host.getPreference());
+					String ipAddress = host.getIpAddress();
+					writeString(crcOut, ipAddress == null ? "" : ipAddress);
+					crcOut.writeLong(host.getIpExpires());
+				}
+			}
+			crcOut.flush();
+			out.writeLong(crc.getValue());
+		} finally {
+			out.close();
+		}
+
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		return hostLists.size();
+	}
+
+	/**
+	 * Loads the unexpired lists of a snapshot file into a cache. Returns the
+	 * number of lists loaded. Nothing is loaded if the file is corrupt or of
+	 * an unknown version.
+	 *
+	 * @param file
+	 *            the snapshot file
+	 * @param cache
+	 *            the cache to load into
+	 */
+	static int load(File file, MailHostListCache cache) throws IOException {
+		MappedByteBuffer buffer;
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			// The mapping stays valid after the channel is closed
+			channel.close();
+		}
+
+		// Check the CRC before trusting anything in the file
+		int length = buffer.limit() - 8;
+		if (length < 12) {
+			logger.error("MailHostListSnapshot: File too short: " + file);
+			return 0;
+		}
+		CRC32 crc = new CRC32();
+		ByteBuffer body = buffer.duplicate();
+		body.limit(length);
+		crc.update(body);
+		if (crc.getValue() != buffer.getLong(length)) {
+			logger.error("MailHostListSnapshot: Bad CRC: " + file);
+			return 0;
+		}
+
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			logger.error("MailHostListSnapshot: Unknown file format: " + file);
+			return 0;
+		}
+
+		long now = MyTime.getCurrentMillis();
+		int loaded = 0;
+		try {
+			int count = buffer.getInt();
+			for (int i = 0; i < count; i++) {
+				String domainName = readString(buffer);
+				long expires = buffer.getLong();
+				long ttlMillis = buffer.getLong();
+				int hosts = buffer.getShort() & 0xFFFF;
+				VArray list = new VArray(hosts);
+				for (int j = 0; j < hosts; j++) {
+					String name = readString(buffer);
+					int preference = buffer.getShort() & 0xFFFF;
+					String ipAddress = readString(buffer);
+					long ipExpires = buffer.getLong();
+					// Let the IP address be looked up again if it has expired
+					if (ipAddress.length() == 0 || ipExpires <= now)
+						ipAddress = null;
+					list.addElement(MailHost.restore(name, preference, ipAddress, ipExpires));
+				}
+
+				if (expires > now && hosts > 0
+						&& cache.restore(domainName, new MailHostList(list, expires, ttlMillis)))
+					loaded++;
+			}
+		} catch (BufferUnderflowException e) {
+			// Can't happen with a good CRC, unless the file was written by a
+			// buggy version
+			logger.error("MailHostListSnapshot: Truncated file: " + file);
+		}
+		return loaded;
+	}
+
+	/**
+	 * Writes a string as an unsigned short length and UTF-8 bytes
+	 */
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written by writeString()
+	 */
+	private static String readString(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xFFFF;
+		if (length == 0)
+			return "";
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * An output stream that updates a CRC with everything written to it
+	 */
+	private static final class CrcOutputStream extends FilterOutputStream {
+		private CRC32 crc;
+
+		CrcOutputStream(OutputStream out, CRC32 crc) {
+			super(out);
+			this.crc = crc;
+		}
+
+		public void write(int b) throws IOException {
+			crc.update(b);
+			out.write(b);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			crc.update(b, off, len);
+			out.write(b, off, len);
+		}
+	}
+}
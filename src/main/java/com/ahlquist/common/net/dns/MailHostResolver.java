@@ -1,6 +1,20 @@
 
 package com.ahlquist.common.net.dns;
 
+import java.io.File;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 import org.apache.log4j.Logger;
 
 import com.ahlquist.common.util.*;
@@ -36,6 +50,22 @@ public final class MailHostResolver {
 	/** Maximum number of MailHosts that are A records for a list */
 	private static final int MAX_RECORDS_FOR_HOST_LIST = 2;
 
+	/**
+	 * Lookups in progress, by lower case domain name. Concurrent cache misses
+	 * for the same domain wait for the one lookup in progress instead of
+	 * doing their own.
+	 */
+	private static final ConcurrentHashMap<String, CompletableFuture<MailHostList>> pendingLookups = new ConcurrentHashMap<String, CompletableFuture<MailHostList>>();
+
+	/** Default maximum number of concurrent lookups for a batch */
+	private static final int DEFAULT_BATCH_WINDOW = 64;
+
+	/** Maximum number of threads doing batch lookups, for all batches */
+	private static final int MAX_BATCH_THREADS = 64;
+
+	/** Threads doing batch lookups. Created on demand. */
+	private static ThreadPoolExecutor batchExecutor;
+
 	/**
 	 * Constructor never called!
 	 */
@@ -46,6 +76,7 @@ public final class MailHostResolver {
 	 * Returns a list of mail exchange hosts for a domain. This value will never
 	 * be null, but the list can be empty. The mail hosts are first looked up in
 	 * a cache, then a DNS query is done if no hosts were found in the cache.
+	 * Concurrent cache misses for the same domain share one DNS query.
 	 *
 	 * @param domainName
 	 *            the domain name to be resolved (can be null or empty)
@@ -63,25 +94,281 @@ public final class MailHostResolver {
 		MailHostList hostList = cache.get(domainName);
 		if (hostList == null) {
 			// Nothing (alive) in the cache, query the DNS server
-			hostList = lookupMailHosts(domainName);
-			if (hostList.getResult() == MailHostList.RESULT_SUCCESS)
-				// Only cache successful lookups
-				cache.put(domainName, hostList);
+			hostList = lookupMailHostsOnce(domainName, cache, true);
 		} else
 			logger.debug(domainName + ": Found hostList in cache: " + hostList);
 
 		return hostList;
 	}
 
+	/**
+	 * Returns the mail exchange hosts for a set of domains. Same as calling
+	 * getMailHosts(String) for each domain, but the cache is checked for all
+	 * domains first, and the remaining domains are looked up concurrently (at
+	 * most 64 at a time). Domains are case insensitive and each domain is only
+	 * looked up once.
+	 *
+	 * @param domainNames
+	 *            the domain names to be resolved
+	 * @return the mail host list for each domain name, in the order of the
+	 *         collection. Never null.
+	 * @see #getMailHosts(String)
+	 */
+	public static Map<String, MailHostList> getMailHosts(Collection<String> domainNames) {
+		return getMailHosts(domainNames, DEFAULT_BATCH_WINDOW);
+	}
+
+	/**
+	 * Returns the mail exchange hosts for a set of domains. Same as calling
+	 * getMailHosts(String) for each domain, but the cache is checked for all
+	 * domains first, and the remaining domains are looked up concurrently.
+	 * Domains are case insensitive and each domain is only looked up once.
+	 * Concurrent batches share a pool of at most 64 threads; when they are all
+	 * busy, the calling thread does the lookup itself.
+	 *
+	 * @param domainNames
+	 *            the domain names to be resolved
+	 * @param maxInFlight
+	 *            the maximum number of concurrent lookups
+	 * @return the mail host list for each domain name, in the order of the
+	 *         collection. Never null.
+	 * @see #getMailHosts(String)
+	 */
+	public static Map<String, MailHostList> getMailHosts(Collection<String> domainNames, int maxInFlight) {
+		final MailHostListCache cache = MailHostListCache.getInstance();
+		final Semaphore window = new Semaphore(Math.max(1, maxInFlight));
+
+		// Look in the cache first, start lookups for the rest. Both by lower
+		// case domain name.
+		HashMap<String, MailHostList> hostLists = new HashMap<String, MailHostList>();
+		HashMap<String, CompletableFuture<MailHostList>> lookups = new HashMap<String, CompletableFuture<MailHostList>>();
+		for (final String domainName : domainNames) {
+			if (domainName == null || domainName.length() == 0)
+				continue;
+			String key = domainName.toLowerCase();
+			if (hostLists.containsKey(key) || lookups.containsKey(key))
+				continue;
+
+			MailHostList hostList = cache.get(domainName);
+			if (hostList != null) {
+				logger.debug(domainName + ": Found hostList in cache: " + hostList);
+				hostLists.put(key, hostList);
+				continue;
+			}
+
+			// Wait until there is room in the window
+			window.acquireUninterruptibly();
+			CompletableFuture<MailHostList> lookup;
+			try {
+				lookup = CompletableFuture.supplyAsync(() -> lookupMailHostsOnce(domainName, cache, true),
+						getBatchExecutor());
+			} catch (RejectedExecutionException e) {
+				logger.error(domainName + ": Could not start lookup", e);
+				lookup = CompletableFuture.completedFuture(new MailHostList(MailHostList.RESULT_TEMPORARY_ERROR));
+			}
+			lookup.whenComplete((result, e) -> window.release());
+			lookups.put(key, lookup);
+		}
+
+		// Wait for the lookups
+		for (Map.Entry<String, CompletableFuture<MailHostList>> lookup : lookups.entrySet()) {
+			try {
+				hostLists.put(lookup.getKey(), lookup.getValue().join());
+			} catch (CompletionException e) {
+				// The lookup blew up, treat as temporary error
+				logger.error(lookup.getKey() + ": Lookup failed", e.getCause());
+				hostLists.put(lookup.getKey(), new MailHostList(MailHostList.RESULT_TEMPORARY_ERROR));
+			}
+		}
+
+		// Return the lists by the caller's domain names
+		LinkedHashMap<String, MailHostList> result = new LinkedHashMap<String, MailHostList>();
+		for (String domainName : domainNames) {
+			if (result.containsKey(domainName))
+				continue;
+			if (domainName == null || domainName.length() == 0)
+				result.put(domainName, getMailHosts(domainName));
+			else
+				result.put(domainName, hostLists.get(domainName.toLowerCase()));
+		}
+		return result;
+	}
+
+	/**
+	 * Enables refreshing of cached mail host lists ahead of expiry. When a
+	 * cache hit finds a list with no more than this fraction of its TTL left,
+	 * the domain is looked up again in the background while the cached list
+	 * keeps being returned. For example 0.1 refreshes during the last 10% of
+	 * the TTL. Refresh-ahead is disabled by default.
+	 *
+	 * @param fraction
+	 *            the fraction (0.0 - 1.0) of the TTL, 0 disables refresh-ahead
+	 */
+	public static void setRefreshAheadFraction(double fraction) {
+		MailHostListCache.getInstance().setRefreshAheadFraction(fraction);
+	}
+
+	/**
+	 * Returns the number of background refreshes issued by the mail host list
+	 * cache.
+	 */
+	public static long getRefreshesIssued() {
+		return MailHostListCache.getInstance().getRefreshesIssued();
+	}
+
+	/**
+	 * Returns the number of background refreshes that failed. A failed refresh
+	 * leaves the cached list in place until it expires.
+	 */
+	public static long getRefreshesFailed() {
+		return MailHostListCache.getInstance().getRefreshesFailed();
+	}
+
+	/**
+	 * Enables serving stale mail host lists (see RFC 8767). Expired lists are
+	 * kept in the cache for a grace period. If a new lookup for the domain
+	 * fails with a temporary error, the expired list is returned (with a 30
+	 * second TTL) instead of RESULT_TEMPORARY_ERROR. Serve-stale is disabled by
+	 * default.
+	 *
+	 * @param graceSeconds
+	 *            how long to keep expired lists, 0 disables serve-stale
+	 */
+	public static void setServeStale(int graceSeconds) {
+		MailHostListCache.getInstance().setStaleGracePeriod(graceSeconds);
+	}
+
+	/**
+	 * Returns the number of stale mail host lists served because a lookup
+	 * failed.
+	 */
+	public static long getStaleAnswersServed() {
+		return MailHostListCache.getInstance().getStaleAnswersServed();
+	}
+
+	/**
+	 * Enables snapshots of the mail host list cache, for warm restarts. The
+	 * unexpired lists in the snapshot file are loaded into the cache right
+	 * away. After that the cache is saved to the file periodically, and when
+	 * the JVM shuts down. Can only be enabled once.
+	 *
+	 * @param fileName
+	 *            the snapshot file
+	 * @param intervalSeconds
+	 *            how often to save the cache
+	 * @return the number of host lists loaded from the file
+	 */
+	public static int enableSnapshots(String fileName, int intervalSeconds) {
+		return MailHostListCache.getInstance().enableSnapshots(new File(fileName), intervalSeconds);
+	}
+
+	/**
+	 * Saves the mail host list cache to the snapshot file now. Does nothing if
+	 * snapshots are not enabled.
+	 *
+	 * @return the number of host lists saved
+	 */
+	public static int saveSnapshot() {
+		return MailHostListCache.getInstance().saveSnapshot();
+	}
+
+	/**
+	 * Looks up the mail hosts for a domain and puts a successful result in the
+	 * cache, replacing the current entry. Used for background refreshes. The
+	 * name servers are always queried: records from the record cache only have
+	 * the TTL left of the list being refreshed, so the new list would expire
+	 * with the old one and be due for a refresh again right away.
+	 *
+	 * @param domainName
+	 *            the domain name to be resolved (must not be null or empty)
+	 */
+	static MailHostList refreshMailHosts(String domainName) {
+		return lookupMailHostsOnce(domainName, MailHostListCache.getInstance(), false);
+	}
+
+	/**
+	 * Returns the batch lookup thread pool. It has at most MAX_BATCH_THREADS
+	 * threads however many batches run at once; a lookup that finds them all
+	 * busy runs in the thread that submits it, which also holds back that
+	 * batch. Threads are daemons and go away when idle.
+	 */
+	private static synchronized ThreadPoolExecutor getBatchExecutor() {
+		if (batchExecutor == null) {
+			batchExecutor = new ThreadPoolExecutor(0, MAX_BATCH_THREADS, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), r -> {
+						Thread thread = new Thread(r, "MailHostResolver-batch");
+						thread.setDaemon(true);
+						return thread;
+					}, new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		return batchExecutor;
+	}
+
+	/**
+	 * Does a DNS lookup of the mail hosts for a domain, and caches the result
+	 * if successful. If a lookup for the same domain is already in progress in
+	 * another thread, waits for it and returns its result instead (single
+	 * flight). This value will never be null.
+	 *
+	 * @param domainName
+	 *            the domain name to be resolved (must not be null or empty)
+	 * @param cache
+	 *            the cache to put a successful result in
+	 * @param useCache
+	 *            false to bypass the DNS record cache
+	 */
+	private static MailHostList lookupMailHostsOnce(String domainName, MailHostListCache cache, boolean useCache) {
+		String key = domainName.toLowerCase();
+		CompletableFuture<MailHostList> pending = new CompletableFuture<MailHostList>();
+		CompletableFuture<MailHostList> inProgress = pendingLookups.putIfAbsent(key, pending);
+		if (inProgress != null) {
+			// Somebody else is already looking this domain up, wait for them
+			logger.debug(domainName + ": Waiting for lookup in progress");
+			try {
+				return inProgress.join();
+			} catch (CompletionException e) {
+				// The other lookup blew up, treat as temporary error
+				logger.error(domainName + ": Lookup in progress failed", e.getCause());
+				return new MailHostList(MailHostList.RESULT_TEMPORARY_ERROR);
+			}
+		}
+
+		try {
+			MailHostList hostList = lookupMailHosts(domainName, useCache);
+			if (hostList.getResult() == MailHostList.RESULT_SUCCESS)
+				// Only cache successful lookups
+				cache.put(domainName, hostList);
+			else if (hostList.getResult() == MailHostList.RESULT_TEMPORARY_ERROR) {
+				// Serve the expired list, if we have one
+				MailHostList staleList = cache.getStale(domainName);
+				if (staleList != null) {
+					logger.debug(domainName + ": Lookup failed, serving stale hostList: " + staleList);
+					hostList = staleList;
+				}
+			}
+			pending.complete(hostList);
+			return hostList;
+		} catch (RuntimeException | Error e) {
+			pending.completeExceptionally(e);
+			throw e;
+		} finally {
+			// Remove after the cache is updated, so that new callers either
+			// find the result in the cache or wait for this lookup
+			pendingLookups.remove(key, pending);
+		}
+	}
+
 	/**
 	 * Returns a list of mail exchange hosts for a domain as a result of a DNS
 	 * lookup. This value will never be null, but the list can be empty.
 	 *
 	 * @param domainName
 	 *            the domain name to be resolved (must not be null or empty)
+	 * @param useCache
+	 *            false to bypass the DNS record cache
 	 * @see com.ahlquist.common.net.dns.MailHostList
 	 */
-	private static MailHostList lookupMailHosts(String domainName) {
+	private static MailHostList lookupMailHosts(String domainName, boolean useCache) {
 		// Check if the domain name is a domain-literal, i.e. of type [1.2.3.4]
 		if (domainName.charAt(0) == '[') {
 			// [ is not allowed in a regular domain name, so this is either a
@@ -91,7 +378,7 @@ public final class MailHostResolver {
 		}
 
 		// Try to find MX records for domainName
-		DnsResponse response = DnsResolver.lookup(domainName, DnsRecord.TYPE_MX);
+		DnsResponse response = DnsResolver.lookup(domainName, DnsRecord.TYPE_MX, useCache);
 
 		// Check error/result code
 		int rCode = response.getResponseCode();
@@ -110,7 +397,7 @@ public final class MailHostResolver {
 			boolean hasCnameRecords = hasRecordsOfType(response, DnsRecord.TYPE_CNAME);
 			if (!hasCnameRecords) {
 				// If we did not have CNAMEs in the response, do a CNAME lookup
-				response = DnsResolver.lookup(domainName, DnsRecord.TYPE_CNAME);
+				response = DnsResolver.lookup(domainName, DnsRecord.TYPE_CNAME, useCache);
 				hasCnameRecords = hasRecordsOfType(response, DnsRecord.TYPE_CNAME);
 			}
 
@@ -118,7 +405,7 @@ public final class MailHostResolver {
 			if (hasCnameRecords) {
 				// If so, do an MX lookup on the CNAME result
 				String cname = selectCname(response);
-				response = DnsResolver.lookup(cname, DnsRecord.TYPE_MX);
+				response = DnsResolver.lookup(cname, DnsRecord.TYPE_MX, useCache);
 
 				// Check if we found MX records
 				if (hasRecordsOfType(response, DnsRecord.TYPE_MX))
@@ -127,7 +414,7 @@ public final class MailHostResolver {
 			}
 
 			// If we still don't have any MX records, try an A record lookup
-			response = DnsResolver.lookup(domainName, DnsRecord.TYPE_A);
+			response = DnsResolver.lookup(domainName, DnsRecord.TYPE_A, useCache);
 			// Check if we found A records
 			if (hasRecordsOfType(response, DnsRecord.TYPE_A))
 				// If so, make a host list from the A records
@@ -154,8 +441,17 @@ public final class MailHostResolver {
 	 */
 	static DnsARecord getARecord(String name) {
 		// Try to find A records for name
-		DnsResponse response = DnsResolver.lookup(name, DnsRecord.TYPE_A);
+		return getARecordFromAnswer(DnsResolver.lookup(name, DnsRecord.TYPE_A));
+	}
 
+	/**
+	 * Returns the first A record in the answer section of a response to an A
+	 * query, or null if the lookup failed or found no A records.
+	 *
+	 * @param response
+	 *            the response message to check for records
+	 */
+	private static DnsARecord getARecordFromAnswer(DnsResponse response) {
 		// Check error/result code
 		// No error, lookup succeeded
 		if (response.getResponseCode() == DnsResponse.RCODE_NOERROR) {
@@ -171,27 +467,52 @@ public final class MailHostResolver {
 	}
 
 	/**
-	 * Returns a MailHostList from a set of MX records
+	 * Returns a MailHostList from a set of MX records. Mail exchanges that
+	 * have no A record in the additional section are resolved concurrently,
+	 * so the list is fully addressed after one more round trip instead of one
+	 * round trip per mail exchange. A mail exchange that still has no address
+	 * is resolved again by MailHost.getAddress() when it is used.
 	 *
 	 * @param response
 	 *            the response message with MX records
 	 * @see com.ahlquist.common.net.dns.MailHostList
 	 */
 	private static MailHostList makeHostListFromMx(DnsResponse response) {
-		// Make MailHost objects from the MX records and add to a list
-		int mailHosts = response.getAnswerCount();
+		int answers = response.getAnswerCount();
+		// Only the A records of the mail exchanges are decoded
+		DnsRecord[] glue = response.getGlue();
 
-		VArray list = new VArray(mailHosts);
+		// Start A lookups for all mail exchanges without glue (once per name)
+		HashMap<String, CompletableFuture<DnsResponse>> aLookups = null;
+		for (int i = 0; i < answers; i++) {
+			if (response.getAnswer(i).getType() == DnsRecord.TYPE_MX) {
+				String exchange = ((DnsMxRecord) response.getAnswer(i)).getMailExchange();
+				if (getARecordFromGlue(glue, exchange) != null || isValidIpAddress(exchange))
+					continue;
+				if (aLookups == null)
+					aLookups = new HashMap<String, CompletableFuture<DnsResponse>>();
+				String key = exchange.toLowerCase();
+				if (!aLookups.containsKey(key))
+					aLookups.put(key, DnsResolver.lookupAsync(exchange, DnsRecord.TYPE_A));
+			}
+		}
+
+		// Make MailHost objects from the MX records and add to a list
+		VArray list = new VArray(answers);
 
 		// We want to get the smallest TTL value in the record set
 		int minTTL = Integer.MAX_VALUE;
 
-		for (int i = 0; i < mailHosts; i++) {
+		for (int i = 0; i < answers; i++) {
 			if (response.getAnswer(i).getType() == DnsRecord.TYPE_MX) {
 				DnsMxRecord mxRecord = (DnsMxRecord) response.getAnswer(i);
 				// Try to find this host name in the additional section (to get
 				// the IP address)
-				DnsARecord aRecord = getARecordFromAdditionalSection(response, mxRecord.getMailExchange());
+				DnsARecord aRecord = getARecordFromGlue(glue, mxRecord.getMailExchange());
+				if (aRecord == null && aLookups != null)
+					// Otherwise wait for our own A lookup
+					aRecord = getARecordFromLookup(mxRecord.getMailExchange(),
+							aLookups.get(mxRecord.getMailExchange().toLowerCase()));
 				String ipAddress = (aRecord == null) ? null : aRecord.getIpAddress();
 				int aRecordTTL = (aRecord == null) ? 0 : aRecord.getTTL();
 
@@ -214,6 +535,28 @@ public final class MailHostResolver {
 		return new MailHostList(list, minTTL);
 	}
 
+	/**
+	 * Waits for an A lookup started by makeHostListFromMx() and returns the
+	 * first A record found, or null. The lookup is bounded by the resolver
+	 * timeout and retries.
+	 *
+	 * @param name
+	 *            the host name being resolved
+	 * @param lookup
+	 *            the lookup in progress (can be null)
+	 */
+	private static DnsARecord getARecordFromLookup(String name, CompletableFuture<DnsResponse> lookup) {
+		if (lookup == null)
+			return null;
+		try {
+			return getARecordFromAnswer(lookup.join());
+		} catch (CompletionException e) {
+			// Leave it to MailHost.getAddress() to try again
+			logger.error(name + ": A lookup failed", e.getCause());
+			return null;
+		}
+	}
+
 	/**
 	 * Returns a MailHostList from a set of A records.
 	 *
@@ -352,22 +695,19 @@ public final class MailHostResolver {
 	}
 
 	/**
-	 * Tries to find an A record for a host in the additional section of the DNS
-	 * response.
+	 * Tries to find an A record for a host in the glue of the DNS response (the
+	 * A records of the mail exchanges in the additional section).
 	 *
-	 * @param response
-	 *            the response message to check for records
+	 * @param glue
+	 *            the glue records, see DnsResponse.getGlue()
 	 * @param name
 	 *            the (host) name to find an IP address for
 	 */
-	private static DnsARecord getARecordFromAdditionalSection(DnsResponse response, String name) {
-		for (int i = 0; i < response.getAdditionalCount(); i++) {
-			// Only bother with A RRs
-			if (response.getAdditional(i).getType() == DnsRecord.TYPE_A) {
-				// Is this the right host/domain?
-				if (name.equalsIgnoreCase(response.getAdditional(i).getName()))
-					return (DnsARecord) response.getAdditional(i);
-			}
+	private static DnsARecord getARecordFromGlue(DnsRecord[] glue, String name) {
+		for (int i = 0; i < glue.length; i++) {
+			// Is this the right host/domain?
+			if (name.equalsIgnoreCase(glue[i].getName()))
+				return (DnsARecord) glue[i];
 		}
 		return null;
 	}
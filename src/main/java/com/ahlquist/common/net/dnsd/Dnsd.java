@@ -6,7 +6,19 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 
@@ -21,6 +33,33 @@ import org.apache.log4j.Logger;
  * To use this class, you need to do the following:
  * <li>Instantiate an object that implements the DnsdRequestHandler interface.
  * <li>Instantiate a Dnsd object with the handler.
+ * <li>Optionally configure receiver threads and a worker pool.
+ * <li>Call start(), or call execute() from a thread of your own.
+ * <p>
+ * By default one thread receives, handles and answers each request in turn.
+ * With a worker pool, receiver threads only receive and hand the requests to
+ * a bounded pool of workers that call the handler and send the responses, so
+ * one slow request doesn't hold up the others. When the pool queue is full
+ * the request is either dropped or answered with SERVFAIL, see
+ * setOverloadPolicy().
+ * <p>
+ * In NIO mode the server uses a non-blocking DatagramChannel instead. Each
+ * receiver thread has its own selector and its own direct buffers for the
+ * request and the response, and handles the requests it receives itself, so
+ * no buffers or packets are allocated per request. The socket receive buffer
+ * takes the place of the worker queue; setWorkerPool() is not used in NIO
+ * mode.
+ * <p>
+ * enableTcp() adds a TCP listener on the same port, for clients retrying a
+ * truncated response. It uses the same handler, see DnsdTcpListener.
+ * <p>
+ * getMetrics() returns the counters and latency histograms of the server.
+ * <p>
+ * setRateLimiter() limits the UDP queries per client network, see
+ * DnsdRateLimiter. TCP queries are not limited.
+ * <p>
+ * If the handler answers from static data, setResponseCache() lets repeated
+ * questions be answered from the packed bytes of an earlier response.
  * <p>
  * The sample usage should be:
  * 
@@ -63,10 +102,39 @@ import org.apache.log4j.Logger;
 public class Dnsd { //extends MyThread {
 	final static Logger logger = Logger.getLogger(Dnsd.class);
 	private DatagramSocket socket;
+	/** The channel in NIO mode, null otherwise */
+	private DatagramChannel channel;
 
 	private DnsdRequestHandler handler;
+	/** The port (UDP and TCP) */
+	private int port;
+	/** The TCP listener, null if not enabled */
+	private DnsdTcpListener tcpListener;
 
 	private static final int max = 512;
+	/** How long (ms) a NIO receiver waits before checking if it was stopped */
+	private static final int SELECT_TIMEOUT = 1000;
+
+	/** Overload policy: drop requests that don't fit in the worker queue */
+	public static final int OVERLOAD_DROP = 0;
+	/** Overload policy: answer requests that don't fit with SERVFAIL */
+	public static final int OVERLOAD_SERVFAIL = 1;
+
+	/** Number of threads receiving requests */
+	private int receiverThreads = 1;
+	/** Handles the requests, null to handle them in the receiver thread */
+	private ThreadPoolExecutor workers;
+	/** What to do when the worker queue is full */
+	private volatile int overloadPolicy = OVERLOAD_DROP;
+	/** Limits the UDP queries per client, null if not limiting */
+	private volatile DnsdRateLimiter rateLimiter;
+	/** Packed responses, null if not caching */
+	private volatile DnsdResponseCache responseCache;
+	/** Set when the server is stopped */
+	private volatile boolean stopped = false;
+
+	/** Counters and latencies */
+	private DnsdMetrics metrics = new DnsdMetrics();
 
 	/**
 	 * Creates DNS deamon that will wait for UDP packets on the specified port
@@ -79,55 +147,423 @@ public class Dnsd { //extends MyThread {
 	 */
 	public Dnsd(int port, DnsdRequestHandler handler) throws SocketException {
 		this.handler = handler;
+		this.port = port;
 		socket = new DatagramSocket(port);
 	}
 
+	/**
+	 * Creates DNS deamon that will wait for UDP packets on the specified port,
+	 * optionally in NIO mode.
+	 *
+	 * @param port
+	 *            the port to wait on which normally is the well-known port for
+	 *            DNS - 53
+	 * @param handler
+	 *            a call-back to the DNS request handler
+	 * @param nio
+	 *            true to use a non-blocking DatagramChannel and pooled direct
+	 *            buffers
+	 */
+	public Dnsd(int port, DnsdRequestHandler handler, boolean nio) throws IOException {
+		this.handler = handler;
+		this.port = port;
+		if (nio) {
+			channel = DatagramChannel.open();
+			channel.bind(new InetSocketAddress(port));
+			channel.configureBlocking(false);
+		} else
+			socket = new DatagramSocket(port);
+	}
+
+	/**
+	 * Sets the number of threads receiving requests on the socket. Must be
+	 * called before start(). The default is 1.
+	 *
+	 * @param threads
+	 *            the number of receiver threads
+	 */
+	public void setReceiverThreads(int threads) {
+		receiverThreads = Math.max(1, threads);
+	}
+
+	/**
+	 * Hands requests to a pool of worker threads instead of handling them in
+	 * the receiver thread. Must be called before start() or execute().
+	 *
+	 * @param threads
+	 *            the number of worker threads
+	 * @param queueSize
+	 *            the maximum number of requests waiting for a worker
+	 */
+	public void setWorkerPool(int threads, int queueSize) {
+		workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), r -> {
+					Thread thread = new Thread(r, "Dnsd-worker");
+					thread.setDaemon(true);
+					return thread;
+				});
+	}
+
+	/**
+	 * Sets what to do with a request when all workers are busy and the queue
+	 * is full. The default is OVERLOAD_DROP.
+	 *
+	 * @param policy
+	 *            OVERLOAD_DROP or OVERLOAD_SERVFAIL
+	 */
+	public void setOverloadPolicy(int policy) {
+		overloadPolicy = policy;
+	}
+
+	/**
+	 * Caches the packed responses of the handler. Only use this if the handler
+	 * always gives the same response to the same question (until the cache is
+	 * cleared).
+	 *
+	 * @param responseCache
+	 *            the cache, or null to stop caching
+	 */
+	public void setResponseCache(DnsdResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	/**
+	 * Limits the number of UDP queries per client network.
+	 *
+	 * @param rateLimiter
+	 *            the rate limiter, or null to stop limiting
+	 */
+	public void setRateLimiter(DnsdRateLimiter rateLimiter) {
+		this.rateLimiter = rateLimiter;
+	}
+
+	/**
+	 * Listens for TCP connections on the same port as well. Must be called
+	 * before start().
+	 *
+	 * @param threads
+	 *            the number of threads handling TCP queries
+	 */
+	public void enableTcp(int threads) throws IOException {
+		tcpListener = new DnsdTcpListener(this, port, threads);
+	}
+
+	/**
+	 * Sets the maximum number of open TCP connections. The default is 100.
+	 */
+	public void setMaxTcpConnections(int maxConnections) {
+		tcpListener.setMaxConnections(maxConnections);
+	}
+
+	/**
+	 * Sets how long (ms) an idle TCP connection is kept open. The default is
+	 * 10 seconds.
+	 */
+	public void setTcpIdleTimeout(int idleTimeout) {
+		tcpListener.setIdleTimeout(idleTimeout);
+	}
+
+	/**
+	 * Starts the receiver threads (and the TCP listener) and returns.
+	 */
+	public void start() {
+		if (tcpListener != null)
+			tcpListener.start();
+		for (int i = 0; i < receiverThreads; i++) {
+			Thread thread = new Thread(() -> execute(), "Dnsd-receiver-" + i);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Stops the server. Closes the socket and lets the queued requests finish.
+	 */
+	public void stop() {
+		stopped = true;
+		if (tcpListener != null)
+			tcpListener.stop();
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				logger.error("Dnsd: IOException at channel close. ", e);
+			}
+		} else
+			socket.close();
+		if (workers != null)
+			workers.shutdown();
+	}
+
 	/**
 	 * Implements the execute in MyThread. Keeps on handling the income request
 	 * in while loop
 	 */
 	public void execute() {
-		while (true) {
+		if (channel != null) {
+			executeChannel();
+			return;
+		}
+		while (!stopped) {
 			byte[] request = new byte[max];
 			DatagramPacket packet = new DatagramPacket(request, request.length);
 			try {
 				socket.receive(packet);
 			} catch (IOException e) {
+				if (stopped)
+					break;
 				// log and handle
 				// use the ErrorMonitor
 				// leave the handle for continues error to the frame work?
 				logger.error("Dnsd: IOException at UDP socket receive. ", e);
+				metrics.recordSocketError();
 				continue;
 			}
-			DnsdByteParser parser = new DnsdByteParser(packet.getData(), packet.getLength());
-			DnsdByteBuilder builder = handle(parser);
+			metrics.recordQuery();
+
+			DnsdRateLimiter limiter = rateLimiter;
+			if (limiter != null && !limiter.allow(packet.getAddress())) {
+				metrics.recordRateLimited();
+				if (limiter.slip())
+					sendError(packet, DnsdResponse.RCODE_NOERROR, true);
+				continue;
+			}
+
+			if (workers == null)
+				process(packet, System.nanoTime());
+			else
+				dispatch(packet);
+		}
+	}
+
+	/**
+	 * The NIO mode receive loop. Receives, handles and answers requests using
+	 * buffers that are allocated once per thread.
+	 */
+	private void executeChannel() {
+		ByteBuffer requestBuffer = ByteBuffer.allocateDirect(max);
+		DnsdByteParser parser = new DnsdByteParser(requestBuffer, 0);
+		DnsdByteBuilder builder = new DnsdByteBuilder(ByteBuffer.allocateDirect(max));
+
+		Selector selector;
+		try {
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			logger.error("Dnsd: IOException at channel register. ", e);
+			return;
+		}
+
+		try {
+			while (!stopped) {
+				try {
+					if (selector.select(SELECT_TIMEOUT) == 0)
+						continue;
+					selector.selectedKeys().clear();
+
+					// Other receivers are woken up as well, read until there
+					// is nothing left
+					while (true) {
+						requestBuffer.clear();
+						SocketAddress client = channel.receive(requestBuffer);
+						if (client == null)
+							break;
+						metrics.recordQuery();
 
-			InetAddress address = packet.getAddress();
-			int port = packet.getPort();
-			packet = new DatagramPacket(builder.getBytes(), builder.getCurrentPosition(), address, port);
+						DnsdRateLimiter limiter = rateLimiter;
+						if (limiter != null && !limiter.allow(((InetSocketAddress) client).getAddress())) {
+							metrics.recordRateLimited();
+							if (limiter.slip()) {
+								parser.reset(requestBuffer.position());
+								builder.reset();
+								if (packError(parser, builder, DnsdResponse.RCODE_NOERROR, true))
+									channel.send(builder.getBuffer(), client);
+							}
+							continue;
+						}
+
+						process(parser, builder, requestBuffer.position(), client);
+					}
+				} catch (ClosedChannelException | ClosedSelectorException e) {
+					break;
+				} catch (IOException e) {
+					if (stopped)
+						break;
+					logger.error("Dnsd: IOException at UDP channel receive. ", e);
+					metrics.recordSocketError();
+				}
+			}
+		} finally {
 			try {
-				socket.send(packet);
+				selector.close();
 			} catch (IOException e) {
-				logger.error("Dnsd: IOException at UDP socket send. ", e);
-				continue;
+				logger.error("Dnsd: IOException at selector close. ", e);
 			}
 		}
 	}
 
 	/**
-	 * Calls the handler to handle the request.
+	 * Handles a request received in NIO mode and sends the response.
+	 *
+	 * @param parser
+	 *            the parser over the request buffer
+	 * @param builder
+	 *            the builder over the response buffer
+	 * @param length
+	 *            the length of the request
+	 * @param client
+	 *            the address to send the response to
+	 */
+	private void process(DnsdByteParser parser, DnsdByteBuilder builder, int length, SocketAddress client)
+			throws IOException {
+		parser.reset(length);
+		builder.reset();
+		try {
+			handle(parser, builder);
+		} catch (RuntimeException e) {
+			logger.error("Dnsd: Could not handle request from " + client, e);
+			metrics.recordError();
+			return;
+		}
+
+		// A non-blocking send fails (returns 0) if the socket send buffer is
+		// full; the client will retry
+		long handledTime = System.nanoTime();
+		if (channel.send(builder.getBuffer(), client) == 0)
+			metrics.recordSocketError();
+		metrics.recordSendTime(System.nanoTime() - handledTime);
+	}
+
+	/**
+	 * Hands a request to the worker pool, or applies the overload policy if
+	 * the pool is full.
+	 */
+	private void dispatch(final DatagramPacket packet) {
+		final long receivedTime = System.nanoTime();
+		try {
+			workers.execute(() -> process(packet, receivedTime));
+		} catch (RejectedExecutionException e) {
+			if (overloadPolicy == OVERLOAD_SERVFAIL)
+				sendError(packet, DnsdResponse.RCODE_SERVER_FAILURE, false);
+			else
+				metrics.recordDropped();
+		}
+	}
+
+	/**
+	 * Handles a request and sends the response.
+	 *
+	 * @param packet
+	 *            the request
+	 * @param receivedTime
+	 *            the time (System.nanoTime()) the request was received
+	 */
+	private void process(DatagramPacket packet, long receivedTime) {
+		metrics.recordQueueTime(System.nanoTime() - receivedTime);
+
+		DnsdByteBuilder builder = new DnsdByteBuilder();
+		try {
+			DnsdByteParser parser = new DnsdByteParser(packet.getData(), packet.getLength());
+			handle(parser, builder);
+		} catch (RuntimeException e) {
+			// Malformed request or handler failure, don't let it kill the
+			// thread
+			logger.error("Dnsd: Could not handle request from " + packet.getSocketAddress(), e);
+			metrics.recordError();
+			return;
+		}
+
+		long handledTime = System.nanoTime();
+		send(builder, packet.getAddress(), packet.getPort());
+		metrics.recordSendTime(System.nanoTime() - handledTime);
+	}
+
+	/**
+	 * Answers a request with an empty response without calling the handler:
+	 * SERVFAIL when overloaded, or TC when rate limited. Drops the request if
+	 * it can't be parsed.
+	 */
+	private void sendError(DatagramPacket packet, int rCode, boolean truncated) {
+		DnsdByteBuilder builder = new DnsdByteBuilder();
+		if (!packError(new DnsdByteParser(packet.getData(), packet.getLength()), builder, rCode, truncated)) {
+			if (!truncated)
+				metrics.recordDropped();
+			return;
+		}
+		if (!truncated)
+			metrics.recordOverloadResponse();
+		send(builder, packet.getAddress(), packet.getPort());
+	}
+
+	/**
+	 * Packs an empty response to a request. Returns false if the request can't
+	 * be parsed.
+	 */
+	private static boolean packError(DnsdByteParser parser, DnsdByteBuilder builder, int rCode, boolean truncated) {
+		try {
+			DnsdResponse response = new DnsdResponse(new DnsdRequest(parser));
+			response.setResponseCode(rCode);
+			response.getHeader().setTruncated(truncated);
+			response.pack(builder);
+			return true;
+		} catch (RuntimeException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Sends a response
+	 */
+	private void send(DnsdByteBuilder builder, InetAddress address, int port) {
+		DatagramPacket packet = new DatagramPacket(builder.getBytes(), builder.getCurrentPosition(), address, port);
+		try {
+			socket.send(packet);
+		} catch (IOException e) {
+			logger.error("Dnsd: IOException at UDP socket send. ", e);
+			metrics.recordSocketError();
+		}
+	}
+
+	/** Returns the metrics of the server */
+	public DnsdMetrics getMetrics() {
+		return metrics;
+	}
+
+	/** Returns the number of requests received over TCP */
+	public long getTcpRequestsReceived() {
+		return (tcpListener == null) ? 0 : tcpListener.getRequestsReceived();
+	}
+
+	/** Returns the number of TCP connections refused because there were too many */
+	public long getTcpConnectionsRefused() {
+		return (tcpListener == null) ? 0 : tcpListener.getConnectionsRefused();
+	}
+
+	/**
+	 * Calls the handler to handle the request, and records the response in
+	 * the metrics.
 	 * 
 	 * @param parser
 	 *            the parser holds the byte array of request.
-	 * @return the builder which holds the byte array of the response.
+	 * @param builder
+	 *            the builder to write the response to.
 	 */
-	private DnsdByteBuilder handle(DnsdByteParser parser) {
-		DnsdRequest request = new DnsdRequest(parser);
-		logger.debug("Dnsd INFO: the Request is: ID: " + request.getHeader().getId());
-		DnsdResponse response = handler.handle(request);
-		logger.debug("Dnsd INFO: the Response is: ID: " + response.getHeader().getId());
-		DnsdByteBuilder builder = new DnsdByteBuilder();
-		response.pack(builder);
-		return builder;
+	void handle(DnsdByteParser parser, DnsdByteBuilder builder) {
+		long startTime = System.nanoTime();
+		DnsdResponseCache cache = responseCache;
+		// Before the handler reads its data, see DnsdResponseCache.clear()
+		int generation = (cache == null) ? 0 : cache.getGeneration();
+		if (cache == null || !cache.get(parser, builder)) {
+			DnsdRequest request = new DnsdRequest(parser);
+			if (logger.isDebugEnabled())
+				logger.debug("Dnsd INFO: the Request is: ID: " + request.getHeader().getId());
+			DnsdResponse response = handler.handle(request);
+			if (logger.isDebugEnabled())
+				logger.debug("Dnsd INFO: the Response is: ID: " + response.getHeader().getId());
+			response.pack(builder);
+
+			if (cache != null)
+				cache.put(parser, builder, generation);
+		}
+		metrics.recordResponse(builder, System.nanoTime() - startTime);
 	}
 }
@@ -33,6 +33,10 @@ public class DnsdARecord extends DnsdRecord {
 		this.ipAddress = ipAddress;
 	}
 
+	DnsdRecord copyWithName(String name) {
+		return new DnsdARecord(name, getTTL(), ipAddress);
+	}
+
 	/**
 	 * Packs up ipAddress into Byte Array.
 	 * 
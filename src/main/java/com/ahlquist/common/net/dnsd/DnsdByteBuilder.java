@@ -1,6 +1,9 @@
 
 package com.ahlquist.common.net.dnsd;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
 import org.apache.log4j.Logger;
 
 import com.ahlquist.common.util.MyObject;
@@ -8,15 +11,28 @@ import com.ahlquist.common.util.MyObject;
 /**
  * A util class help covert int and String into byte array. It encodes the DNS
  * binary data.
+ * <p>
+ * The data is written to a byte array or to a (direct) ByteBuffer. A builder
+ * over a ByteBuffer can be reset and reused for every response.
+ * <p>
+ * Domain names are compressed (RFC 1035 4.1.4): the offset of every label
+ * written is kept, and a name that ends with a name already in the message is
+ * written as its new labels followed by a pointer to the old ones. A write
+ * that doesn't fit in the buffer throws a BufferOverflowException, after
+ * which the builder can be rewound to a position before the failed write.
  * 
  * @author Douglas Ahlquist
  */
 class DnsdByteBuilder extends MyObject {
 	final static Logger logger = Logger.getLogger(DnsdByteBuilder.class);
-	/** hold the byte array to be built */
-	private byte[] array;
+	/** hold the bytes to be built */
+	private ByteBuffer buffer;
 	/** maximum length for data in a udp packet */
-	private final int MAX_LENGTH = 512;
+	private static final int MAX_LENGTH = 512;
+	/** Maximum number of names (suffixes) remembered for compression */
+	private static final int MAX_NAMES = 64;
+	/** Largest offset a compression pointer can hold */
+	private static final int MAX_POINTER = 0x3FFF;
 
 	/**
 	 * The pointer of the current position in the array. Offset is the actual
@@ -24,17 +40,85 @@ class DnsdByteBuilder extends MyObject {
 	 */
 	private int offset;
 
+	/** Offsets of the labels written so far, in increasing order */
+	private int[] names = new int[MAX_NAMES];
+	/** Number of offsets in names */
+	private int nameCount;
+
 	/**
 	 * Creates DnsByteBuilder Initial the array with max length
 	 */
 	DnsdByteBuilder() {
-		array = new byte[MAX_LENGTH];
+		this(ByteBuffer.allocate(MAX_LENGTH));
+	}
+
+	/**
+	 * Creates DnsByteBuilder that writes to a buffer. Bytes are written from
+	 * the start of the buffer, the position and limit of the buffer are not
+	 * used.
+	 * 
+	 * @param buffer
+	 *            the buffer to write to
+	 */
+	DnsdByteBuilder(ByteBuffer buffer) {
+		this.buffer = buffer;
 		offset = 0;
 	}
 
-	/** Returns the encoded byte array */
+	/** Starts building a new message in the same buffer */
+	void reset() {
+		buffer.clear();
+		offset = 0;
+		nameCount = 0;
+	}
+
+	/**
+	 * Moves the current position back, dropping everything written after it.
+	 * Used to undo a write that didn't fit.
+	 *
+	 * @param position
+	 *            a position returned by getCurrentPosition()
+	 */
+	void rewind(int position) {
+		offset = position;
+		while (nameCount > 0 && names[nameCount - 1] >= position)
+			nameCount--;
+	}
+
+	/**
+	 * Returns the encoded byte array. Only for builders created without a
+	 * buffer.
+	 */
 	byte[] getBytes() {
-		return array;
+		return buffer.array();
+	}
+
+	/**
+	 * Returns the buffer, with the position at 0 and the limit at the end of
+	 * the encoded data, ready to be sent.
+	 */
+	ByteBuffer getBuffer() {
+		buffer.limit(offset);
+		buffer.position(0);
+		return buffer;
+	}
+
+	/** Returns a copy of the encoded data */
+	byte[] toByteArray() {
+		byte[] bytes = new byte[offset];
+		for (int i = 0; i < offset; i++)
+			bytes[i] = buffer.get(i);
+		return bytes;
+	}
+
+	/** Returns a byte that has been written */
+	byte getByte(int position) {
+		return buffer.get(position);
+	}
+
+	/** Returns the maximum length of the message */
+	int getCapacity() {
+		return buffer.capacity();
 	}
 
 	/** Returns the current position */
@@ -49,26 +133,38 @@ class DnsdByteBuilder extends MyObject {
 	 *            the number of byte positions to advance
 	 */
 	public void skip(int i) {
+		ensureRoom(i);
 		offset += i;
 	}
 
 	/** Appends a byte to the array. */
 	void writeByte(byte b) {
-		array[offset++] = b;
+		ensureRoom(1);
+		buffer.put(offset++, b);
+	}
+
+	/** Appends bytes to the array. */
+	void writeBytes(byte[] bytes) {
+		ensureRoom(bytes.length);
+		buffer.position(offset);
+		buffer.put(bytes);
+		offset += bytes.length;
 	}
 
 	/** Appends a int of two bytes to the array. */
 	void writeTwoByteInt(int value) {
-		array[offset++] = (byte) (value >> 8);
-		array[offset++] = (byte) (value & 0xFF);
+		ensureRoom(2);
+		buffer.put(offset++, (byte) (value >> 8));
+		buffer.put(offset++, (byte) (value & 0xFF));
 	}
 
 	/** Appends a int of four bytes to the array. */
 	void writeFourByteInt(int value) {
-		array[offset++] = (byte) ((value >> 24) & 0xFF);
-		array[offset++] = (byte) ((value >> 16) & 0xFF);
-		array[offset++] = (byte) ((value >> 8) & 0xFF);
-		array[offset++] = (byte) (value & 0xFF);
+		ensureRoom(4);
+		buffer.put(offset++, (byte) ((value >> 24) & 0xFF));
+		buffer.put(offset++, (byte) ((value >> 16) & 0xFF));
+		buffer.put(offset++, (byte) ((value >> 8) & 0xFF));
+		buffer.put(offset++, (byte) (value & 0xFF));
 	}
 
 	/**
@@ -80,38 +176,127 @@ class DnsdByteBuilder extends MyObject {
 	 *            the position in the byte array to set these two byte
 	 */
 	void setTwoByteInt(int value, int position) {
-		array[position++] = (byte) (value >> 8);
-		array[position++] = (byte) (value & 0xFF);
+		buffer.put(position++, (byte) (value >> 8));
+		buffer.put(position, (byte) (value & 0xFF));
+	}
+
+	/**
+	 * Sets a byte in the array at certain position.
+	 * 
+	 * @param b
+	 *            the byte to be inserted
+	 * @param position
+	 *            the position in the byte array to set the byte
+	 */
+	void setByte(byte b, int position) {
+		buffer.put(position, b);
 	}
 
 	/**
-	 * Encodes a domain name as a sequence of labels.
+	 * Encodes a domain name as a sequence of labels, compressed if the name
+	 * ends with a name already in the message.
 	 * 
 	 * @param name
 	 *            the domain name to encode
 	 */
 	void writeName(String name) {
-		int dotIndex;
-		int endIndex;
+		int end = name.length();
+		// A trailing dot is the root label, which is always added
+		if (end > 0 && name.charAt(end - 1) == '.')
+			end--;
 		int fromIndex = 0;
 
 		// For each label
-		do {
-			dotIndex = name.indexOf('.', fromIndex);
-			if (dotIndex == -1)
-				endIndex = name.length();
-			else
-				endIndex = dotIndex;
+		while (fromIndex < end) {
+			// Is the rest of the name in the message already?
+			int pointer = findName(name, fromIndex, end);
+			if (pointer >= 0) {
+				writeTwoByteInt(0xC000 | pointer);
+				return;
+			}
+
+			int endIndex = name.indexOf('.', fromIndex);
+			if (endIndex == -1 || endIndex > end)
+				endIndex = end;
+			ensureRoom(1 + endIndex - fromIndex);
+			int position = offset;
+
 			// Store the label length
-			array[offset++] = (byte) (endIndex - fromIndex);
+			buffer.put(offset++, (byte) (endIndex - fromIndex));
 
 			// Store the label characters
 			while (fromIndex < endIndex)
-				array[offset++] = (byte) name.charAt(fromIndex++);
+				buffer.put(offset++, (byte) name.charAt(fromIndex++));
 			fromIndex = endIndex + 1;
-		} while (dotIndex != -1);
+
+			// Remember the label for later names
+			if (nameCount < names.length && position <= MAX_POINTER)
+				names[nameCount++] = position;
+		}
 
 		// Add the terminating 0 length label
-		array[offset++] = 0;
+		writeByte((byte) 0);
+	}
+
+	/**
+	 * Returns the offset of a name in the message that is the same as (the
+	 * end of) a name, or -1 if there is none.
+	 * 
+	 * @param name
+	 *            the domain name
+	 * @param fromIndex
+	 *            the index of the first label to look for
+	 * @param end
+	 *            the index of the end of the name (without a trailing dot)
+	 */
+	private int findName(String name, int fromIndex, int end) {
+		for (int i = 0; i < nameCount; i++) {
+			if (nameEquals(names[i], name, fromIndex, end))
+				return names[i];
+		}
+		return -1;
+	}
+
+	/**
+	 * Compares a name in the message to (the end of) a name, case
+	 * insensitively.
+	 */
+	private boolean nameEquals(int position, String name, int fromIndex, int end) {
+		int c = fromIndex;
+		int labelLen = buffer.get(position++) & 0xFF;
+		while (labelLen != 0) {
+			if ((labelLen & 0xC0) == 0xC0)
+				// We only write pointers to earlier names, so there are no
+				// loops
+				position = ((labelLen & 0x3F) << 8) | (buffer.get(position) & 0xFF);
+			else {
+				if (c > fromIndex) {
+					if (c >= end || name.charAt(c) != '.')
+						return false;
+					c++;
+				}
+				if (c + labelLen > end)
+					return false;
+				while (labelLen-- > 0) {
+					char a = (char) (buffer.get(position++) & 0xFF);
+					char b = name.charAt(c++);
+					if (a != b && Character.toLowerCase(a) != Character.toLowerCase(b))
+						return false;
+				}
+			}
+			labelLen = buffer.get(position++) & 0xFF;
+		}
+		return c == end;
+	}
+
+	/**
+	 * Throws a BufferOverflowException if there isn't room for more bytes
+	 * 
+	 * @param length
+	 *            the number of bytes to be written
+	 */
+	private void ensureRoom(int length) {
+		if (offset + length > buffer.capacity())
+			throw new BufferOverflowException();
 	}
 }
@@ -1,6 +1,8 @@
 
 package com.ahlquist.common.net.dnsd;
 
+import java.nio.ByteBuffer;
+
 import org.apache.log4j.Logger;
 
 import com.ahlquist.common.util.MyObject;
@@ -8,13 +10,17 @@ import com.ahlquist.common.util.MyObject;
 /**
  * A util class help read data (e.g. int) from the byte array. It decodes DNS
  * binary data.
+ * <p>
+ * The data can be a byte array or a (direct) ByteBuffer. A parser over a
+ * ByteBuffer can be reset and reused for every request received into that
+ * buffer.
  * 
  * @author Douglas Ahlqusit
  */
 class DnsdByteParser extends MyObject {
 	final static Logger logger = Logger.getLogger(DnsdByteParser.class);
-	/** hold the byte array to be parsed */
-	private byte[] array;
+	/** hold the bytes to be parsed */
+	private ByteBuffer buffer;
 	/** the actual length of data in the array */
 	private int length;
 	/** the current position of reading */
@@ -31,11 +37,44 @@ class DnsdByteParser extends MyObject {
 	 *            the length of actual data in that array.
 	 */
 	DnsdByteParser(byte[] array, int length) {
-		this.array = array;
+		this(ByteBuffer.wrap(array), length);
+	}
+
+	/**
+	 * Creates a DnsdByteParser over a buffer. Bytes are read from the start of
+	 * the buffer, the position and limit of the buffer are not used.
+	 * 
+	 * @param buffer
+	 *            a buffer holds the binary data of a DNS Request.
+	 * @param length
+	 *            the length of actual data in that buffer.
+	 */
+	DnsdByteParser(ByteBuffer buffer, int length) {
+		this.buffer = buffer;
+		reset(length);
+	}
+
+	/**
+	 * Starts parsing a new request in the same buffer.
+	 * 
+	 * @param length
+	 *            the length of actual data in the buffer.
+	 */
+	void reset(int length) {
 		this.length = length;
 		offset = 0;
 	}
 
+	/** Returns the buffer holding the request */
+	ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/** Returns the length of the request */
+	int getLength() {
+		return length;
+	}
+
 	/**
 	 * If we are past the end, i.e. the offset has passed the length of the
 	 * DnsByteArray.
@@ -58,22 +97,22 @@ class DnsdByteParser extends MyObject {
 	 * Reads the next byte from the array
 	 */
 	public byte readByte() {
-		return array[offset++];
+		return buffer.get(offset++);
 	}
 
 	/**
 	 * Reads a 16-bit (2-byte) integer from the array
 	 */
 	public int readTwoByteInt() {
-		return ((array[offset++] & 0xFF) << 8) | (array[offset++] & 0xFF);
+		return ((buffer.get(offset++) & 0xFF) << 8) | (buffer.get(offset++) & 0xFF);
 	}
 
 	/**
 	 * Reads a 32-bit (4-byte) integer from the array
 	 */
 	public int readFourByteInt() {
-		return ((array[offset++] & 0xFF) << 24) | ((array[offset++] & 0xFF) << 16) | ((array[offset++] & 0xFF) << 8)
-				| (array[offset++] & 0xFF);
+		return ((buffer.get(offset++) & 0xFF) << 24) | ((buffer.get(offset++) & 0xFF) << 16)
+				| ((buffer.get(offset++) & 0xFF) << 8) | (buffer.get(offset++) & 0xFF);
 	}
 
 	/**
@@ -87,20 +126,20 @@ class DnsdByteParser extends MyObject {
 			name.setLength(0);
 
 		int nextOffset = 0;
-		int labelLen = array[offset++] & 0xFF;
+		int labelLen = buffer.get(offset++) & 0xFF;
 
 		// For each label... (End of domain name is marked by a zero-length
 		// label.)
 		while (labelLen != 0) {
 			// Is this a pointer (compressed label) ?
 			if ((labelLen & 0xC0) == 0xC0) {
-				int pointer = ((labelLen & 0x3F) << 8) | (array[offset++] & 0xFF);
+				int pointer = ((labelLen & 0x3F) << 8) | (buffer.get(offset++) & 0xFF);
 				// Save the offset if this is the first time we find a pointer
 				if (nextOffset == 0)
 					nextOffset = offset;
 				// The new offset is the pointer
 				offset = pointer;
-				labelLen = array[offset++] & 0xFF;
+				labelLen = buffer.get(offset++) & 0xFF;
 			}
 			// Decode label
 			else {
@@ -108,11 +147,11 @@ class DnsdByteParser extends MyObject {
 
 				// Add the label characters to the StringBuffer
 				while (labelLen > 0) {
-					name.append((char) array[offset++]);
+					name.append((char) buffer.get(offset++));
 					labelLen--;
 				}
 
-				labelLen = array[offset++] & 0xFF;
+				labelLen = buffer.get(offset++) & 0xFF;
 				// Append dot if this isn't the last label
 				if (labelLen != 0)
 					name.append('.');
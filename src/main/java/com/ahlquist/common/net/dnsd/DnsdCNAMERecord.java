@@ -0,0 +1,64 @@
+
+package com.ahlquist.common.net.dnsd;
+
+import org.apache.log4j.Logger;
+
+/**
+ * DnsdCNAMERecord holds the canonical name of an alias
+ * 
+ * @author Douglas Ahlquist
+ * @see DnsdResponse
+ * @see DnsdRecord
+ */
+public class DnsdCNAMERecord extends DnsdRecord {
+	final static Logger logger = Logger.getLogger(DnsdCNAMERecord.class);
+	/** The canonical name */
+	private String canonicalName;
+
+	/**
+	 * Creates a DNS CNAME type Record.
+	 *
+	 * @param name
+	 *            the alias (www.ahlquist.com)
+	 * @param ttl
+	 *            time to live how long the record should be valid in seconds
+	 * @param canonicalName
+	 *            the canonical name of the alias
+	 */
+	public DnsdCNAMERecord(String name, int ttl, String canonicalName) {
+		super(name, TYPE_CNAME, ttl);
+		this.canonicalName = canonicalName;
+	}
+
+	/** Returns the canonical name */
+	String getCanonicalName() {
+		return canonicalName;
+	}
+
+	DnsdRecord copyWithName(String name) {
+		return new DnsdCNAMERecord(name, getTTL(), canonicalName);
+	}
+
+	/**
+	 * Packs this record
+	 * 
+	 * @param bytebuilder
+	 *            hold a byte array and help transfer data into binary format
+	 */
+	void pack(DnsdByteBuilder bytebuilder) {
+		super.pack(bytebuilder);
+
+		// Save the current position (for the length)
+		int position = bytebuilder.getCurrentPosition();
+
+		// skip the length
+		bytebuilder.skip(2);
+
+		// Write the canonical name
+		bytebuilder.writeName(canonicalName);
+		int length = bytebuilder.getCurrentPosition() - position - 2;
+
+		// Go back and set the length
+		bytebuilder.setTwoByteInt(length, position);
+	}
+}
\ No newline at end of file
@@ -14,6 +14,8 @@ class DnsdHeader extends MyObject {
 	final static Logger logger = Logger.getLogger(DnsdHeader.class);
 	/** id to match up queries and answers */
 	private int id;
+	/** Query (false) or response (true) */
+	private boolean qr = false;
 	/** Authorative answer */
 	private boolean aa = true;
 	/** Message truncated */
@@ -40,6 +42,7 @@ class DnsdHeader extends MyObject {
 	DnsdHeader(DnsdHeader header) {
 		id = header.getId();
 		qdCount = header.getqdCount();
+		qr = true;
 	}
 
 	/**
@@ -52,6 +55,7 @@ class DnsdHeader extends MyObject {
 	DnsdHeader(DnsdByteParser parser) {
 		id = parser.readTwoByteInt();
 		byte b = parser.readByte();
+		qr = (b & 0x80) == 0x80;
 		aa = (b & 4) == 4;
 		tc = (b & 2) == 2;
 		rCode = parser.readByte() & 0xF;
@@ -69,14 +73,7 @@ class DnsdHeader extends MyObject {
 	 */
 	void pack(DnsdByteBuilder bytebuilder) {
 		bytebuilder.writeTwoByteInt(id);
-
-		// aa is the third bit and tc is second bit
-		byte b = 0;
-		if (aa)
-			b |= 4;
-		if (tc)
-			b |= 2;
-		bytebuilder.writeByte(b);
+		bytebuilder.writeByte(getFlags());
 
 		// rCode
 		bytebuilder.writeByte((byte) rCode);
@@ -91,6 +88,51 @@ class DnsdHeader extends MyObject {
 
 	}
 
+	/**
+	 * Updates the flags and the counts of a header that has been packed
+	 * already.
+	 * 
+	 * @param bytebuilder
+	 *            the builder the header was packed into, at position 0
+	 */
+	void update(DnsdByteBuilder bytebuilder) {
+		bytebuilder.setByte(getFlags(), 2);
+		bytebuilder.setTwoByteInt(qdCount, 4);
+		bytebuilder.setTwoByteInt(anCount, 6);
+		bytebuilder.setTwoByteInt(nsCount, 8);
+		bytebuilder.setTwoByteInt(arCount, 10);
+	}
+
+	/**
+	 * Returns the first flags byte
+	 */
+	private byte getFlags() {
+		// qr is the high bit, aa is the third bit and tc is second bit
+		byte b = 0;
+		if (qr)
+			b |= 0x80;
+		if (aa)
+			b |= 4;
+		if (tc)
+			b |= 2;
+		return b;
+	}
+
+	/** Set the truncated flag in the header */
+	void setTruncated(boolean tc) {
+		this.tc = tc;
+	}
+
+	/** Set the response code in the header */
+	void setResponseCode(int rCode) {
+		this.rCode = rCode;
+	}
+
+	/** Returns the response code */
+	int getResponseCode() {
+		return rCode;
+	}
+
 	/** Set the AnswerCount in the header */
 	public void setAnswerCount(int count) {
 		anCount = count;
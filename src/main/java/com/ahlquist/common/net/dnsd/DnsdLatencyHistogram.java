@@ -0,0 +1,112 @@
+
+package com.ahlquist.common.net.dnsd;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ahlquist.common.util.MyObject;
+
+/**
+ * A latency histogram for DnsdMetrics, in the style of HdrHistogram.<br>
+ * Values (in ns) below 64 have a bucket each. Above that every power of 2 is
+ * split into 32 buckets, so a value is known to within about 3%, from
+ * nanoseconds to a minute, in about a thousand buckets. Buckets are LongAdders,
+ * so threads recording at the same time don't contend.
+ * 
+ * @author Douglas Ahlquist
+ * @see DnsdMetrics
+ */
+final class DnsdLatencyHistogram extends MyObject {
+	/** log2 of the number of buckets per power of 2 */
+	private static final int SUB_BUCKET_BITS = 5;
+	/** Largest value recorded, larger values are recorded as this (~68 s) */
+	private static final long MAX_VALUE = 1L << 36;
+	/** Number of buckets */
+	static final int BUCKET_COUNT = getIndex(MAX_VALUE) + 1;
+
+	/** The buckets */
+	private final LongAdder[] buckets = new LongAdder[BUCKET_COUNT];
+	/** Sum of all values */
+	private final LongAdder sum = new LongAdder();
+
+	DnsdLatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++)
+			buckets[i] = new LongAdder();
+	}
+
+	/**
+	 * Records a value
+	 * 
+	 * @param nanos
+	 *            the latency in ns
+	 */
+	void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		buckets[getIndex(Math.min(nanos, MAX_VALUE))].increment();
+		sum.add(nanos);
+	}
+
+	/**
+	 * Returns the current counts of the buckets
+	 */
+	long[] getCounts() {
+		long[] counts = new long[buckets.length];
+		for (int i = 0; i < counts.length; i++)
+			counts[i] = buckets[i].sum();
+		return counts;
+	}
+
+	/**
+	 * Returns the sum of all values
+	 */
+	long getSum() {
+		return sum.sum();
+	}
+
+	/**
+	 * Returns the value (in ns) at a percentile of a set of bucket counts, 0 if
+	 * there are no values
+	 * 
+	 * @param counts
+	 *            the counts returned by getCounts()
+	 * @param percentile
+	 *            the percentile (0-100)
+	 */
+	static long getValueAtPercentile(long[] counts, double percentile) {
+		long total = 0;
+		for (int i = 0; i < counts.length; i++)
+			total += counts[i];
+		if (total == 0)
+			return 0;
+
+		long target = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long count = 0;
+		for (int i = 0; i < counts.length; i++) {
+			count += counts[i];
+			if (count >= target)
+				return getValue(i);
+		}
+		return getValue(counts.length - 1);
+	}
+
+	/**
+	 * Returns the bucket of a value
+	 */
+	private static int getIndex(long value) {
+		if (value < (2 << SUB_BUCKET_BITS))
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+	}
+
+	/**
+	 * Returns the value in the middle of a bucket
+	 */
+	private static long getValue(int index) {
+		if (index < (2 << SUB_BUCKET_BITS))
+			return index;
+		int shift = (index >> SUB_BUCKET_BITS) - 1;
+		long subBucket = index - (shift << SUB_BUCKET_BITS);
+		return (subBucket << shift) + ((1L << shift) >> 1);
+	}
+}
@@ -36,6 +36,15 @@ public class DnsdMXRecord extends DnsdRecord {
 		this.mailExchange = mailExchange;
 	}
 
+	/** Returns the mail exchange domain name */
+	String getMailExchange() {
+		return mailExchange;
+	}
+
+	DnsdRecord copyWithName(String name) {
+		return new DnsdMXRecord(name, getTTL(), preference, mailExchange);
+	}
+
 	/**
 	 * Pack up MX Record into Byte Array.
 	 * 
@@ -53,7 +62,7 @@ public class DnsdMXRecord extends DnsdRecord {
 
 		bytebuilder.writeTwoByteInt(preference);
 		bytebuilder.writeName(mailExchange);
-		int length = bytebuilder.getCurrentPosition() - position;
+		int length = bytebuilder.getCurrentPosition() - position - 2;
 
 		// go back set the length
 		bytebuilder.setTwoByteInt(length, position);
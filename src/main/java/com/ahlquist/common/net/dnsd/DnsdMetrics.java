@@ -0,0 +1,321 @@
+
+package com.ahlquist.common.net.dnsd;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import com.ahlquist.common.util.MyObject;
+import com.ahlquist.common.util.MyTime;
+
+/**
+ * The metrics of a Dnsd server: queries, query types, response codes, drops,
+ * errors and latency histograms.<br>
+ * Every counter is a LongAdder, so the threads serving queries never wait on
+ * each other to count. Operators poll snapshot(), which copies the counters
+ * into an immutable Snapshot; the queries per second are computed from two
+ * snapshots.
+ * <p>
+ * The sample usage should be:
+ * 
+ * <pre>
+ * DnsdMetrics.Snapshot previous = dnsd.getMetrics().snapshot();
+ * ...
+ * DnsdMetrics.Snapshot current = dnsd.getMetrics().snapshot();
+ * System.out.println(current.getQueriesPerSecond(previous) + " qps, p99 "
+ * 		+ current.getHandleMicrosAtPercentile(99) + " us");
+ * </pre>
+ * 
+ * @author Douglas Ahlquist
+ * @see Dnsd
+ */
+public class DnsdMetrics extends MyObject {
+	/** Query types counted on their own, larger types are counted as 0 */
+	private static final int QUERY_TYPES = 256;
+	/** Number of response codes (4 bits) */
+	private static final int RESPONSE_CODES = 16;
+	/** Length of the message header */
+	private static final int HEADER_LENGTH = 12;
+
+	/** Queries received (UDP and TCP) */
+	private LongAdder queries = new LongAdder();
+	/** Queries dropped because the worker queue was full */
+	private LongAdder dropped = new LongAdder();
+	/** Queries answered with SERVFAIL because the worker queue was full */
+	private LongAdder overloadResponses = new LongAdder();
+	/** Queries over the rate limit */
+	private LongAdder rateLimited = new LongAdder();
+	/** Queries that could not be handled (bad query or handler failure) */
+	private LongAdder errors = new LongAdder();
+	/** Socket receive and send failures, and responses that didn't fit in the socket buffer */
+	private LongAdder socketErrors = new LongAdder();
+	/** Responses by query type */
+	private LongAdder[] queryTypes = newCounters(QUERY_TYPES);
+	/** Responses by response code */
+	private LongAdder[] responseCodes = newCounters(RESPONSE_CODES);
+
+	/** Time queries waited for a worker */
+	private DnsdLatencyHistogram queueLatency = new DnsdLatencyHistogram();
+	/** Time spent parsing, handling and packing */
+	private DnsdLatencyHistogram handleLatency = new DnsdLatencyHistogram();
+	/** Time spent sending responses */
+	private DnsdLatencyHistogram sendLatency = new DnsdLatencyHistogram();
+
+	/** Counts a query */
+	void recordQuery() {
+		queries.increment();
+	}
+
+	/** Counts a query dropped because the worker queue was full */
+	void recordDropped() {
+		dropped.increment();
+	}
+
+	/** Counts a query answered with SERVFAIL because the worker queue was full */
+	void recordOverloadResponse() {
+		overloadResponses.increment();
+	}
+
+	/** Counts a query over the rate limit */
+	void recordRateLimited() {
+		rateLimited.increment();
+	}
+
+	/** Counts a query that could not be handled */
+	void recordError() {
+		errors.increment();
+	}
+
+	/** Counts a socket error */
+	void recordSocketError() {
+		socketErrors.increment();
+	}
+
+	/** Records the time a query waited for a worker */
+	void recordQueueTime(long nanos) {
+		queueLatency.record(nanos);
+	}
+
+	/** Records the time spent sending a response */
+	void recordSendTime(long nanos) {
+		sendLatency.record(nanos);
+	}
+
+	/**
+	 * Counts a response by query type and response code, and records the time
+	 * it took to make it
+	 * 
+	 * @param builder
+	 *            the builder holding the packed response
+	 * @param nanos
+	 *            the time spent parsing, handling and packing
+	 */
+	void recordResponse(DnsdByteBuilder builder, long nanos) {
+		handleLatency.record(nanos);
+		responseCodes[builder.getByte(3) & 0xF].increment();
+
+		// The question name is the first name in the message, so it is never
+		// compressed
+		int offset = HEADER_LENGTH;
+		int end = builder.getCurrentPosition();
+		if (builder.getByte(5) == 0 || offset >= end)
+			return;
+		int labelLen;
+		while ((labelLen = builder.getByte(offset++) & 0xFF) != 0 && offset < end)
+			offset += labelLen;
+		if (offset + 2 > end)
+			return;
+		int type = ((builder.getByte(offset) & 0xFF) << 8) | (builder.getByte(offset + 1) & 0xFF);
+		queryTypes[(type < QUERY_TYPES) ? type : 0].increment();
+	}
+
+	/**
+	 * Returns a copy of the current metrics
+	 */
+	public Snapshot snapshot() {
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Returns an array of new counters
+	 */
+	private static LongAdder[] newCounters(int size) {
+		LongAdder[] counters = new LongAdder[size];
+		for (int i = 0; i < size; i++)
+			counters[i] = new LongAdder();
+		return counters;
+	}
+
+	/**
+	 * Returns the sums of an array of counters
+	 */
+	private static long[] sum(LongAdder[] counters) {
+		long[] sums = new long[counters.length];
+		for (int i = 0; i < sums.length; i++)
+			sums[i] = counters[i].sum();
+		return sums;
+	}
+
+	/**
+	 * The metrics at a point in time. Immutable.
+	 */
+	public static final class Snapshot {
+		private final long time;
+		private final long queries;
+		private final long dropped;
+		private final long overloadResponses;
+		private final long rateLimited;
+		private final long errors;
+		private final long socketErrors;
+		private final long[] queryTypes;
+		private final long[] responseCodes;
+		private final long[] queueCounts;
+		private final long queueSum;
+		private final long[] handleCounts;
+		private final long handleSum;
+		private final long[] sendCounts;
+		private final long sendSum;
+
+		private Snapshot(DnsdMetrics metrics) {
+			time = MyTime.getCurrentMillis();
+			queries = metrics.queries.sum();
+			dropped = metrics.dropped.sum();
+			overloadResponses = metrics.overloadResponses.sum();
+			rateLimited = metrics.rateLimited.sum();
+			errors = metrics.errors.sum();
+			socketErrors = metrics.socketErrors.sum();
+			queryTypes = sum(metrics.queryTypes);
+			responseCodes = sum(metrics.responseCodes);
+			queueCounts = metrics.queueLatency.getCounts();
+			queueSum = metrics.queueLatency.getSum();
+			handleCounts = metrics.handleLatency.getCounts();
+			handleSum = metrics.handleLatency.getSum();
+			sendCounts = metrics.sendLatency.getCounts();
+			sendSum = metrics.sendLatency.getSum();
+		}
+
+		/** Returns the time of the snapshot (ms since the epoch) */
+		public long getTime() {
+			return time;
+		}
+
+		/** Returns the number of queries received (UDP and TCP) */
+		public long getQueries() {
+			return queries;
+		}
+
+		/**
+		 * Returns the queries per second between an earlier snapshot and this
+		 * one
+		 * 
+		 * @param previous
+		 *            the earlier snapshot
+		 */
+		public double getQueriesPerSecond(Snapshot previous) {
+			long millis = time - previous.time;
+			return (millis <= 0) ? 0 : (queries - previous.queries) * 1000.0 / millis;
+		}
+
+		/** Returns the number of queries dropped because the server was overloaded */
+		public long getDropped() {
+			return dropped;
+		}
+
+		/** Returns the number of SERVFAIL responses sent because the server was overloaded */
+		public long getOverloadResponses() {
+			return overloadResponses;
+		}
+
+		/** Returns the number of queries over the rate limit */
+		public long getRateLimited() {
+			return rateLimited;
+		}
+
+		/** Returns the number of queries that could not be handled */
+		public long getErrors() {
+			return errors;
+		}
+
+		/** Returns the number of socket errors */
+		public long getSocketErrors() {
+			return socketErrors;
+		}
+
+		/**
+		 * Returns the number of responses to a query type. Types of 256 and
+		 * up are counted as type 0.
+		 * 
+		 * @param type
+		 *            the query type (DnsdRecord.TYPE_*)
+		 */
+		public long getQueryTypeCount(int type) {
+			return (type >= 0 && type < queryTypes.length) ? queryTypes[type] : 0;
+		}
+
+		/**
+		 * Returns the number of responses with a response code
+		 * 
+		 * @param rCode
+		 *            the response code (DnsdResponse.RCODE_*)
+		 */
+		public long getResponseCodeCount(int rCode) {
+			return (rCode >= 0 && rCode < responseCodes.length) ? responseCodes[rCode] : 0;
+		}
+
+		/** Returns the number of responses */
+		public long getResponses() {
+			long total = 0;
+			for (int i = 0; i < responseCodes.length; i++)
+				total += responseCodes[i];
+			return total;
+		}
+
+		/** Returns the average time in microseconds queries waited for a worker */
+		public long getAverageQueueMicros() {
+			return average(queueSum, queueCounts);
+		}
+
+		/** Returns the time in microseconds queries waited for a worker at a percentile (0-100) */
+		public long getQueueMicrosAtPercentile(double percentile) {
+			return DnsdLatencyHistogram.getValueAtPercentile(queueCounts, percentile) / 1000;
+		}
+
+		/** Returns the average time in microseconds spent handling a query */
+		public long getAverageHandleMicros() {
+			return average(handleSum, handleCounts);
+		}
+
+		/** Returns the time in microseconds spent handling a query at a percentile (0-100) */
+		public long getHandleMicrosAtPercentile(double percentile) {
+			return DnsdLatencyHistogram.getValueAtPercentile(handleCounts, percentile) / 1000;
+		}
+
+		/** Returns the average time in microseconds spent sending a response */
+		public long getAverageSendMicros() {
+			return average(sendSum, sendCounts);
+		}
+
+		/** Returns the time in microseconds spent sending a response at a percentile (0-100) */
+		public long getSendMicrosAtPercentile(double percentile) {
+			return DnsdLatencyHistogram.getValueAtPercentile(sendCounts, percentile) / 1000;
+		}
+
+		/**
+		 * Returns an average in microseconds
+		 */
+		private static long average(long sum, long[] counts) {
+			long n = 0;
+			for (int i = 0; i < counts.length; i++)
+				n += counts[i];
+			return (n == 0) ? 0 : sum / n / 1000;
+		}
+
+		public String toString() {
+			return "queries=" + queries + " responses=" + getResponses() + " noerror="
+					+ getResponseCodeCount(DnsdResponse.RCODE_NOERROR) + " nxdomain="
+					+ getResponseCodeCount(DnsdResponse.RCODE_NAME_ERROR) + " servfail="
+					+ getResponseCodeCount(DnsdResponse.RCODE_SERVER_FAILURE) + " dropped=" + dropped
+					+ " ratelimited=" + rateLimited + " errors=" + errors + " socketerrors=" + socketErrors
+					+ " handle(avg/p50/p99)=" + getAverageHandleMicros() + "/" + getHandleMicrosAtPercentile(50) + "/"
+					+ getHandleMicrosAtPercentile(99) + "us";
+		}
+	}
+}
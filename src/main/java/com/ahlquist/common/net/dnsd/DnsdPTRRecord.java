@@ -30,6 +30,10 @@ public class DnsdPTRRecord extends DnsdRecord {
 		this.ptrDname = ptrDname;
 	}
 
+	DnsdRecord copyWithName(String name) {
+		return new DnsdPTRRecord(name, getTTL(), ptrDname);
+	}
+
 	/**
 	 * Packs this record
 	 * 
@@ -47,7 +51,7 @@ public class DnsdPTRRecord extends DnsdRecord {
 
 		// Write the domain name pointer
 		bytebuilder.writeName(ptrDname);
-		int length = bytebuilder.getCurrentPosition() - position;
+		int length = bytebuilder.getCurrentPosition() - position - 2;
 
 		// Go back and set the length
 		bytebuilder.setTwoByteInt(length, position);
@@ -0,0 +1,200 @@
+
+package com.ahlquist.common.net.dnsd;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+import com.ahlquist.common.util.MyObject;
+
+/**
+ * A per-client rate limiter for Dnsd.<br>
+ * Every client network (the source address cut to a prefix, /24 for IPv4 and
+ * /56 for IPv6 by default) gets a token bucket of rate queries per second with
+ * room for a burst. The buckets are kept in a count-min sketch: a fixed table
+ * of a few rows, where a client maps to one cell in every row. A cell holds
+ * the time when its bucket is full again (the theoretical arrival time of the
+ * generic cell rate algorithm), and a client's bucket is the cell with the
+ * earliest time. Clients that share a cell in one row rarely share one in
+ * every row, so they are seldom limited by each other, and the memory used
+ * doesn't depend on the number of clients.
+ * <p>
+ * Cells are updated with compare-and-set only, there are no locks.
+ * <p>
+ * Queries over the limit are dropped, except that every slip-th one is
+ * answered with an empty truncated response, as in response rate limiting
+ * (RRL). A real client whose address was forged by an attacker will then
+ * retry over TCP, which can't be forged. A slip of 0 drops all of them.
+ * <p>
+ * The sample usage should be:
+ * 
+ * <pre>
+ * dnsd.setRateLimiter(new DnsdRateLimiter(100, 200, 2, 65536));
+ * </pre>
+ * 
+ * @author Douglas Ahlquist
+ * @see Dnsd
+ */
+public class DnsdRateLimiter extends MyObject {
+	final static Logger logger = Logger.getLogger(DnsdRateLimiter.class);
+	/** Number of rows in the sketch */
+	private static final int DEPTH = 4;
+	/** Hash seeds, one per row */
+	private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+			0xD6E8FEB86659FD93L };
+
+	/** Cells: time (ns since start) when the bucket is full again */
+	private final AtomicLongArray cells;
+	/** Number of cells in a row, a power of 2 */
+	private final int width;
+	/** Time (ns) to earn one token */
+	private final long interval;
+	/** Time (ns) to earn a full bucket */
+	private final long burstTime;
+	/** Answer every slip-th limited query with TC, 0 for never */
+	private final int slip;
+	/** System.nanoTime() when created, so cell times start at 0 */
+	private final long startTime = System.nanoTime();
+
+	/** Mask for IPv4 addresses */
+	private volatile int ipv4Mask = prefixMask(24);
+	/** Number of IPv6 prefix bits */
+	private volatile int ipv6PrefixLength = 56;
+
+	/** Queries over the limit */
+	private AtomicLong limited = new AtomicLong();
+	/** Limited queries answered with TC */
+	private AtomicLong slipped = new AtomicLong();
+
+	/**
+	 * Creates a DnsdRateLimiter
+	 * 
+	 * @param rate
+	 *            the number of queries per second allowed for a client
+	 *            network
+	 * @param burst
+	 *            the number of queries a client network may send at once
+	 * @param slip
+	 *            answer every slip-th query over the limit with an empty
+	 *            truncated response, 0 to drop all of them
+	 * @param width
+	 *            the number of cells in a row of the sketch (rounded up to a
+	 *            power of 2); a few times the number of busy clients
+	 */
+	public DnsdRateLimiter(int rate, int burst, int slip, int width) {
+		this.width = Integer.highestOneBit(Math.max(1, width - 1)) << 1;
+		cells = new AtomicLongArray(DEPTH * this.width);
+		interval = 1000000000L / Math.max(1, rate);
+		burstTime = interval * Math.max(1, burst);
+		this.slip = slip;
+	}
+
+	/**
+	 * Sets the prefix lengths that make up a client network
+	 * 
+	 * @param ipv4
+	 *            the IPv4 prefix length (0-32), default 24
+	 * @param ipv6
+	 *            the IPv6 prefix length (0-128), default 56
+	 */
+	public void setPrefixLengths(int ipv4, int ipv6) {
+		ipv4Mask = prefixMask(ipv4);
+		ipv6PrefixLength = ipv6;
+	}
+
+	/** Returns the number of queries over the limit */
+	public long getLimited() {
+		return limited.get();
+	}
+
+	/** Returns the number of queries over the limit answered with TC */
+	public long getSlipped() {
+		return slipped.get();
+	}
+
+	/**
+	 * Takes a token from the bucket of a client. Returns false if there is
+	 * none, the query is over the limit.
+	 * 
+	 * @param address
+	 *            the source address of the query
+	 */
+	boolean allow(InetAddress address) {
+		long key = getKey(address);
+		long now = System.nanoTime() - startTime;
+
+		// The client's bucket is the least loaded of its cells
+		long tat = Long.MAX_VALUE;
+		for (int row = 0; row < DEPTH; row++)
+			tat = Math.min(tat, cells.get(getIndex(row, key)));
+
+		long newTat = Math.max(tat, now) + interval;
+		if (newTat - now > burstTime) {
+			limited.incrementAndGet();
+			return false;
+		}
+
+		// Conservative update: only move cells forward, and never past the
+		// new time
+		for (int row = 0; row < DEPTH; row++) {
+			int index = getIndex(row, key);
+			long old;
+			while ((old = cells.get(index)) < newTat && !cells.compareAndSet(index, old, newTat))
+				;
+		}
+		return true;
+	}
+
+	/**
+	 * If a query over the limit should be answered with TC instead of being
+	 * dropped
+	 */
+	boolean slip() {
+		if (slip <= 0 || limited.get() % slip != 0)
+			return false;
+		slipped.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns the key of the network of an address
+	 */
+	private long getKey(InetAddress address) {
+		if (address instanceof Inet4Address)
+			// The hash code of an IPv4 address is the address
+			return address.hashCode() & ipv4Mask;
+
+		byte[] bytes = address.getAddress();
+		int bits = ipv6PrefixLength;
+		long key = 6;
+		for (int i = 0; i < bytes.length && bits > 0; i++, bits -= 8) {
+			int b = bytes[i] & 0xFF;
+			if (bits < 8)
+				b &= 0xFF << (8 - bits);
+			key = key * 31 + b;
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the index of the cell of a key in a row
+	 */
+	private int getIndex(int row, long key) {
+		// MurmurHash3 finalizer
+		long h = key ^ SEEDS[row];
+		h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+		h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return row * width + ((int) h & (width - 1));
+	}
+
+	/**
+	 * Returns the mask of an IPv4 prefix
+	 */
+	private static int prefixMask(int prefixLength) {
+		return (prefixLength <= 0) ? 0 : -1 << (32 - Math.min(32, prefixLength));
+	}
+}
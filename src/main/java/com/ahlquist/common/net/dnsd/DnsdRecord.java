@@ -52,6 +52,30 @@ public abstract class DnsdRecord extends MyObject {
 		this.ttl = ttl;
 	}
 
+	/** Returns the domain name */
+	String getName() {
+		return name;
+	}
+
+	/** Returns the record type */
+	int getType() {
+		return type;
+	}
+
+	/** Returns the time to live in seconds */
+	int getTTL() {
+		return ttl;
+	}
+
+	/**
+	 * Returns a copy of this record with another domain name. Used to answer
+	 * from a wildcard record.
+	 * 
+	 * @param name
+	 *            the domain name of the copy
+	 */
+	abstract DnsdRecord copyWithName(String name);
+
 	/**
 	 * Packs up a Record into Byte Array
 	 * 
@@ -1,6 +1,7 @@
 
 package com.ahlquist.common.net.dnsd;
 
+import java.nio.BufferOverflowException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,6 +19,19 @@ import java.util.List;
  * @see DnsdRecord
  */
 public class DnsdResponse extends DnsdMessage {
+	/** Response code: No error condition */
+	public static final int RCODE_NOERROR = 0;
+	/** Response code: Format error - unable to interpret the query */
+	public static final int RCODE_FORMAT_ERROR = 1;
+	/** Response code: Server failure - unable to process the query */
+	public static final int RCODE_SERVER_FAILURE = 2;
+	/** Response code: Name error - the domain name does not exist */
+	public static final int RCODE_NAME_ERROR = 3;
+	/** Response code: Not implemented - the kind of query is not supported */
+	public static final int RCODE_NOT_IMPLEMENTED = 4;
+	/** Response code: Refused - the query is refused for policy reasons */
+	public static final int RCODE_REFUSED = 5;
+
 	/** Answer records */
 	private List<DnsdRecord> answers;
 
@@ -39,7 +53,9 @@ public class DnsdResponse extends DnsdMessage {
 	}
 
 	/**
-	 * Pack up a DnsdResponse into Byte Array.
+	 * Pack up a DnsdResponse into Byte Array. Answers that don't fit are left
+	 * out and the response is marked as truncated, so the client can retry
+	 * over TCP.
 	 * 
 	 * @param bytebuilder
 	 *            hold a byte array and help transfer data into binary format
@@ -52,11 +68,33 @@ public class DnsdResponse extends DnsdMessage {
 
 		// pack the answers
 		for (int i = 0; i < answers.size(); i++) {
-			// Pack the proper subclass of DnsdRecord (MX or A Record)
-			((DnsdRecord) answers.get(i)).pack(builder);
+			int position = builder.getCurrentPosition();
+			try {
+				// Pack the proper subclass of DnsdRecord (MX or A Record)
+				((DnsdRecord) answers.get(i)).pack(builder);
+			} catch (BufferOverflowException e) {
+				// Send the answers that fit, and set TC
+				builder.rewind(position);
+				getHeader().setAnswerCount(i);
+				getHeader().setTruncated(true);
+				getHeader().update(builder);
+				logger.debug("DnsdResponse: Truncated " + getName() + ", " + i + " of " + answers.size()
+						+ " answers fit");
+				break;
+			}
 		}
 	}
 
+	/**
+	 * Sets the response code. The default is RCODE_NOERROR.
+	 *
+	 * @param rCode
+	 *            one of the RCODE_* values
+	 */
+	public void setResponseCode(int rCode) {
+		getHeader().setResponseCode(rCode);
+	}
+
 	/**
 	 * Add a record to the answer list.
 	 * 
@@ -0,0 +1,245 @@
+
+package com.ahlquist.common.net.dnsd;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.ahlquist.common.util.MyObject;
+import com.ahlquist.common.util.MyTime;
+
+/**
+ * A cache of packed responses for Dnsd. Handlers that answer from static data
+ * return the same response for the same question every time, so the packed
+ * bytes are kept by (qname, qtype, qclass). A repeated question is answered
+ * by copying the bytes and patching in the ID and the question name of the
+ * request, without calling the handler.
+ * <p>
+ * The question name is copied from the request as is, so the response keeps
+ * the case of the query (names in the answers that are compressed to the
+ * question name follow it). Only complete (not truncated) NOERROR and
+ * NXDOMAIN responses to requests with one question are cached. A response
+ * cached from TCP that is too large for a UDP buffer is not used for UDP.
+ * <p>
+ * The table is direct mapped: a new response replaces whatever response was
+ * in its slot. Slots are read and written without locking; entries are
+ * immutable. Call clear() when the data behind the handler changes.
+ * <p>
+ * clear() starts a new generation of the cache. A response is cached with the
+ * generation read before the handler was called, and entries of an older
+ * generation are never used, so a response built from the old data while the
+ * cache was cleared can't be served afterwards.
+ * <p>
+ * The sample usage should be:
+ * 
+ * <pre>
+ * dnsd.setResponseCache(new DnsdResponseCache(4096, 3600));
+ * </pre>
+ * 
+ * @author Douglas Ahlquist
+ * @see Dnsd
+ */
+public class DnsdResponseCache extends MyObject {
+	final static Logger logger = Logger.getLogger(DnsdResponseCache.class);
+	/** Length of the message header */
+	private static final int HEADER_LENGTH = 12;
+
+	/** The cached responses */
+	private final Entry[] table;
+	/** How long (ms) a response is cached */
+	private final long maxAge;
+	/** Bumped by clear() */
+	private volatile int generation = 0;
+
+	/** Cache hits */
+	private AtomicLong hits = new AtomicLong();
+	/** Cache misses */
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Creates a DnsdResponseCache
+	 * 
+	 * @param size
+	 *            the number of slots, rounded up to a power of 2
+	 * @param maxAgeSeconds
+	 *            how long a response is cached
+	 */
+	public DnsdResponseCache(int size, int maxAgeSeconds) {
+		int slots = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		table = new Entry[slots];
+		maxAge = maxAgeSeconds * 1000L;
+	}
+
+	/**
+	 * Removes all responses from the cache
+	 */
+	public synchronized void clear() {
+		generation++;
+		for (int i = 0; i < table.length; i++)
+			table[i] = null;
+	}
+
+	/**
+	 * Returns the current generation, to be read before the handler is called
+	 * and passed to put()
+	 */
+	int getGeneration() {
+		return generation;
+	}
+
+	/** Returns the number of cache hits */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** Returns the number of cache misses */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * Writes the cached response to a request into a builder. Returns false
+	 * (and writes nothing) if there is none.
+	 * 
+	 * @param parser
+	 *            the parser holding the request
+	 * @param builder
+	 *            the builder to write the response to
+	 */
+	boolean get(DnsdByteParser parser, DnsdByteBuilder builder) {
+		ByteBuffer request = parser.getBuffer();
+		int end = getQuestionEnd(request, parser.getLength());
+		if (end < 0)
+			return false;
+
+		int hash = hash(request, end);
+		Entry entry = table[hash & (table.length - 1)];
+		if (entry == null || entry.generation != generation || entry.hash != hash || !entry.matches(request, end)
+				|| entry.expires <= MyTime.getCurrentMillis() || entry.response.length > builder.getCapacity()) {
+			misses.incrementAndGet();
+			return false;
+		}
+
+		builder.writeBytes(entry.response);
+		// The ID and the question name (with its case) of the request
+		builder.setTwoByteInt(((request.get(0) & 0xFF) << 8) | (request.get(1) & 0xFF), 0);
+		for (int i = HEADER_LENGTH; i < end - 4; i++)
+			builder.setByte(request.get(i), i);
+		hits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Caches the response to a request, unless the cache has been cleared
+	 * since the handler was called
+	 * 
+	 * @param parser
+	 *            the parser holding the request
+	 * @param builder
+	 *            the builder holding the response
+	 * @param generation
+	 *            the generation read before the handler was called
+	 */
+	void put(DnsdByteParser parser, DnsdByteBuilder builder, int generation) {
+		if (generation != this.generation)
+			return;
+		ByteBuffer request = parser.getBuffer();
+		int end = getQuestionEnd(request, parser.getLength());
+		if (end < 0)
+			return;
+
+		byte[] response = builder.toByteArray();
+		int rCode = response[3] & 0xF;
+		if (rCode != DnsdResponse.RCODE_NOERROR && rCode != DnsdResponse.RCODE_NAME_ERROR)
+			return;
+		// Truncated, the client will ask again over TCP
+		if ((response[2] & 0x02) != 0)
+			return;
+
+		int hash = hash(request, end);
+		table[hash & (table.length - 1)] = new Entry(hash, request, end, response,
+				MyTime.getCurrentMillis() + maxAge, generation);
+	}
+
+	/**
+	 * Returns the offset just past the question of a request, or -1 if the
+	 * request doesn't have exactly one (uncompressed) question.
+	 */
+	private static int getQuestionEnd(ByteBuffer request, int length) {
+		if (length < HEADER_LENGTH || request.get(4) != 0 || request.get(5) != 1)
+			return -1;
+		int offset = HEADER_LENGTH;
+		while (true) {
+			if (offset >= length)
+				return -1;
+			int labelLen = request.get(offset++) & 0xFF;
+			if (labelLen == 0)
+				break;
+			if ((labelLen & 0xC0) != 0)
+				return -1;
+			offset += labelLen;
+		}
+		offset += 4;
+		return (offset > length) ? -1 : offset;
+	}
+
+	/**
+	 * Hashes a question, the name case insensitively
+	 */
+	private static int hash(ByteBuffer request, int end) {
+		int hash = 0;
+		for (int i = HEADER_LENGTH; i < end; i++)
+			hash = 31 * hash + ((i < end - 4) ? toLowerCase(request.get(i)) : request.get(i));
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Returns the lower case of an ASCII character
+	 */
+	private static byte toLowerCase(byte b) {
+		return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	/**
+	 * A cached response. Immutable.
+	 */
+	private static final class Entry {
+		/** Hash of the question */
+		final int hash;
+		/** The question, name in lower case */
+		final byte[] question;
+		/** The packed response */
+		final byte[] response;
+		/** Time when the entry expires */
+		final long expires;
+		/** Generation of the cache the response was built in */
+		final int generation;
+
+		Entry(int hash, ByteBuffer request, int end, byte[] response, long expires, int generation) {
+			this.hash = hash;
+			question = new byte[end - HEADER_LENGTH];
+			for (int i = 0; i < question.length; i++) {
+				byte b = request.get(HEADER_LENGTH + i);
+				question[i] = (i < question.length - 4) ? toLowerCase(b) : b;
+			}
+			this.response = response;
+			this.expires = expires;
+			this.generation = generation;
+		}
+
+		/**
+		 * If this is the response to the question of a request
+		 */
+		boolean matches(ByteBuffer request, int end) {
+			if (end - HEADER_LENGTH != question.length)
+				return false;
+			for (int i = 0; i < question.length; i++) {
+				byte b = request.get(HEADER_LENGTH + i);
+				if (question[i] != ((i < question.length - 4) ? toLowerCase(b) : b))
+					return false;
+			}
+			return true;
+		}
+	}
+}
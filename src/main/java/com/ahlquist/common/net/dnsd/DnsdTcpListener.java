@@ -0,0 +1,283 @@
+
+package com.ahlquist.common.net.dnsd;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.ahlquist.common.util.MyObject;
+
+/**
+ * The TCP side of Dnsd (RFC 1035 4.2.2, RFC 7766).<br>
+ * Each message is sent with a two byte length in front of it. A client may
+ * send several queries on a connection without waiting for the responses
+ * (pipelining). Every connection has a thread that reads the queries and
+ * hands them to a pool of workers, so the responses are sent as soon as they
+ * are ready, possibly in another order than the queries. When all workers are
+ * busy the reading thread handles the query itself, which stops it from
+ * reading more until it's done. Each thread reuses one response buffer.
+ * <p>
+ * Connections that are idle for longer than the idle timeout are closed.
+ * 
+ * @author Douglas Ahlquist
+ * @see Dnsd
+ */
+class DnsdTcpListener extends MyObject {
+	final static Logger logger = Logger.getLogger(DnsdTcpListener.class);
+	/** Maximum length of a DNS message over TCP */
+	static final int MAX_LENGTH = 0xFFFF;
+	/** Default maximum number of open connections */
+	private static final int DEFAULT_MAX_CONNECTIONS = 100;
+	/** Default idle timeout in ms (RFC 7766 recommends seconds, not minutes) */
+	private static final int DEFAULT_IDLE_TIMEOUT = 10000;
+	/** Number of queries that can wait for a worker */
+	private static final int QUEUE_SIZE = 64;
+
+	/** The server handling the queries */
+	private Dnsd dnsd;
+	/** Accepts the connections */
+	private ServerSocket serverSocket;
+	/** Handles the queries */
+	private ThreadPoolExecutor workers;
+	/** The response buffer of each thread */
+	private final ThreadLocal<DnsdByteBuilder> builders = ThreadLocal
+			.withInitial(() -> new DnsdByteBuilder(ByteBuffer.allocate(MAX_LENGTH)));
+	/** Number of open connections */
+	private AtomicInteger connections = new AtomicInteger();
+	/** Maximum number of open connections */
+	private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+	/** Idle timeout in ms */
+	private volatile int idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	/** Set when the listener is stopped */
+	private volatile boolean stopped = false;
+
+	/** Queries received */
+	private AtomicLong requestsReceived = new AtomicLong();
+	/** Connections refused because there were too many */
+	private AtomicLong connectionsRefused = new AtomicLong();
+
+	/**
+	 * Creates a DnsdTcpListener
+	 * 
+	 * @param dnsd
+	 *            the server handling the queries
+	 * @param port
+	 *            the TCP port to listen on
+	 * @param threads
+	 *            the number of worker threads
+	 */
+	DnsdTcpListener(Dnsd dnsd, int port, int threads) throws IOException {
+		this.dnsd = dnsd;
+		serverSocket = new ServerSocket(port);
+		workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(QUEUE_SIZE), r -> {
+					Thread thread = new Thread(r, "Dnsd-tcp-worker");
+					thread.setDaemon(true);
+					return thread;
+				}, (r, executor) -> {
+					// Like CallerRunsPolicy, but a stopped pool refuses the
+					// query instead of dropping it without a word
+					if (executor.isShutdown())
+						throw new RejectedExecutionException("DnsdTcpListener stopped");
+					r.run();
+				});
+		workers.allowCoreThreadTimeOut(true);
+	}
+
+	/** Sets the maximum number of open connections */
+	void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/** Sets the idle timeout in ms */
+	void setIdleTimeout(int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/** Returns the number of queries received */
+	long getRequestsReceived() {
+		return requestsReceived.get();
+	}
+
+	/** Returns the number of connections refused because there were too many */
+	long getConnectionsRefused() {
+		return connectionsRefused.get();
+	}
+
+	/**
+	 * Starts the thread accepting connections
+	 */
+	void start() {
+		Thread thread = new Thread(() -> accept(), "Dnsd-tcp-listener");
+		thread.start();
+	}
+
+	/**
+	 * Stops accepting connections. Open connections are closed when they are
+	 * idle.
+	 */
+	void stop() {
+		stopped = true;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			logger.error("DnsdTcpListener: IOException at server socket close. ", e);
+		}
+		workers.shutdown();
+	}
+
+	/**
+	 * Accepts connections until stopped
+	 */
+	private void accept() {
+		while (!stopped) {
+			Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				if (stopped)
+					break;
+				logger.error("DnsdTcpListener: IOException at accept. ", e);
+				continue;
+			}
+
+			if (connections.incrementAndGet() > maxConnections) {
+				connections.decrementAndGet();
+				connectionsRefused.incrementAndGet();
+				close(socket);
+				continue;
+			}
+
+			final Connection connection = new Connection(socket);
+			Thread thread = new Thread(() -> connection.read(), "Dnsd-tcp-connection");
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Closes a socket, ignoring errors
+	 */
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing to do
+		}
+	}
+
+	/**
+	 * A client connection
+	 */
+	private final class Connection {
+		/** The connection */
+		private Socket socket;
+		/** Responses are written to this, one at a time */
+		private OutputStream out;
+		/** Queries being handled, plus one while the connection is read */
+		private AtomicInteger pending = new AtomicInteger(1);
+
+		Connection(Socket socket) {
+			this.socket = socket;
+		}
+
+		/**
+		 * Reads the queries until the client closes the connection or it is
+		 * idle for too long
+		 */
+		void read() {
+			try {
+				socket.setSoTimeout(idleTimeout);
+				socket.setTcpNoDelay(true);
+				out = new BufferedOutputStream(socket.getOutputStream());
+				DataInputStream in = new DataInputStream(socket.getInputStream());
+				while (!stopped) {
+					int length;
+					try {
+						length = in.readUnsignedShort();
+					} catch (EOFException e) {
+						break;
+					}
+					final byte[] request = new byte[length];
+					in.readFully(request);
+					requestsReceived.incrementAndGet();
+					dnsd.getMetrics().recordQuery();
+
+					pending.incrementAndGet();
+					try {
+						workers.execute(() -> process(request));
+					} catch (RejectedExecutionException e) {
+						// Stopped while the query was read
+						done();
+						break;
+					}
+				}
+			} catch (SocketTimeoutException e) {
+				logger.debug("DnsdTcpListener: Closing idle connection from " + socket.getRemoteSocketAddress());
+			} catch (SocketException e) {
+				// Closed by the client, or by us after a failed write
+			} catch (IOException e) {
+				logger.error("DnsdTcpListener: IOException at read from " + socket.getRemoteSocketAddress(), e);
+			}
+			done();
+		}
+
+		/**
+		 * Handles a query and writes the response
+		 */
+		private void process(byte[] request) {
+			try {
+				DnsdByteParser parser = new DnsdByteParser(request, request.length);
+				DnsdByteBuilder builder = builders.get();
+				builder.reset();
+				try {
+					dnsd.handle(parser, builder);
+				} catch (RuntimeException e) {
+					logger.error("DnsdTcpListener: Could not handle request from " + socket.getRemoteSocketAddress(),
+							e);
+					dnsd.getMetrics().recordError();
+					return;
+				}
+
+				int length = builder.getCurrentPosition();
+				synchronized (this) {
+					out.write(length >> 8);
+					out.write(length & 0xFF);
+					out.write(builder.getBytes(), 0, length);
+					out.flush();
+				}
+			} catch (IOException e) {
+				logger.debug("DnsdTcpListener: IOException at write to " + socket.getRemoteSocketAddress(), e);
+				close(socket);
+			} finally {
+				done();
+			}
+		}
+
+		/**
+		 * Closes the connection when it's no longer read and all queries are
+		 * answered
+		 */
+		private void done() {
+			if (pending.decrementAndGet() == 0) {
+				close(socket);
+				connections.decrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,370 @@
+
+package com.ahlquist.common.net.dnsd;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import org.apache.log4j.Logger;
+
+import com.ahlquist.common.util.MyObject;
+
+/**
+ * An in-memory store of DNS records for DnsdZoneHandler.<br>
+ * Records are kept in a trie of labels, starting from the last label of the
+ * name (com, ahlquist, www). A lookup supports exact names, wildcards ("*"
+ * as the first label, RFC 4592) and CNAME chains within the store.
+ * <p>
+ * A zone is filled with add() or load() and must not be changed once it is
+ * handed to a handler. To change a zone that is in use, withRecord() returns
+ * a new zone that shares everything but the nodes on the path to the new
+ * record, and the new zone replaces the old one in the handler. Lookups never
+ * take a lock.
+ * <p>
+ * load() reads a subset of the RFC 1035 master file format: $ORIGIN, $TTL,
+ * relative names, "@", blank owners, comments and parentheses. A, MX, CNAME
+ * and PTR records are loaded, other types (SOA, NS, TXT...) are skipped.
+ * 
+ * @author Douglas Ahlquist
+ * @see DnsdZoneHandler
+ */
+public class DnsdZone extends MyObject {
+	final static Logger logger = Logger.getLogger(DnsdZone.class);
+	/** The wildcard label */
+	private static final String WILDCARD = "*";
+	/** Maximum number of CNAME records followed in one lookup */
+	private static final int MAX_CNAME_CHAIN = 8;
+	/** TTL used in a zone file without $TTL */
+	private static final int DEFAULT_TTL = 3600;
+
+	private static final DnsdRecord[] NO_RECORDS = new DnsdRecord[0];
+
+	/** The root of the trie */
+	private Node root;
+	/** Number of records in the zone */
+	private int size;
+
+	/**
+	 * Creates an empty zone
+	 */
+	public DnsdZone() {
+		root = new Node();
+	}
+
+	/**
+	 * Creates a zone with an existing trie
+	 */
+	private DnsdZone(Node root, int size) {
+		this.root = root;
+		this.size = size;
+	}
+
+	/**
+	 * Loads a zone file.
+	 * 
+	 * @param file
+	 *            the zone file
+	 * @param origin
+	 *            the origin for relative names, until a $ORIGIN line
+	 */
+	public static DnsdZone load(File file, String origin) throws IOException {
+		Reader reader = new FileReader(file);
+		try {
+			return load(reader, origin);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Loads a zone file. Throws an IOException with the line number if a line
+	 * can't be parsed.
+	 * 
+	 * @param reader
+	 *            the zone file
+	 * @param origin
+	 *            the origin for relative names, until a $ORIGIN line
+	 */
+	public static DnsdZone load(Reader reader, String origin) throws IOException {
+		DnsdZone zone = new DnsdZone();
+		BufferedReader in = new BufferedReader(reader);
+		origin = makeName(origin, "");
+		String owner = origin;
+		int ttl = DEFAULT_TTL;
+		StringBuffer pending = null;
+		int lineNumber = 0;
+		String line;
+		while ((line = in.readLine()) != null) {
+			lineNumber++;
+			int comment = line.indexOf(';');
+			if (comment >= 0)
+				line = line.substring(0, comment);
+
+			// Join the lines of an entry in parentheses
+			if (pending != null) {
+				pending.append(' ').append(line);
+				if (line.indexOf(')') < 0)
+					continue;
+				line = pending.toString();
+				pending = null;
+			} else if (line.indexOf('(') >= 0 && line.indexOf(')') < 0) {
+				pending = new StringBuffer(line);
+				continue;
+			}
+			line = line.replace('(', ' ').replace(')', ' ');
+
+			StringTokenizer stok = new StringTokenizer(line);
+			if (!stok.hasMoreTokens())
+				continue;
+
+			try {
+				// A line starting with a blank is for the previous owner
+				if (!Character.isWhitespace(line.charAt(0))) {
+					String token = stok.nextToken();
+					if (token.equalsIgnoreCase("$ORIGIN")) {
+						origin = makeName(stok.nextToken(), origin);
+						continue;
+					}
+					if (token.equalsIgnoreCase("$TTL")) {
+						ttl = Integer.parseInt(stok.nextToken());
+						continue;
+					}
+					if (token.startsWith("$")) {
+						logger.debug("DnsdZone: Skipping line " + lineNumber + ": " + token);
+						continue;
+					}
+					owner = makeName(token, origin);
+				}
+
+				// [TTL] [class] type, TTL and class in any order
+				int recordTTL = ttl;
+				String token = stok.nextToken();
+				while (true) {
+					if (Character.isDigit(token.charAt(0)))
+						recordTTL = Integer.parseInt(token);
+					else if (!token.equalsIgnoreCase("IN"))
+						break;
+					token = stok.nextToken();
+				}
+
+				String type = token.toUpperCase();
+				if (type.equals("A"))
+					zone.add(new DnsdARecord(owner, recordTTL, stok.nextToken()));
+				else if (type.equals("MX")) {
+					int preference = Integer.parseInt(stok.nextToken());
+					zone.add(new DnsdMXRecord(owner, recordTTL, preference, makeName(stok.nextToken(), origin)));
+				} else if (type.equals("CNAME"))
+					zone.add(new DnsdCNAMERecord(owner, recordTTL, makeName(stok.nextToken(), origin)));
+				else if (type.equals("PTR"))
+					zone.add(new DnsdPTRRecord(owner, recordTTL, makeName(stok.nextToken(), origin)));
+				else
+					logger.debug("DnsdZone: Skipping line " + lineNumber + ": " + type + " record");
+			} catch (RuntimeException e) {
+				// NoSuchElementException or NumberFormatException
+				throw new IOException("DnsdZone: Bad line " + lineNumber + ": " + line.trim());
+			}
+		}
+		return zone;
+	}
+
+	/**
+	 * Adds a record. Only for zones that are not in use yet.
+	 * 
+	 * @param record
+	 *            the record to add
+	 */
+	public void add(DnsdRecord record) {
+		String[] labels = getLabels(record.getName());
+		Node node = root;
+		for (int i = labels.length - 1; i >= 0; i--) {
+			Node child = node.getChild(labels[i]);
+			if (child == null) {
+				child = new Node();
+				node.putChild(labels[i], child);
+			}
+			node = child;
+		}
+		node.addRecord(record);
+		size++;
+	}
+
+	/**
+	 * Returns a new zone with the records of this zone and one more record.
+	 * This zone is not changed.
+	 * 
+	 * @param record
+	 *            the record to add
+	 */
+	public DnsdZone withRecord(DnsdRecord record) {
+		String[] labels = getLabels(record.getName());
+		Node newRoot = new Node(root);
+		Node node = newRoot;
+		for (int i = labels.length - 1; i >= 0; i--) {
+			Node child = node.getChild(labels[i]);
+			child = (child == null) ? new Node() : new Node(child);
+			node.putChild(labels[i], child);
+			node = child;
+		}
+		node.addRecord(record);
+		return new DnsdZone(newRoot, size + 1);
+	}
+
+	/**
+	 * Returns the number of records in the zone
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Looks up the records for a query. CNAME records are followed (and added
+	 * to the answers) if there are no records of the type for the name.
+	 * Returns the response code: RCODE_NOERROR, with no answers if the name
+	 * has no records of the type or if the end of the CNAME chain isn't in
+	 * the zone, or RCODE_NAME_ERROR if the name doesn't exist.
+	 * 
+	 * @param name
+	 *            the domain name
+	 * @param type
+	 *            the type of query
+	 * @param answers
+	 *            the records found are added to this list
+	 */
+	int lookup(String name, int type, List<DnsdRecord> answers) {
+		for (int i = 0; i <= MAX_CNAME_CHAIN; i++) {
+			DnsdRecord[] records = find(name);
+			if (records == null)
+				// The end of a CNAME chain may well be in another zone, let
+				// the client look it up
+				return answers.isEmpty() ? DnsdResponse.RCODE_NAME_ERROR : DnsdResponse.RCODE_NOERROR;
+
+			DnsdRecord cname = null;
+			boolean found = false;
+			for (int j = 0; j < records.length; j++) {
+				if (records[j].getType() == type) {
+					answers.add(records[j]);
+					found = true;
+				} else if (records[j].getType() == DnsdRecord.TYPE_CNAME)
+					cname = records[j];
+			}
+			if (found || cname == null)
+				return DnsdResponse.RCODE_NOERROR;
+
+			answers.add(cname);
+			name = ((DnsdCNAMERecord) cname).getCanonicalName();
+		}
+		logger.debug("DnsdZone: CNAME chain too long for " + name);
+		return DnsdResponse.RCODE_NOERROR;
+	}
+
+	/**
+	 * Returns the records of a name, copies of the wildcard records for the
+	 * name if it matches a wildcard, or null if the name doesn't exist. A name
+	 * that only exists because there are names below it has no records.
+	 */
+	private DnsdRecord[] find(String name) {
+		String[] labels = getLabels(name);
+		Node node = root;
+		for (int i = labels.length - 1; i >= 0; i--) {
+			Node child = node.getChild(labels[i]);
+			if (child == null) {
+				// The closest encloser, does it have a wildcard?
+				Node wildcard = node.getChild(WILDCARD);
+				if (wildcard == null || wildcard.records.length == 0)
+					return null;
+				DnsdRecord[] records = new DnsdRecord[wildcard.records.length];
+				for (int j = 0; j < records.length; j++)
+					records[j] = wildcard.records[j].copyWithName(name);
+				return records;
+			}
+			node = child;
+		}
+		return node.records;
+	}
+
+	/**
+	 * Returns the labels of a name in lower case
+	 */
+	private static String[] getLabels(String name) {
+		name = makeName(name, "").toLowerCase();
+		if (name.length() == 0)
+			return new String[0];
+		ArrayList<String> labels = new ArrayList<String>();
+		int fromIndex = 0;
+		int dotIndex;
+		while ((dotIndex = name.indexOf('.', fromIndex)) >= 0) {
+			labels.add(name.substring(fromIndex, dotIndex));
+			fromIndex = dotIndex + 1;
+		}
+		labels.add(name.substring(fromIndex));
+		return labels.toArray(new String[labels.size()]);
+	}
+
+	/**
+	 * Makes a name absolute (without the trailing dot)
+	 * 
+	 * @param name
+	 *            a name from a zone file
+	 * @param origin
+	 *            the current origin
+	 */
+	private static String makeName(String name, String origin) {
+		if (name.equals("@"))
+			return origin;
+		if (name.endsWith("."))
+			return name.substring(0, name.length() - 1);
+		if (origin.length() == 0)
+			return name;
+		return name + '.' + origin;
+	}
+
+	/**
+	 * A node of the trie. Nodes of a zone in use are never changed; withRecord()
+	 * changes copies.
+	 */
+	private static final class Node {
+		/** The nodes one label down, by label, null if none */
+		HashMap<String, Node> children;
+		/** The records of the name */
+		DnsdRecord[] records = NO_RECORDS;
+
+		Node() {
+		}
+
+		/**
+		 * Creates a copy of a node, sharing the children
+		 */
+		Node(Node node) {
+			if (node.children != null)
+				children = new HashMap<String, Node>(node.children);
+			records = node.records;
+		}
+
+		Node getChild(String label) {
+			return (children == null) ? null : children.get(label);
+		}
+
+		void putChild(String label, Node child) {
+			if (children == null)
+				children = new HashMap<String, Node>(4);
+			children.put(label, child);
+		}
+
+		/**
+		 * Adds a record. The records array is replaced, never changed, so a
+		 * copy of the node isn't affected.
+		 */
+		void addRecord(DnsdRecord record) {
+			DnsdRecord[] larger = new DnsdRecord[records.length + 1];
+			System.arraycopy(records, 0, larger, 0, records.length);
+			larger[records.length] = record;
+			records = larger;
+		}
+	}
+}
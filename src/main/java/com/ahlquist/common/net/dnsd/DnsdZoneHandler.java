@@ -0,0 +1,115 @@
+
+package com.ahlquist.common.net.dnsd;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+
+import com.ahlquist.common.util.MyObject;
+
+/**
+ * A DnsdRequestHandler that answers from a DnsdZone.<br>
+ * The zone can be replaced (reloaded) or added to at any time. The new zone
+ * is built on the side and swapped in, so queries are never blocked and
+ * always see either the old or the new zone.
+ * <p>
+ * The sample usage should be:
+ * 
+ * <pre>
+ * DnsdZoneHandler handler = new DnsdZoneHandler(DnsdZone.load(new File("test.zone"), "test.ahlquist.com"));
+ * Dnsd dnsd = new Dnsd(53, handler);
+ * dnsd.start();
+ * ...
+ * handler.load(new File("test.zone"), "test.ahlquist.com");
+ * </pre>
+ * 
+ * If Dnsd has a DnsdResponseCache, give it to the handler as well so it is
+ * cleared when the zone changes.
+ * 
+ * @author Douglas Ahlquist
+ * @see DnsdZone
+ */
+public class DnsdZoneHandler extends MyObject implements DnsdRequestHandler {
+	final static Logger logger = Logger.getLogger(DnsdZoneHandler.class);
+	/** The zone in use */
+	private volatile DnsdZone zone;
+	/** Cleared when the zone changes, null if none */
+	private volatile DnsdResponseCache responseCache;
+
+	/**
+	 * Creates a DnsdZoneHandler
+	 * 
+	 * @param zone
+	 *            the zone to answer from
+	 */
+	public DnsdZoneHandler(DnsdZone zone) {
+		this.zone = zone;
+	}
+
+	/**
+	 * Sets the response cache to clear when the zone changes
+	 * 
+	 * @param responseCache
+	 *            the cache used by Dnsd, or null
+	 */
+	public void setResponseCache(DnsdResponseCache responseCache) {
+		this.responseCache = responseCache;
+	}
+
+	/** Returns the zone in use */
+	public DnsdZone getZone() {
+		return zone;
+	}
+
+	/**
+	 * Replaces the zone
+	 * 
+	 * @param zone
+	 *            the new zone
+	 */
+	public synchronized void setZone(DnsdZone zone) {
+		this.zone = zone;
+		DnsdResponseCache cache = responseCache;
+		if (cache != null)
+			cache.clear();
+	}
+
+	/**
+	 * Replaces the zone with a zone file. The old zone is kept if the file
+	 * can't be loaded.
+	 * 
+	 * @param file
+	 *            the zone file
+	 * @param origin
+	 *            the origin for relative names
+	 */
+	public void load(File file, String origin) throws IOException {
+		DnsdZone newZone = DnsdZone.load(file, origin);
+		setZone(newZone);
+		logger.info("DnsdZoneHandler: Loaded " + newZone.size() + " records from " + file);
+	}
+
+	/**
+	 * Adds a record to the zone
+	 * 
+	 * @param record
+	 *            the record to add
+	 */
+	public synchronized void addRecord(DnsdRecord record) {
+		setZone(zone.withRecord(record));
+	}
+
+	/**
+	 * Answers a request from the zone
+	 */
+	public DnsdResponse handle(DnsdRequest request) {
+		DnsdResponse response = new DnsdResponse(request);
+		ArrayList<DnsdRecord> answers = new ArrayList<DnsdRecord>();
+		response.setResponseCode(zone.lookup(request.getName(), request.getType(), answers));
+		for (int i = 0; i < answers.size(); i++)
+			response.addAnswer(answers.get(i));
+		return response;
+	}
+}
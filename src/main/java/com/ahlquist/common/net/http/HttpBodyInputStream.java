@@ -0,0 +1,174 @@
+package com.ahlquist.common.net.http;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HttpBodyInputStream reads the entity body of an HTTP message, decoding its
+ * framing as it is read: chunked transfer encoding, a Content-Length, or
+ * everything up to the end of the connection. Only the block buffer of the
+ * HttpInputStream holds data, so memory doesn't grow with the body.
+ * <p>
+ *
+ * Closing this stream doesn't close the HttpInputStream unless asked to.
+ * isComplete() tells whether the whole body has been read, so the connection
+ * is at the start of the next message.
+ *
+ * @author Douglas Ahlquist
+ */
+final class HttpBodyInputStream extends InputStream {
+	final static Logger logger = Logger.getLogger(HttpBodyInputStream.class);
+
+	private final HttpInputStream reader;
+	private final boolean chunked;
+	private final boolean closeReader;
+
+	/** bytes left in the body or chunk, -1 if the body ends at end of file */
+	private long remaining;
+	/** true once a chunk has been started */
+	private boolean inChunks;
+	private boolean complete;
+	private boolean closed;
+	private byte[] oneByte;
+
+	/**
+	 * Construct an HttpBodyInputStream
+	 *
+	 * @param reader
+	 *            the stream positioned at the start of the body
+	 * @param chunked
+	 *            true if the body has chunked transfer encoding
+	 * @param length
+	 *            the Content-Length, -1 if the body ends at end of file.
+	 *            Ignored if chunked.
+	 * @param closeReader
+	 *            true to close reader when this stream is closed
+	 */
+	HttpBodyInputStream(HttpInputStream reader, boolean chunked, long length, boolean closeReader) {
+		this.reader = reader;
+		this.chunked = chunked;
+		this.closeReader = closeReader;
+		remaining = chunked ? 0 : length;
+		complete = !chunked && length == 0;
+	}
+
+	/**
+	 * Return true if the whole body has been read
+	 */
+	boolean isComplete() {
+		return complete;
+	}
+
+	/**
+	 * Return the number of bytes left in the body, -1 if unknown
+	 */
+	long getRemaining() {
+		if (complete)
+			return 0;
+		return chunked ? -1 : remaining;
+	}
+
+	public int read() throws IOException {
+		if (oneByte == null)
+			oneByte = new byte[1];
+		return read(oneByte, 0, 1) == -1 ? -1 : oneByte[0] & 0xFF;
+	}
+
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (closed)
+			throw new IOException("Stream closed");
+		if (len == 0)
+			return 0;
+		if (complete)
+			return -1;
+		if (chunked && remaining == 0 && !nextChunk())
+			return -1;
+
+		if (remaining >= 0 && len > remaining)
+			len = (int) remaining;
+		int n = reader.read(b, off, len);
+		if (n == -1) {
+			if (remaining != -1)
+				throw new EOFException("End of file in HTTP body, " + remaining + " bytes missing");
+			complete = true;
+			return -1;
+		}
+
+		if (remaining > 0) {
+			remaining -= n;
+			if (remaining == 0 && !chunked)
+				complete = true;
+		}
+		return n;
+	}
+
+	/**
+	 * Read the size line of the next chunk, and the CRLF ending the previous
+	 * one. The last chunk is followed by the trailer, which is skipped.
+	 *
+	 * @return boolean false if this was the last chunk
+	 */
+	private boolean nextChunk() throws IOException {
+		if (inChunks)
+			reader.readLine();
+		inChunks = true;
+
+		remaining = readChunkSize(reader.readLine());
+		if (remaining > 0)
+			return true;
+
+		String trailer;
+		while ((trailer = reader.readLine()).length() != 0) {
+			if (logger.isDebugEnabled())
+				logger.debug("trailer: " + trailer);
+		}
+		complete = true;
+		return false;
+	}
+
+	/**
+	 * Parse chunk-size [ chunk-extension ]
+	 *
+	 * @param line
+	 *            the chunk size line
+	 * @return long the chunk size
+	 * @exception IOException
+	 *                if the line isn't a chunk size
+	 */
+	private static long readChunkSize(String line) throws IOException {
+		int index = line.indexOf(';');
+		String size = (index == -1 ? line : line.substring(0, index)).trim();
+		try {
+			long chunkSize = Long.parseLong(size, 16);
+			if (chunkSize >= 0)
+				return chunkSize;
+		} catch (NumberFormatException ex) {
+		}
+		throw new IOException("Bad chunk size: " + line);
+	}
+
+	/**
+	 * Return the bytes that can be read without blocking
+	 */
+	public int available() throws IOException {
+		if (closed || complete || remaining == 0)
+			return 0;
+		int available = reader.getInputStream().available();
+		return remaining == -1 ? available : (int) Math.min(available, remaining);
+	}
+
+	/**
+	 * Close the stream, and the HttpInputStream if this stream was opened to
+	 * close it
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		if (closeReader)
+			reader.close();
+	}
+}
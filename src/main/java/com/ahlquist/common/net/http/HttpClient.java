@@ -0,0 +1,181 @@
+package com.ahlquist.common.net.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HttpClient sends HttpRequests over HTTP/1.1 keep-alive connections from an
+ * HttpConnectionPool, so consecutive requests to a server share a TCP
+ * connection.<br>
+ * Bodies larger than the spool threshold are spooled to a temporary file,
+ * which is deleted when the stream from HttpMessage.getBodyStream() is closed
+ * or the body is discarded. A request which fails on a reused connection
+ * is sent again on a new one if it is idempotent, since the server may have
+ * closed the connection just as it was sent.
+ * <p>
+ * The sample usage should be:
+ *
+ * <pre>
+ * HttpClient client = new HttpClient();
+ * HttpResponse response = client.execute("www.example.com", 80, new HttpRequest(HttpRequest.GET, "/index.html"));
+ * ...
+ * client.getPool().close();
+ * </pre>
+ *
+ * @author Douglas Ahlquist
+ * @see HttpConnectionPool
+ */
+public class HttpClient {
+	final static Logger logger = Logger.getLogger(HttpClient.class);
+
+	/** Default largest body kept in memory */
+	public static final long DEFAULT_SPOOL_THRESHOLD = 1 << 20;
+
+	private final HttpConnectionPool pool;
+	private volatile long spoolThreshold = DEFAULT_SPOOL_THRESHOLD;
+
+	/**
+	 * Construct an HttpClient with its own connection pool
+	 */
+	public HttpClient() {
+		this(new HttpConnectionPool());
+	}
+
+	/**
+	 * Construct an HttpClient
+	 *
+	 * @param pool
+	 *            the connection pool, may be shared by several clients
+	 */
+	public HttpClient(HttpConnectionPool pool) {
+		this.pool = pool;
+	}
+
+	public HttpConnectionPool getPool() {
+		return pool;
+	}
+
+	/**
+	 * Set the largest response body kept in memory
+	 *
+	 * @param spoolThreshold
+	 *            the size in bytes
+	 */
+	public void setSpoolThreshold(long spoolThreshold) {
+		this.spoolThreshold = spoolThreshold;
+	}
+
+	/**
+	 * Send a request and read its response
+	 *
+	 * @param host
+	 *            the server
+	 * @param port
+	 *            the server port
+	 * @param request
+	 *            the request, a Host header is added if it has none
+	 * @return HttpResponse the response, with its body read
+	 * @exception IOException
+	 */
+	public HttpResponse execute(String host, int port, HttpRequest request) throws IOException {
+		return execute(host, port, Collections.singletonList(request)).get(0);
+	}
+
+	/**
+	 * Send requests to a server and read their responses. Idempotent requests
+	 * are pipelined: they are all written on one connection before the
+	 * responses are read. If the server closes the connection part way, the
+	 * requests not answered are sent again on a new connection. Other requests
+	 * are sent one at a time.
+	 *
+	 * @param host
+	 *            the server
+	 * @param port
+	 *            the server port
+	 * @param requests
+	 *            the requests, a Host header is added to those which have none
+	 * @return List the responses, in the order of the requests
+	 * @exception IOException
+	 */
+	public List<HttpResponse> execute(String host, int port, List<HttpRequest> requests) throws IOException {
+		boolean pipeline = true;
+		for (HttpRequest request : requests) {
+			if (request.getHeaderFieldValue(HttpMessage.HOST) == null)
+				request.addHeader("Host", port == 80 ? host : host + ":" + port);
+			if (!request.isIdempotent())
+				pipeline = false;
+		}
+
+		List<HttpResponse> responses = new ArrayList<HttpResponse>(requests.size());
+		while (responses.size() < requests.size()) {
+			int next = responses.size();
+			int end = pipeline ? requests.size() : next + 1;
+			send(host, port, requests.subList(next, end), responses);
+		}
+		return responses;
+	}
+
+	/**
+	 * Send requests on one connection and add their responses. Stops early if
+	 * the server closes the connection after a response.
+	 */
+	private void send(String host, int port, List<HttpRequest> requests, List<HttpResponse> responses)
+			throws IOException {
+		boolean retried = false;
+		while (true) {
+			HttpConnection connection = pool.lease(host, port);
+			boolean reused = connection.getResponses() > 0;
+			boolean reusable = false;
+			int read = 0;
+			try {
+				OutputStream out = connection.getOutputStream();
+				for (HttpRequest request : requests)
+					out.write(request.getClientOutputBytes());
+				out.flush();
+
+				for (HttpRequest request : requests) {
+					HttpResponse response = receive(connection, request);
+					responses.add(response);
+					read++;
+					reusable = response.isReusable(request);
+					if (!reusable)
+						break;
+				}
+				return;
+			} catch (IOException ex) {
+				reusable = false;
+				// nothing read on a connection the server may have just closed
+				if (read == 0 && reused && !retried && requests.get(0).isIdempotent()) {
+					logger.debug("Sending again on a new connection after " + ex);
+					retried = true;
+					continue;
+				}
+				// the responses read are kept, the others are sent again
+				if (read > 0 && requests.get(read).isIdempotent()) {
+					logger.debug("Connection failed after " + read + " responses: " + ex);
+					return;
+				}
+				throw ex;
+			} finally {
+				pool.release(connection, reusable);
+			}
+		}
+	}
+
+	/**
+	 * Read the response to a request, skipping 1xx interim responses
+	 */
+	private HttpResponse receive(HttpConnection connection, HttpRequest request) throws IOException {
+		HttpResponse response;
+		do {
+			response = new HttpResponse(connection.getReader(), request, spoolThreshold);
+			connection.responseRead();
+		} while (response.getResponseCode() / 100 == 1);
+		return response;
+	}
+}
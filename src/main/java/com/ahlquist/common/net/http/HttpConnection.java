@@ -0,0 +1,130 @@
+package com.ahlquist.common.net.http;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HttpConnection is a client connection to an HTTP server, kept open between
+ * requests by HttpConnectionPool.
+ *
+ * @author Douglas Ahlquist
+ * @see HttpConnectionPool
+ */
+final class HttpConnection {
+	final static Logger logger = Logger.getLogger(HttpConnection.class);
+
+	/** host:port of the server */
+	private final String route;
+	private final Socket socket;
+	private final HttpInputStream reader;
+	private final OutputStream out;
+
+	/** time it was last released to the pool */
+	private long lastUsed;
+	/** number of responses read */
+	private int responses;
+
+	/**
+	 * Open a connection
+	 *
+	 * @param host
+	 *            the server
+	 * @param port
+	 *            the server port
+	 * @param connectTimeout
+	 *            the connect timeout in milliseconds
+	 * @param soTimeout
+	 *            the read timeout in milliseconds
+	 */
+	HttpConnection(String host, int port, int connectTimeout, int soTimeout) throws IOException {
+		this.route = HttpConnectionPool.getRoute(host, port);
+		socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			socket.setSoTimeout(soTimeout);
+			socket.setTcpNoDelay(true);
+			reader = new HttpInputStream(socket);
+			out = new BufferedOutputStream(socket.getOutputStream());
+		} catch (IOException ex) {
+			socket.close();
+			throw ex;
+		}
+		lastUsed = System.currentTimeMillis();
+	}
+
+	String getRoute() {
+		return route;
+	}
+
+	HttpInputStream getReader() {
+		return reader;
+	}
+
+	OutputStream getOutputStream() {
+		return out;
+	}
+
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	void setLastUsed(long lastUsed) {
+		this.lastUsed = lastUsed;
+	}
+
+	int getResponses() {
+		return responses;
+	}
+
+	void responseRead() {
+		responses++;
+	}
+
+	/**
+	 * Check whether the server closed the connection while it was idle. A
+	 * connection is stale if the socket is at end of file or has unexpected
+	 * data; this blocks for at most 1ms.
+	 *
+	 * @return boolean true if the connection can't be used
+	 */
+	boolean isStale() {
+		if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown())
+			return true;
+		try {
+			int soTimeout = socket.getSoTimeout();
+			socket.setSoTimeout(1);
+			try {
+				reader.peek();
+				return true;
+			} finally {
+				socket.setSoTimeout(soTimeout);
+			}
+		} catch (SocketTimeoutException ex) {
+			return false;
+		} catch (IOException ex) {
+			return true;
+		}
+	}
+
+	/**
+	 * Close the connection
+	 */
+	void close() {
+		reader.close();
+		try {
+			socket.close();
+		} catch (IOException ex) {
+			logger.debug("Exception closing connection to " + route, ex);
+		}
+	}
+
+	public String toString() {
+		return "HttpConnection " + route + " " + socket.getLocalPort();
+	}
+}
@@ -0,0 +1,331 @@
+package com.ahlquist.common.net.http;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.log4j.Logger;
+
+/**
+ * HttpConnectionPool keeps HTTP client connections open between requests,
+ * keyed by route (host:port).<br>
+ * At most maxPerRoute connections are open to a route; lease() waits for one
+ * to be released when they are all in use. Idle connections are closed after
+ * the idle timeout, and a connection idle for longer than the stale check
+ * interval is checked before it is reused, since the server may have closed
+ * it in the meantime.
+ * <p>
+ * The pool counts the connections opened, reused, closed as stale and
+ * evicted as idle.
+ *
+ * @author Douglas Ahlquist
+ * @see HttpClient
+ */
+public class HttpConnectionPool {
+	final static Logger logger = Logger.getLogger(HttpConnectionPool.class);
+
+	/** Default max connections per route */
+	public static final int DEFAULT_MAX_PER_ROUTE = 4;
+	/** Default idle timeout in milliseconds */
+	public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+	/** Default idle time after which a connection is checked before reuse */
+	public static final long DEFAULT_STALE_CHECK_INTERVAL = 2000;
+	/** Default connect and read timeout in milliseconds */
+	public static final int DEFAULT_TIMEOUT = 30000;
+
+	private final Map<String, Route> routes = new HashMap<String, Route>();
+
+	private volatile int maxPerRoute = DEFAULT_MAX_PER_ROUTE;
+	private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+	private volatile long staleCheckInterval = DEFAULT_STALE_CHECK_INTERVAL;
+	private volatile int connectTimeout = DEFAULT_TIMEOUT;
+	private volatile int soTimeout = DEFAULT_TIMEOUT;
+	private boolean closed = false;
+
+	private LongAdder connectionsOpened = new LongAdder();
+	private LongAdder connectionsReused = new LongAdder();
+	private LongAdder staleConnections = new LongAdder();
+	private LongAdder idleEvictions = new LongAdder();
+	private LongAdder leaseWaits = new LongAdder();
+
+	/**
+	 * The connections to one server
+	 */
+	private static final class Route {
+		/** idle connections, the most recently used first */
+		final ArrayDeque<HttpConnection> idle = new ArrayDeque<HttpConnection>();
+		/** connections leased or being opened */
+		int leased;
+	}
+
+	/**
+	 * Set the max connections per route
+	 */
+	public synchronized void setMaxPerRoute(int maxPerRoute) {
+		this.maxPerRoute = maxPerRoute;
+		notifyAll();
+	}
+
+	/**
+	 * Set the time after which an idle connection is closed
+	 *
+	 * @param idleTimeout
+	 *            the timeout in milliseconds
+	 */
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Set the idle time after which a connection is checked before it is
+	 * reused. 0 checks every time, Long.MAX_VALUE never.
+	 *
+	 * @param staleCheckInterval
+	 *            the idle time in milliseconds
+	 */
+	public void setStaleCheckInterval(long staleCheckInterval) {
+		this.staleCheckInterval = staleCheckInterval;
+	}
+
+	/**
+	 * Set the connect timeout, also the max wait for a connection in lease()
+	 *
+	 * @param connectTimeout
+	 *            the timeout in milliseconds
+	 */
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Set the read timeout of new connections
+	 *
+	 * @param soTimeout
+	 *            the timeout in milliseconds
+	 */
+	public void setSoTimeout(int soTimeout) {
+		this.soTimeout = soTimeout;
+	}
+
+	/**
+	 * Return the route of a server
+	 */
+	static String getRoute(String host, int port) {
+		return host.toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * Lease a connection to a server: an idle one if there is one, else a new
+	 * one. Waits if maxPerRoute connections are in use.
+	 *
+	 * @param host
+	 *            the server
+	 * @param port
+	 *            the server port
+	 * @return HttpConnection the connection, to be given back by release()
+	 * @exception IOException
+	 *                if no connection could be opened in time
+	 */
+	HttpConnection lease(String host, int port) throws IOException {
+		String key = getRoute(host, port);
+		long deadline = System.currentTimeMillis() + connectTimeout;
+		while (true) {
+			HttpConnection connection = null;
+			boolean check = false;
+			synchronized (this) {
+				if (closed)
+					throw new IOException("Connection pool closed");
+				Route route = routeOf(key);
+				long now = System.currentTimeMillis();
+				closeExpired(route, now);
+
+				if (!route.idle.isEmpty()) {
+					connection = route.idle.pollFirst();
+					check = now - connection.getLastUsed() >= staleCheckInterval;
+				} else if (route.leased >= maxPerRoute) {
+					long wait = deadline - now;
+					if (wait <= 0)
+						throw new IOException("Timed out waiting for a connection to " + key);
+					leaseWaits.increment();
+					try {
+						wait(wait);
+					} catch (InterruptedException ex) {
+						Thread.currentThread().interrupt();
+						throw new IOException("Interrupted waiting for a connection to " + key);
+					}
+					continue;
+				}
+				route.leased++;
+			}
+
+			if (connection == null)
+				return open(host, port, key);
+			if (check && connection.isStale()) {
+				logger.debug("Stale connection " + connection);
+				staleConnections.increment();
+				connection.close();
+				release(key);
+				continue;
+			}
+			connectionsReused.increment();
+			return connection;
+		}
+	}
+
+	/**
+	 * Open a new connection, the route count is already taken
+	 */
+	private HttpConnection open(String host, int port, String key) throws IOException {
+		try {
+			HttpConnection connection = new HttpConnection(host, port, connectTimeout, soTimeout);
+			connectionsOpened.increment();
+			logger.debug("Opened " + connection);
+			return connection;
+		} catch (IOException ex) {
+			release(key);
+			throw ex;
+		}
+	}
+
+	/**
+	 * Give back a leased connection
+	 *
+	 * @param connection
+	 *            the connection from lease()
+	 * @param reusable
+	 *            true if the connection is at the start of the next response,
+	 *            false to close it
+	 */
+	void release(HttpConnection connection, boolean reusable) {
+		synchronized (this) {
+			if (reusable && !closed) {
+				connection.setLastUsed(System.currentTimeMillis());
+				Route route = routeOf(connection.getRoute());
+				route.idle.addFirst(connection);
+				route.leased--;
+				notifyAll();
+				return;
+			}
+		}
+		connection.close();
+		release(connection.getRoute());
+	}
+
+	/**
+	 * Give back the count of a connection which was closed
+	 */
+	private synchronized void release(String key) {
+		routeOf(key).leased--;
+		notifyAll();
+	}
+
+	private Route routeOf(String key) {
+		Route route = routes.get(key);
+		if (route == null) {
+			route = new Route();
+			routes.put(key, route);
+		}
+		return route;
+	}
+
+	/**
+	 * Close the connections of a route idle longer than the idle timeout
+	 */
+	private void closeExpired(Route route, long now) {
+		// the oldest are at the end
+		while (!route.idle.isEmpty() && now - route.idle.peekLast().getLastUsed() >= idleTimeout) {
+			HttpConnection connection = route.idle.pollLast();
+			logger.debug("Idle connection " + connection);
+			idleEvictions.increment();
+			connection.close();
+		}
+	}
+
+	/**
+	 * Close the connections idle longer than the idle timeout. Expired
+	 * connections are also closed as a route is used, this is for routes
+	 * which are no longer used.
+	 */
+	public synchronized void closeIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Route> it = routes.values().iterator();
+		while (it.hasNext()) {
+			Route route = it.next();
+			closeExpired(route, now);
+			if (route.idle.isEmpty() && route.leased == 0)
+				it.remove();
+		}
+	}
+
+	/**
+	 * Close the idle connections. Leased connections are closed when they are
+	 * released, and lease() fails from now on.
+	 */
+	public void close() {
+		List<HttpConnection> idle = new ArrayList<HttpConnection>();
+		synchronized (this) {
+			closed = true;
+			for (Route route : routes.values()) {
+				idle.addAll(route.idle);
+				route.idle.clear();
+			}
+			notifyAll();
+		}
+		for (HttpConnection connection : idle)
+			connection.close();
+	}
+
+	/**
+	 * Return the number of idle connections
+	 */
+	public synchronized int getIdleCount() {
+		int count = 0;
+		for (Route route : routes.values())
+			count += route.idle.size();
+		return count;
+	}
+
+	/**
+	 * Return the number of connections in use
+	 */
+	public synchronized int getLeasedCount() {
+		int count = 0;
+		for (Route route : routes.values())
+			count += route.leased;
+		return count;
+	}
+
+	public long getConnectionsOpened() {
+		return connectionsOpened.sum();
+	}
+
+	public long getConnectionsReused() {
+		return connectionsReused.sum();
+	}
+
+	public long getStaleConnections() {
+		return staleConnections.sum();
+	}
+
+	public long getIdleEvictions() {
+		return idleEvictions.sum();
+	}
+
+	/**
+	 * Return the number of times lease() had to wait for a connection
+	 */
+	public long getLeaseWaits() {
+		return leaseWaits.sum();
+	}
+
+	public String toString() {
+		return "HttpConnectionPool leased=" + getLeasedCount() + " idle=" + getIdleCount() + " opened="
+				+ getConnectionsOpened() + " reused=" + getConnectionsReused() + " stale=" + getStaleConnections()
+				+ " evicted=" + getIdleEvictions() + " waits=" + getLeaseWaits();
+	}
+}
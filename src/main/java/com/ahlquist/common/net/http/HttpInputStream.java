@@ -22,6 +22,8 @@ import java.io.InputStream;
 import java.io.PushbackInputStream;
 //import com.ahlquist.common.util.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 import org.apache.log4j.Logger;
 
@@ -40,6 +42,13 @@ import com.ahlquist.common.util.Util;
  * It also provides a readline method to read Http headers.
  * <p>
  *
+ * In buffered mode (the default for a socket) data is read a block at a time
+ * into a reusable buffer, and lines are scanned for in the buffer instead of
+ * being read one byte at a time. scanLine() returns a line as a slice of the
+ * buffer, readLine() as an ISO-8859-1 String. getInputStream() then returns a
+ * stream which returns the buffered data first.
+ * <p>
+ *
  * @author Douglas Ahlquist
  * 
  */
@@ -48,6 +57,10 @@ public class HttpInputStream // extends myObject
 	final static Logger logger = Logger.getLogger(HttpInputStream.class);
 	/** constant */
 	public final String HTTP_NEW_LINE = "\r\n";
+	/** default size of the block buffer in buffered mode */
+	public static final int DEFAULT_BLOCK_SIZE = 8192;
+	/** max length of a line in buffered mode */
+	private static final int MAX_LINE_LENGTH = 65536;
 	/** max size of a message */
 	// private final long MAX_MESSAGE_SIZE = Config.getInt("Http.MaxMsgSize");
 
@@ -55,14 +68,26 @@ public class HttpInputStream // extends myObject
 	private InputStream in;
 	private ByteBuffer buffer = new ByteBuffer(128); // reusable buffer
 
+	/** block buffer, null if not buffered */
+	private byte[] block;
+	/** next byte to read in block */
+	private int position;
+	/** end of the data in block */
+	private int limit;
+	/** start of the line found by scanLine() */
+	private int lineOffset;
+	/** InputStream returning the buffered data first */
+	private InputStream blockInputStream;
+
 	/**
-	 * Construct an HttpInputStream by a live socket
+	 * Construct a buffered HttpInputStream by a live socket
 	 *
 	 * @param socket
 	 *            a live socket talking HTTP language
 	 */
 	public HttpInputStream(Socket socket) throws IOException {
-		this(new com.ahlquist.common.util.MyInputStream("HttpInputStream", socket.getInputStream()));
+		this(new com.ahlquist.common.util.MyInputStream("HttpInputStream", socket.getInputStream()),
+				DEFAULT_BLOCK_SIZE);
 	}
 
 	/**
@@ -76,6 +101,29 @@ public class HttpInputStream // extends myObject
 		this.in = in;
 	}
 
+	/**
+	 * Construct a buffered HttpInputStream by an InputStream. Data is read
+	 * from the InputStream a block at a time, so anything else reading from it
+	 * has to use getInputStream().
+	 *
+	 * @param in
+	 *            an InputStream
+	 * @param blockSize
+	 *            the initial size of the block buffer, it grows for lines up
+	 *            to 64KB
+	 */
+	public HttpInputStream(InputStream in, int blockSize) {
+		this.in = in;
+		block = new byte[blockSize];
+	}
+
+	/**
+	 * Return true if this HttpInputStream reads a block at a time
+	 */
+	boolean isBuffered() {
+		return block != null;
+	}
+
 	/**
 	 * this method will close InputStream
 	 */
@@ -102,7 +150,117 @@ public class HttpInputStream // extends myObject
 	 * @exception IOException
 	 */
 	int read(byte[] b, int off, int len) throws IOException {
-		return (in.read(b, off, len));
+		if (block == null)
+			return (in.read(b, off, len));
+
+		if (position == limit) {
+			// nothing buffered, large reads go straight to the stream
+			if (len >= block.length)
+				return (in.read(b, off, len));
+			if (fill() == -1)
+				return -1;
+		}
+		int n = Math.min(len, limit - position);
+		System.arraycopy(block, position, b, off, n);
+		position += n;
+		return n;
+	}
+
+	/**
+	 * Read more data into the block buffer. The unread data is moved to the
+	 * start of the buffer first, and the buffer grows if it is full.
+	 *
+	 * @return int the number of bytes read, -1 at end of file
+	 * @exception IOException
+	 *                if the stream fails or a line is longer than 64KB
+	 */
+	private int fill() throws IOException {
+		if (position > 0) {
+			System.arraycopy(block, position, block, 0, limit - position);
+			limit -= position;
+			position = 0;
+		}
+		if (limit == block.length) {
+			if (block.length >= MAX_LINE_LENGTH)
+				throw new IOException("Line too long");
+			block = Arrays.copyOf(block, Math.min(block.length * 2, MAX_LINE_LENGTH));
+		}
+		int n = in.read(block, limit, block.length - limit);
+		if (n > 0)
+			limit += n;
+		return n;
+	}
+
+	/**
+	 * Find the next line in the block buffer (buffered mode only). A line is
+	 * terminated by a NL, CR-NL or a lone CR, as for readLine(). The line is
+	 * the returned number of bytes at getLineOffset() in getLineBuffer(), and
+	 * is valid until the next read.
+	 *
+	 * @return int the length of the line without the terminator, -1 if hit end
+	 *         of file before reading anything
+	 * @exception IOException
+	 */
+	int scanLine() throws IOException {
+		int scanned = 0; // bytes after position already scanned
+		while (true) {
+			byte[] b = block;
+			int end = limit;
+			int i = position + scanned;
+			while (i < end && b[i] != '\n' && b[i] != '\r')
+				i++;
+
+			// a CR at the end of the data needs the next byte to tell CR-NL
+			if (i < end && (b[i] == '\n' || i + 1 < end)) {
+				lineOffset = position;
+				position = i + 1;
+				if (b[i] == '\r' && b[position] == '\n')
+					position++;
+				return i - lineOffset;
+			}
+
+			scanned = i - position;
+			if (fill() == -1) {
+				// end of file, only a lone CR can be left after the line
+				boolean terminated = scanned < limit - position;
+				lineOffset = position;
+				position = limit;
+				if (!terminated) {
+					if (scanned == 0) {
+						logger.debug("Read end of file before reading anything!");
+						return -1;
+					}
+					logger.debug("Read end of file before finish reading a line!");
+				}
+				return scanned;
+			}
+		}
+	}
+
+	/**
+	 * Return the next byte without reading it (buffered mode only)
+	 *
+	 * @return int the next byte, -1 at end of file
+	 * @exception IOException
+	 */
+	int peek() throws IOException {
+		if (position == limit && fill() == -1)
+			return -1;
+		return block[position] & 0xFF;
+	}
+
+	/**
+	 * Return the buffer holding the line found by scanLine()
+	 */
+	byte[] getLineBuffer() {
+		return block;
+	}
+
+	/**
+	 * Return the offset of the line found by scanLine()
+	 */
+	int getLineOffset() {
+		return lineOffset;
 	}
 
 	/**
@@ -119,6 +277,16 @@ public class HttpInputStream // extends myObject
 	 * @exception IOException
 	 */
 	public String readLine() throws IOException {
+		if (block != null) {
+			int length = scanLine();
+			if (length == -1)
+				return "";
+			String line = new String(block, lineOffset, length, StandardCharsets.ISO_8859_1);
+			if (logger.isDebugEnabled())
+				logger.debug("reading buffer: " + line);
+			return line;
+		}
+
 		// clean the buffer
 		if (buffer == null)
 			buffer = new ByteBuffer(128);
@@ -158,8 +326,10 @@ public class HttpInputStream // extends myObject
 				logger.debug("Read end of file before finish reading a line!");
 		}
 
-		logger.debug("reading buffer: " + new String(buffer.getBytes()));
-		return new String(buffer.getBytes());
+		String line = new String(buffer.getBytes());
+		if (logger.isDebugEnabled())
+			logger.debug("reading buffer: " + line);
+		return line;
 	}
 
 	/**
@@ -176,6 +346,15 @@ public class HttpInputStream // extends myObject
 			buffer = new ByteBuffer(128);
 		else
 			buffer.clear();
+
+		if (block != null) {
+			do {
+				buffer.append(block, position, limit);
+				position = limit = 0;
+			} while (fill() != -1);
+			return buffer.getBytes();
+		}
+
 		int c1;
 
 		while ((c1 = in.read()) != -1) {
@@ -203,8 +382,39 @@ public class HttpInputStream // extends myObject
 
 	private int cbRead = 0;
 
+	/**
+	 * Return the InputStream. In buffered mode this returns the data left in
+	 * the block buffer before reading from the underlying stream.
+	 */
 	public InputStream getInputStream() {
-		return in;
+		if (block == null)
+			return in;
+		if (blockInputStream == null)
+			blockInputStream = new BlockInputStream();
+		return blockInputStream;
+	}
+
+	/**
+	 * InputStream view of a buffered HttpInputStream
+	 */
+	private class BlockInputStream extends InputStream {
+		public int read() throws IOException {
+			if (position == limit && fill() == -1)
+				return -1;
+			return block[position++] & 0xFF;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			return HttpInputStream.this.read(b, off, len);
+		}
+
+		public int available() throws IOException {
+			return limit - position + in.available();
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
 	}
 
 }
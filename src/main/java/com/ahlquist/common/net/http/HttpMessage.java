@@ -20,7 +20,21 @@
 //package com.ahlquist.common.net.http;
 package com.ahlquist.common.net.http;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 //import java.util.Hashtable;
 import java.util.List;
@@ -29,6 +43,7 @@ import org.apache.log4j.Logger;
 
 import com.ahlquist.common.util.ByteBuffer;
 import com.ahlquist.common.util.Numbers;
+import com.ahlquist.common.util.Util;
 
 
 /**
@@ -43,6 +58,12 @@ public abstract class HttpMessage implements Cloneable {
 
 	final static Logger logger = Logger.getLogger(HttpMessage.class);
 	public static final String CRLF = "\r\n";
+	/** size of the blocks a body is read in */
+	private static final int BODY_BLOCK_SIZE = 8192;
+	/** largest count for one FileChannel.transferFrom() */
+	private static final long BODY_TRANSFER_SIZE = 1 << 16;
+	/** largest body read into an array */
+	private static final long MAX_BODY_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
 	public static final String HTTP_VERSION10 = "HTTP/1.0";
 	public static final String HTTP_VERSION11 = "HTTP/1.1";
 	//TODO:DKA 2.0 added as a final though not implemented per 
@@ -58,6 +79,12 @@ public abstract class HttpMessage implements Cloneable {
 	private List<String> headerFieldsLC;
 	private List<String> headerValues;
 	private byte[] body;
+
+	// body being read from the connection, see streamBody()
+	private HttpBodyInputStream bodyStream;
+
+	// body spooled to a temporary file, see readBody()
+	private File bodyFile;
 	private String httpVersion = HTTP_VERSION11; // default
 
 	// by default, persistent connected for 1.1
@@ -157,11 +184,22 @@ public abstract class HttpMessage implements Cloneable {
 	}
 
 	/**
-	 * Return the body byte array
+	 * Return the body byte array. A body spooled to a file is read into memory
+	 * and the file deleted, use getBodyStream() for large bodies.
 	 *
-	 * @return byte[] body byte array, return null if there's no body
+	 * @return byte[] body byte array, return null if there's no body or the
+	 *         body is streamed
 	 */
 	public byte[] getBody() {
+		if (body == null && bodyFile != null) {
+			try {
+				body = Files.readAllBytes(bodyFile.toPath());
+			} catch (IOException ex) {
+				logger.error("Exception reading " + bodyFile, ex);
+				return null;
+			}
+			deleteBodyFile();
+		}
 		return (body);
 	}
 
@@ -216,67 +254,262 @@ public abstract class HttpMessage implements Cloneable {
 	 *            the stream which contains the body
 	 */
 	protected void readBody(HttpInputStream reader) throws IOException {
-		// int cAttempts = 0;
-		ByteBuffer sb = new ByteBuffer();
-		if (this.chunkedTransferEncoding) {
-			// read and decode chunked transfer encoding
-			// int length = 0;
-			int chunkSize = readChunkSize(reader.readLine());
-			System.out.println("chunk size " + chunkSize);
-			// Debug.HTTP.println("chunk size " + chunkSize);
-			// read chunk-size, chunk-ext (if any) and CRLF
-			while (chunkSize > 0) {
-				byte[] readChunk = new byte[chunkSize + 2]; // CRLF
-				int totalReaded = reader.read(readChunk, 0, chunkSize + 2);
-				int left = chunkSize + 2 - totalReaded;
-				while (left > 0) {
-					int readed = reader.read(readChunk, totalReaded, left);
-					totalReaded += readed;
-					left = chunkSize + 2 - totalReaded;
-				}
-				sb.append(readChunk, 0, chunkSize); // strip off the ending
-													// CRLF
-				// read chunk-data and CRLF
-				// append chunk-data to entity-body
-				// length := length + chunk-size
-				chunkSize = readChunkSize(reader.readLine());
+		readBody(reader, Long.MAX_VALUE);
+	}
+
+	/**
+	 * package method. Read http entity body from a buffer reader, spooling it
+	 * to a temporary file once it is larger than spoolThreshold bytes.
+	 * getBodyFile() returns the file. It is deleted when the stream from
+	 * getBodyStream() is closed, by discardBody(), or at the latest when the
+	 * JVM exits.
+	 * 
+	 * @param reader
+	 *            the stream which contains the body
+	 * @param spoolThreshold
+	 *            the largest body kept in memory
+	 */
+	protected void readBody(HttpInputStream reader, long spoolThreshold) throws IOException {
+		HttpBodyInputStream in = openBody(reader, false);
+		long length = in.getRemaining();
+		if (length > spoolThreshold || length > MAX_BODY_ARRAY_LENGTH) {
+			spoolBody(null, in);
+			return;
+		}
+		if (length >= 0) {
+			// the size is known, read straight into the body array
+			byte[] bytes = new byte[(int) length];
+			int off = 0;
+			while (off < bytes.length) {
+				int cb = in.read(bytes, off, bytes.length - off);
+				if (cb == -1)
+					throw new EOFException("End of file in HTTP body");
+				off += cb;
 			}
-			// read entity-header
-			// while (entity-header not empty) {
-			// append entity-header to existing header fields
-			// read entity-header
-			// }
-			// Content-Length := length
-		} else {
-			System.out.println("Chuck size = 1024");
-			int cchChunk = 1024;
-			byte[] ach = new byte[cchChunk];
-
-			int cch;
-			while ((cch = reader.read(ach, 0, cchChunk)) != -1) {
-				System.out.println(cch);
-				sb.append(ach, 0, cch);
-				System.out.println(sb.toString());
+			this.body = bytes;
+			return;
+		}
+
+		ByteBuffer sb = new ByteBuffer();
+		byte[] block = new byte[BODY_BLOCK_SIZE];
+		int cb;
+		while ((cb = in.read(block, 0, block.length)) != -1) {
+			sb.append(block, 0, cb);
+			if (sb.length() > spoolThreshold) {
+				spoolBody(sb, in);
+				return;
 			}
-			System.out.println("End While");
 		}
 		this.body = sb.getBytes();
 	}
 
-	private int readChunkSize(String line) {
-		if (line == null)
-			return 0;
+	/**
+	 * Write the body to a temporary file
+	 *
+	 * @param head
+	 *            the start of the body already read, null if none
+	 * @param in
+	 *            the rest of the body
+	 */
+	private void spoolBody(ByteBuffer head, InputStream in) throws IOException {
+		File file = File.createTempFile("http", ".body");
+		file.deleteOnExit();
+		boolean written = false;
+		try {
+			long size = transferBody(head, in, file);
+			written = true;
+			logger.debug("Spooled " + size + " bytes of body to " + file);
+		} finally {
+			if (!written)
+				file.delete();
+		}
+		this.body = null;
+		this.bodyFile = file;
+	}
 
-		line = line.trim();
-		int size = 0;
-		int index = line.indexOf(';');
-		if (index == -1) {
-			size = Numbers.getInt(line, 16, 0);
-		} else {
-			size = Numbers.getInt(line.substring(0, index), 16, 0);
+	/**
+	 * Write a body to a file with FileChannel.transferFrom()
+	 *
+	 * @param head
+	 *            the start of the body already read, null if none
+	 * @param in
+	 *            the rest of the body
+	 * @param file
+	 *            the file to write
+	 * @return long the size of the body
+	 */
+	private static long transferBody(ByteBuffer head, InputStream in, File file) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			long position = 0;
+			if (head != null) {
+				out.write(head.getBytes());
+				position = head.length();
+			}
+			FileChannel channel = out.getChannel();
+			ReadableByteChannel src = Channels.newChannel(in);
+			long count;
+			while ((count = channel.transferFrom(src, position, BODY_TRANSFER_SIZE)) > 0)
+				position += count;
+			return position;
+		} finally {
+			Util.close(out);
 		}
+	}
+
+	/**
+	 * Write the body to a file. A streamed body is read from the connection
+	 * and a spooled body file is moved, so the body is never held in memory.
+	 * Afterwards only a body which was in memory is still in this message.
+	 *
+	 * @param file
+	 *            the file to write
+	 * @return long the size of the body
+	 */
+	public long saveBody(File file) throws IOException {
+		if (bodyStream != null) {
+			try {
+				return transferBody(null, bodyStream, file);
+			} finally {
+				bodyStream.close();
+				bodyStream = null;
+			}
+		}
+		if (bodyFile != null) {
+			long size = bodyFile.length();
+			Files.move(bodyFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			bodyFile = null;
+			return size;
+		}
+		byte[] bytes = body == null ? new byte[0] : body;
+		Files.write(file.toPath(), bytes);
+		return bytes.length;
+	}
+
+	/**
+	 * package method. Leave the body in the connection, to be read through
+	 * getBodyStream().
+	 * 
+	 * @param reader
+	 *            the stream which contains the body
+	 * @param closeReader
+	 *            true to close reader when the body stream is closed
+	 */
+	protected void streamBody(HttpInputStream reader, boolean closeReader) {
+		this.body = null;
+		this.bodyStream = openBody(reader, closeReader);
+	}
+
+	/**
+	 * Open a stream decoding the body framing given by the headers
+	 */
+	HttpBodyInputStream openBody(HttpInputStream reader, boolean closeReader) {
+		return new HttpBodyInputStream(reader, isChunked(), getBodyLength(), closeReader);
+	}
+
+	/**
+	 * Return true if the body has chunked transfer encoding
+	 */
+	protected boolean isChunked() {
+		return chunkedTransferEncoding;
+	}
 
-		return size;
+	/**
+	 * Return the length of the body given by the Content-Length header
+	 *
+	 * @return long the body length, -1 if not given or the body is chunked
+	 */
+	protected long getBodyLength() {
+		if (isChunked())
+			return -1;
+		return Numbers.getLong(getHeaderFieldValue(CONTENT_LENGTH), -1);
+	}
+
+	/**
+	 * Return the body as a stream. For a streamed body this is the stream
+	 * reading it from the connection, and it can only be read once. A spooled
+	 * body file is handed over to the stream and deleted when it is closed, so
+	 * it can only be read once as well.
+	 *
+	 * @return InputStream the body, null if there's no body
+	 */
+	public InputStream getBodyStream() throws IOException {
+		if (bodyStream != null)
+			return bodyStream;
+		if (bodyFile != null) {
+			InputStream in = new SpooledBodyInputStream(bodyFile);
+			bodyFile = null;
+			return in;
+		}
+		if (body != null)
+			return new ByteArrayInputStream(body);
+		return null;
+	}
+
+	/**
+	 * Return the body as a channel, see getBodyStream()
+	 *
+	 * @return ReadableByteChannel the body, null if there's no body
+	 */
+	public ReadableByteChannel getBodyChannel() throws IOException {
+		InputStream in = getBodyStream();
+		return in == null ? null : Channels.newChannel(in);
+	}
+
+	/**
+	 * Return the temporary file the body was spooled to
+	 *
+	 * @return File the body file, null if the body isn't in a file
+	 */
+	public File getBodyFile() {
+		return bodyFile;
+	}
+
+	/**
+	 * Drop the body: close a streamed body and delete a spooled body file
+	 */
+	public void discardBody() {
+		if (bodyStream != null) {
+			bodyStream.close();
+			bodyStream = null;
+		}
+		if (bodyFile != null)
+			deleteBodyFile();
+		body = null;
+	}
+
+	/**
+	 * Delete the spooled body file
+	 */
+	private void deleteBodyFile() {
+		if (!bodyFile.delete())
+			logger.warn("Could not delete " + bodyFile);
+		bodyFile = null;
+	}
+
+	/**
+	 * Reads a spooled body file, and deletes it when closed
+	 */
+	private static final class SpooledBodyInputStream extends FileInputStream {
+		private final File file;
+		private boolean closed;
+
+		SpooledBodyInputStream(File file) throws FileNotFoundException {
+			super(file);
+			this.file = file;
+		}
+
+		public void close() throws IOException {
+			if (closed)
+				return;
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				if (!file.delete())
+					logger.warn("Could not delete " + file);
+			}
+		}
 	}
 
 	/**
@@ -286,6 +519,11 @@ public abstract class HttpMessage implements Cloneable {
 	 *            the stream to read the header from
 	 */
 	protected void readHeaders(HttpInputStream reader) throws IOException {
+		if (reader.isBuffered()) {
+			readHeaderSlices(reader);
+			return;
+		}
+
 		String line;
 		// everything should be header
 		while ((line = reader.readLine()).length() != 0) {
@@ -294,11 +532,56 @@ public abstract class HttpMessage implements Cloneable {
 				String field = line.substring(0, ichC);
 				String value = line.substring(ichC + 1);
 				addHeader(field.trim(), value.trim());
-				System.out.println("field: " + field + " Value: " + value);
+				if (logger.isDebugEnabled())
+					logger.debug("field: " + field + " Value: " + value);
+			}
+		}
+	}
+
+	/**
+	 * Read the header lines in place in the block buffer of a buffered
+	 * reader, only the field and value Strings are created.
+	 *
+	 * @param reader
+	 *            the buffered stream to read the header from
+	 */
+	private void readHeaderSlices(HttpInputStream reader) throws IOException {
+		int length;
+		while ((length = reader.scanLine()) > 0) {
+			byte[] line = reader.getLineBuffer();
+			int start = reader.getLineOffset();
+			int end = start + length;
+			int colon = start;
+			while (colon < end && line[colon] != ':')
+				colon++;
+			if (colon < end) {
+				String field = trimmedString(line, start, colon);
+				String value = trimmedString(line, colon + 1, end);
+				addHeader(field, value);
+				if (logger.isDebugEnabled())
+					logger.debug("field: " + field + " Value: " + value);
 			}
 		}
 	}
 
+	/**
+	 * Return bytes as an ISO-8859-1 String, trimmed like String.trim()
+	 *
+	 * @param bytes
+	 *            the bytes
+	 * @param start
+	 *            the first byte
+	 * @param end
+	 *            the end of the bytes (exclusive)
+	 */
+	private static String trimmedString(byte[] bytes, int start, int end) {
+		while (start < end && (bytes[start] & 0xFF) <= ' ')
+			start++;
+		while (end > start && (bytes[end - 1] & 0xFF) <= ' ')
+			end--;
+		return new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
 	/**
 	 * Set the body of this HttpMessage. Body is a byte array.
 	 *
@@ -309,6 +592,28 @@ public abstract class HttpMessage implements Cloneable {
 		this.body = body;
 	}
 
+	/**
+	 * Return true if the connection stays open after this message: HTTP/1.1
+	 * unless "Connection: close", HTTP/1.0 only with "Connection: keep-alive"
+	 *
+	 * @return boolean
+	 */
+	public boolean isKeepAlive() {
+		String[] connection = getHeaderFieldValues(CONNECTION);
+		boolean keepAlive = HTTP_VERSION11.equals(httpVersion);
+		for (int i = 0; i < connection.length; i++) {
+			String[] options = connection[i].split(",");
+			for (int j = 0; j < options.length; j++) {
+				String option = options[j].trim();
+				if (option.equalsIgnoreCase("close"))
+					return false;
+				if (option.equalsIgnoreCase("keep-alive"))
+					keepAlive = true;
+			}
+		}
+		return keepAlive;
+	}
+
 	/**
 	 * Set HttpVersion information. The version(s) we support is defined by
 	 * HTTP_VERSIONxx constant(s).
@@ -20,11 +20,13 @@ package com.ahlquist.common.net.http;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.apache.log4j.Logger;
 
+import com.ahlquist.common.util.ByteBuffer;
 import com.ahlquist.common.util.Numbers;
 
 /**
@@ -78,6 +80,18 @@ public class HttpRequest extends HttpMessage {
 	/*
 	 * HttpRequest(String uri) { this(uri, GET); }
 	 */
+	/**
+	 * Construct a HttpRequest to send from a client, see HttpClient
+	 *
+	 * @param method
+	 *            the Http request method
+	 * @param uri
+	 *            the abspath and query of the URL
+	 */
+	public HttpRequest(String method, String uri) {
+		header = new RequestHeader(method, uri);
+	}
+
 	/**
 	 * Construct a HttpRequest object based on a live socket. <br>
 	 * 
@@ -131,6 +145,26 @@ public class HttpRequest extends HttpMessage {
 		}
 	}
 
+	/**
+	 * Return true if the request body has chunked transfer encoding
+	 */
+	protected boolean isChunked() {
+		return "chunked".equalsIgnoreCase(header.getHeaderParamIgnoreCase(TRANSFER_ENCODING));
+	}
+
+	/**
+	 * Return the length of the request body from the Content-Length header. A
+	 * request with neither Content-Length nor chunked encoding has no body
+	 * (RFC 7230 3.3.3), unlike a response it doesn't end at end of file.
+	 *
+	 * @return long the body length, 0 if not given, -1 if the body is chunked
+	 */
+	protected long getBodyLength() {
+		if (isChunked())
+			return -1;
+		return Numbers.getLong(header.getHeaderParamIgnoreCase(CONTENT_LENGTH), 0);
+	}
+
 	public InputStream getInputStream() {
 		return reader.getInputStream();
 	}
@@ -222,6 +256,45 @@ public class HttpRequest extends HttpMessage {
 		return (b.toString());
 	}
 
+	/**
+	 * Set the body of a request to send, with its Content-Type and
+	 * Content-Length headers
+	 *
+	 * @param content
+	 *            the body
+	 * @param contentType
+	 *            the media type of the body
+	 */
+	public void setContent(byte[] content, String contentType) {
+		setBody(content);
+		addHeader("Content-Type", contentType);
+		addHeader("Content-Length", Integer.toString(content.length));
+	}
+
+	/**
+	 * Return true if the request can be sent again, or pipelined: a GET, HEAD,
+	 * OPTIONS or TRACE without a body (RFC 7230 6.3.2)
+	 */
+	boolean isIdempotent() {
+		String method = header.method;
+		if (getBody() != null && getBody().length > 0)
+			return false;
+		return GET.equalsIgnoreCase(method) || HEAD.equalsIgnoreCase(method) || OPTIONS.equalsIgnoreCase(method)
+				|| TRACE.equalsIgnoreCase(method);
+	}
+
+	/**
+	 * Return the bytes a client sends: the request line with the URI as given
+	 * to HttpRequest(String, String), the headers and the body
+	 */
+	byte[] getClientOutputBytes() {
+		String requestLine = header.method.toUpperCase() + ' ' + header.resource + ' ' + getHttpVersion() + CRLF;
+		ByteBuffer bb = new ByteBuffer(256);
+		bb.append(requestLine.getBytes(StandardCharsets.ISO_8859_1));
+		bb.append(super.getOutputBytes());
+		return (bb.getBytes());
+	}
+
 	/**
 	 * return output bytes used to send out
 	 */
@@ -67,22 +67,112 @@ public class HttpResponse extends HttpMessage implements Cloneable {
 	 *            a live socket holding a HTTP communication channel
 	 */
 	HttpResponse(Socket socket) throws IOException {
+		this(socket, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Construct a HttpResponse object based on a live socket, spooling a body
+	 * larger than spoolThreshold bytes to a temporary file. <br>
+	 * 
+	 * @param socket
+	 *            a live socket holding a HTTP communication channel
+	 * @param spoolThreshold
+	 *            the largest body kept in memory
+	 */
+	HttpResponse(Socket socket, long spoolThreshold) throws IOException {
 		HttpInputStream reader = new HttpInputStream(socket);
 
 		try {
-			// Read Response and Headers
-			String line = reader.readLine();
+			if (readStatusAndHeaders(reader) && hasBody())
+				super.readBody(reader, spoolThreshold);
+		} finally {
+			reader.close();
+		}
+	}
 
-			if (handleFirstLine(line)) {
-				logger.debug(line);
-				super.readHeaders(reader);
-				super.readBody(reader);
+	/**
+	 * Construct a HttpResponse object whose body is left in the stream, to be
+	 * read through getBodyStream(). <br>
+	 * 
+	 * @param reader
+	 *            the stream holding the response
+	 * @param closeReader
+	 *            true to close reader when the body stream is closed
+	 */
+	HttpResponse(HttpInputStream reader, boolean closeReader) throws IOException {
+		boolean streaming = false;
+		try {
+			if (readStatusAndHeaders(reader) && hasBody()) {
+				super.streamBody(reader, closeReader);
+				streaming = true;
 			}
 		} finally {
-			reader.close();
+			if (!streaming && closeReader)
+				reader.close();
 		}
 	}
 
+	/**
+	 * Construct a HttpResponse object from a client connection, leaving the
+	 * stream at the start of the next response. <br>
+	 * 
+	 * @param reader
+	 *            the stream holding the response
+	 * @param request
+	 *            the request this responds to, no body is read for HEAD
+	 * @param spoolThreshold
+	 *            the largest body kept in memory
+	 * @exception InvalidHttpResponseException
+	 *                if there is no valid status line
+	 */
+	HttpResponse(HttpInputStream reader, HttpRequest request, long spoolThreshold) throws IOException {
+		if (!readStatusAndHeaders(reader))
+			throw new InvalidHttpResponseException("Bad HTTP response code: " + responseCode);
+		if (hasBody() && !HttpRequest.HEAD.equalsIgnoreCase(request.getMethod()))
+			super.readBody(reader, spoolThreshold);
+	}
+
+	/**
+	 * Return true if the connection can be used for the next response: it is
+	 * kept alive and the end of this response was known from its framing
+	 *
+	 * @param request
+	 *            the request this responds to
+	 */
+	boolean isReusable(HttpRequest request) {
+		if (!isKeepAlive())
+			return false;
+		if (!hasBody() || HttpRequest.HEAD.equalsIgnoreCase(request.getMethod()))
+			return true;
+		return isChunked() || getBodyLength() >= 0;
+	}
+
+	/**
+	 * Read the status line and the headers
+	 *
+	 * @param reader
+	 *            the stream holding the response
+	 * @return boolean true if the status line had a response code
+	 */
+	private boolean readStatusAndHeaders(HttpInputStream reader) throws IOException {
+		String line = reader.readLine();
+
+		if (!handleFirstLine(line))
+			return false;
+		logger.debug(line);
+		super.readHeaders(reader);
+		return true;
+	}
+
+	/**
+	 * Return true if a response with this response code has a body. 1xx, 204
+	 * and 304 responses never do, whatever their headers say (RFC 7230
+	 * 3.3.3).
+	 */
+	boolean hasBody() {
+		return responseCode >= 200 && responseCode != HTTP_NO_CONTENT && responseCode != HTTP_NOT_MODIFIED;
+	}
+
 	/**
 	 * clone
 	 */
@@ -225,7 +315,7 @@ public class HttpResponse extends HttpMessage implements Cloneable {
 	 * @return int content length, -1 if no content length specified
 	 */
 	int getContentLength() {
-		return (Integer.parseInt(getHeaderFieldValue("Content-Length"), -1));
+		return (Numbers.getInt(getHeaderFieldValue(CONTENT_LENGTH), -1));
 	}
 
 	public String toString() {
@@ -33,6 +33,20 @@ public class RequestHeader {
 	private RequestHeader() {
 	}
 
+	/**
+	 * Construct the header of a request to send from a client
+	 *
+	 * @param _method
+	 *            the request method
+	 * @param _resource
+	 *            the abspath and query, as sent on the request line
+	 */
+	RequestHeader(String _method, String _resource) {
+		method = _method;
+		resource = _resource;
+		protocol = HttpMessage.HTTP_VERSION11;
+	}
+
 	public RequestHeader(List<String> _lines) throws ProtocolException {
 		// Process the First Line
 		String firstLine = (String) _lines.get(0);
@@ -75,6 +89,22 @@ public class RequestHeader {
 		return null;
 	}
 
+	/**
+	 * Return a header value, matching the name ignoring case
+	 *
+	 * @param _key
+	 *            the header name
+	 * @return String the value, null if there's no such header
+	 */
+	public String getHeaderParamIgnoreCase(String _key) {
+		for (int i = 0; i < headerPairs.size(); i++) {
+			NameValue pair = (NameValue) headerPairs.elementAt(i);
+			if (pair.getName().equalsIgnoreCase(_key))
+				return pair.getValue();
+		}
+		return null;
+	}
+
 	public VArray getHeaderParamKeys() {
 		VArray array = new VArray();
 		for (int i = 0; i < headerPairs.size(); i++) {
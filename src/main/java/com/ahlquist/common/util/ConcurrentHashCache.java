@@ -0,0 +1,224 @@
+/*   @(#)  ConcurrentHashCache.java  2026-10-17
+*
+*  Copyright(C) 2002, All Rights Reserved.
+*  Ahlquist.com
+*  516 Suisse Drive
+*  San Jose, California 95123
+*  U.S.A.
+*
+*  This document contains information proprietary and confidential to
+*  Ahlquist.com, which is either copyrighted or which a
+*  patent has been applied and/or protected by trade secret laws.
+*
+*  This document, or any parts thereof, may not be used, disclosed,
+*  or reproduced in any form, by any method, or for any purpose without
+*  the express written permission of Ahlquist.com.
+*
+*
+*/
+
+package com.ahlquist.common.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+
+/**
+ * ConcurrentHashCache provides fast, concurrent lookup of Objects by their
+ * unique key. Like HashCache it has an upper-limit to protect memory abuse,
+ * but it is built for many threads: get() takes no lock at all, and only put()
+ * and remove() synchronize.
+ *
+ * Instead of moving every hit to the front of a linked list (true LRU), each
+ * entry has a "referenced" bit that get() sets. When the cache is full, a
+ * clock hand sweeps over the entries, clearing referenced bits, and the first
+ * entry that hasn't been referenced since the last sweep is pushed out (the
+ * CLOCK approximation of LRU).
+ *
+ * @author Douglas Ahlquist
+ * @see com.ahlquist.common.util.HashCache
+ */
+public class ConcurrentHashCache<K, V> extends MyObject {
+	/** holds the entries by key */
+	private ConcurrentHashMap<K, Entry<K, V>> table;
+	/** max number of entries allowed */
+	private int limit;
+
+	/**
+	 * the clock: each slot holds an entry (live or removed). Guarded by this.
+	 */
+	private Entry<K, V>[] clock;
+	/** the next slot the clock hand will look at. Guarded by this. */
+	private int hand = 0;
+	/** the number of slots that have been used so far. Guarded by this. */
+	private int used = 0;
+
+	/** construct a new cache with the specified size */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public ConcurrentHashCache(int limit) {
+		this.limit = limit;
+		table = new ConcurrentHashMap<K, Entry<K, V>>();
+		clock = new Entry[limit];
+	}
+
+	/**
+	 * Fetch the object associated with the specified key. Returns null if
+	 * object not present in cache. The object, if found, is marked as
+	 * referenced, which protects it from the next sweep of the clock.
+	 */
+	public V get(K key) {
+		Entry<K, V> entry = table.get(key);
+		if (entry != null) {
+			// Avoid the write (and the cache line invalidation) if already set
+			if (!entry.referenced)
+				entry.referenced = true;
+			return (entry.value);
+		}
+		return (null);
+	}
+
+	/**
+	 * Add the specified object to the cache using the specified key
+	 *
+	 * If the key already exists, the old value is replaced with the new and the
+	 * old object is returned.
+	 *
+	 * If the cache is full, an object that has not been referenced recently is
+	 * pushed out and returned.
+	 *
+	 * @return Object that was removed (may be null)
+	 */
+	public synchronized V put(K key, V value) {
+		// handle limit == 0; disable cache
+		if (limit == 0)
+			return value;
+
+		// Replace the value if the key already exists
+		Entry<K, V> entry = table.get(key);
+		if (entry != null) {
+			V oldValue = entry.value;
+			entry.value = value;
+			entry.referenced = true;
+			return (oldValue);
+		}
+
+		V removedObject = null;
+		int slot;
+		if (used < limit) {
+			// Still room, use the next free slot
+			slot = used++;
+		} else {
+			// Full, find an entry to push out
+			slot = sweep();
+			Entry<K, V> victim = clock[slot];
+			if (!victim.removed) {
+				table.remove(victim.key, victim);
+				victim.removed = true;
+				removedObject = victim.value;
+			}
+		}
+
+		entry = new Entry<K, V>(key, value);
+		clock[slot] = entry;
+		table.put(key, entry);
+
+		return (removedObject); // may be null
+	}
+
+	/**
+	 * Removes the object associated with the specified key.
+	 *
+	 * @return the removed object (may be null)
+	 */
+	public synchronized V remove(K key) {
+		Entry<K, V> entry = table.remove(key);
+		if (entry != null) {
+			// The slot is reused when the clock hand gets to it
+			entry.removed = true;
+			return (entry.value);
+		}
+		return (null);
+	}
+
+	/**
+	 * Removes the object associated with the specified key, but only if it is
+	 * still the specified value.
+	 *
+	 * @return true if the object was removed
+	 */
+	public synchronized boolean remove(K key, V value) {
+		Entry<K, V> entry = table.get(key);
+		if (entry != null && entry.value == value) {
+			table.remove(key, entry);
+			entry.removed = true;
+			return (true);
+		}
+		return (false);
+	}
+
+	/**
+	 * Performs an action for each object in the cache. Takes no lock; objects
+	 * that are added or removed while this runs may or may not be seen. Does
+	 * not mark the objects as referenced.
+	 */
+	public void forEach(BiConsumer<? super K, ? super V> action) {
+		for (Entry<K, V> entry : table.values())
+			action.accept(entry.key, entry.value);
+	}
+
+	public boolean containsKey(K key) {
+		return (table.containsKey(key));
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public synchronized void clear() {
+		table.clear();
+		clock = new Entry[limit];
+		hand = 0;
+		used = 0;
+	}
+
+	public int size() {
+		return (table.size());
+	}
+
+	public boolean isEmpty() {
+		return (table.isEmpty());
+	}
+
+	public boolean isFull() {
+		return (size() >= limit);
+	}
+
+	/**
+	 * Moves the clock hand to the next entry that can be pushed out: a removed
+	 * entry, or one that has not been referenced since the last sweep. Clears
+	 * the referenced bit of the entries it passes. Caller must hold the lock.
+	 *
+	 * @return the slot of the entry to push out
+	 */
+	private int sweep() {
+		while (true) {
+			int slot = hand;
+			hand = (hand + 1) % limit;
+			Entry<K, V> entry = clock[slot];
+			if (entry.removed || !entry.referenced)
+				return (slot);
+			entry.referenced = false;
+		}
+	}
+
+	/** an entry in the cache */
+	private static final class Entry<K, V> {
+		final K key;
+		volatile V value;
+		/** set by get(), cleared by the clock hand */
+		volatile boolean referenced = false;
+		/** set when the entry is no longer in the table. Guarded by the cache. */
+		boolean removed = false;
+
+		Entry(K key, V value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+}